@@ -1,5 +1,6 @@
 package com.loco.kafkaguru;
 
+import com.loco.kafkaguru.controller.MainWindowController;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
@@ -12,10 +13,13 @@ import java.io.IOException;
 /** JavaFX App */
 public class App extends Application {
     public static Scene scene;
+    private static MainWindowController mainWindowController;
 
     @Override
     public void start(Stage stage) throws IOException {
-        scene = new Scene(loadFXML("view/MainWindow"));
+        var fxmlLoader = new FXMLLoader(App.class.getResource("view/MainWindow.fxml"));
+        scene = new Scene(fxmlLoader.load());
+        mainWindowController = fxmlLoader.getController();
         stage.setScene(scene);
         stage.setMaximized(true);
         stage.show();
@@ -32,6 +36,9 @@ public class App extends Application {
 
     @Override
     public void stop() {
+        if (mainWindowController != null) {
+            mainWindowController.shutdown();
+        }
         Platform.exit();
     }
 
@@ -0,0 +1,7 @@
+package com.loco.kafkaguru;
+
+// A formatter which can also give the start of a message on a single line, without
+// formatting the whole of it
+public interface SummaryFormatter extends MessageFormatter {
+    public String summarize(byte[] data, int maxLength);
+}
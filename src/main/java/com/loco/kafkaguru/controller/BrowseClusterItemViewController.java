@@ -1,15 +1,28 @@
 package com.loco.kafkaguru.controller;
 
 import com.loco.kafkaguru.MessageFormatter;
+import com.loco.kafkaguru.core.FetchCursor;
+import com.loco.kafkaguru.core.FetchHandle;
+import com.loco.kafkaguru.core.FetchRequest;
+import com.loco.kafkaguru.core.FetchStopReason;
 import com.loco.kafkaguru.core.KafkaReader;
+import com.loco.kafkaguru.core.KafkaSubscriber;
 import com.loco.kafkaguru.core.PluginLoader;
+import com.loco.kafkaguru.core.RecordFilter;
+import com.loco.kafkaguru.core.SearchJob;
+import com.loco.kafkaguru.core.SearchProgress;
+import com.loco.kafkaguru.core.SearchRequest;
+import com.loco.kafkaguru.core.TailSession;
 import com.loco.kafkaguru.core.listeners.KafkaConnectionListener;
 import com.loco.kafkaguru.core.listeners.KafkaMessagesListener;
+import com.loco.kafkaguru.core.listeners.KafkaSearchListener;
+import com.loco.kafkaguru.core.listeners.KafkaTailListener;
 import com.loco.kafkaguru.viewmodel.*;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.value.ChangeListener;
@@ -21,7 +34,7 @@ import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.*;
-import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.VBox;
 import lombok.extern.log4j.Log4j2;
@@ -35,19 +48,39 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 @Log4j2
 public class BrowseClusterItemViewController
         implements Initializable,
                 ClusterItemSelectionListener,
                 KafkaMessagesListener,
+                KafkaTailListener,
+                KafkaSearchListener,
                 KafkaConnectionListener {
     private static final String SAVE_MESSAGE_DIR = "Saved Messages";
+    // records added to the table at once while tailing
+    private static final int TAIL_RECORDS_PER_UPDATE = 1_000;
+    // rows below the last one shown which are formatted in the background
+    private static final int FORMAT_AHEAD_ROWS = 100;
+    private static final ExecutorService formatExecutor =
+            Executors.newSingleThreadExecutor(
+                    runnable -> {
+                        var thread = new Thread(runnable, "kafkaguru-format");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    private final MessageRowStage rowStage = new MessageRowStage(ForkJoinPool.commonPool());
+
+    // rows last handed to formatExecutor
+    private int formatAheadStart = 0;
+    private int formatAheadEnd = 0;
 
     @FXML private VBox mainLayout;
     @FXML private AnchorPane clusterDetailsPane;
@@ -59,10 +92,15 @@ public class BrowseClusterItemViewController
 
     // messages toolbar
     @FXML private Button refreshButton;
+    @FXML private ToggleButton tailButton;
+    @FXML private TextField queryField;
     @FXML private TextField includeField;
     @FXML private TextField excludeField;
     @FXML private ComboBox<String> messageCountBox;
+    @FXML private ComboBox<String> byteLimitBox;
     @FXML private ComboBox<String> cursorBox;
+    @FXML private ComboBox<String> searchToBox;
+    @FXML private ToggleButton searchButton;
 
     // messages table
     @FXML private TableView<MessageModel> messagesTable;
@@ -71,7 +109,8 @@ public class BrowseClusterItemViewController
     @FXML private TableColumn<MessageModel, Long> offsetColumn;
     @FXML private TableColumn<MessageModel, String> keyColumn;
     @FXML private TableColumn<MessageModel, String> messageSummaryColumn;
-    @FXML private TableColumn<MessageModel, Date> timestampColumn;
+    @FXML private TableColumn<MessageModel, Long> timestampColumn;
+    @FXML private Label fetchStatusLabel;
     @FXML private TextArea messageArea;
 
     private CusterItemViewSettings settings;
@@ -79,9 +118,19 @@ public class BrowseClusterItemViewController
     private MessagesModel messagesModel;
     private boolean loading = false;
     private int maxMessagesToFetch = 50;
-    private long fetchFrom = -1;
-    boolean currentNodeStale = false;
+    // 0 for no limit
+    private long maxBytesToFetch = 50 * 1024 * 1024;
+    private FetchCursor fetchCursor = FetchCursor.END;
+    // the search ends at this cursor, and starts at fetchCursor
+    private FetchCursor searchToCursor = FetchCursor.END;
+    private FetchHandle currentFetch;
+    private SearchJob currentSearch;
+    // incremented on the FX thread whenever the current fetch is replaced, so that
+    // batches already queued by the old fetch can be told apart and dropped
+    private volatile long fetchGeneration = 0;
     private KafkaReader kafkaReader;
+    private KafkaSubscriber subscriber;
+    private TailSession tailSession;
     private AbstractNode currentNode;
     private AbstractNode selectedNode;
     private BooleanProperty followTreeSelection = new SimpleBooleanProperty(true);
@@ -89,6 +138,7 @@ public class BrowseClusterItemViewController
     public BrowseClusterItemViewController(
             KafkaReader kafkaReader, CusterItemViewSettings settings) {
         this.kafkaReader = kafkaReader;
+        this.subscriber = new KafkaSubscriber(kafkaReader);
         this.settings = settings;
         kafkaReader.getKafkaInstance().addConnectionListener(this);
     }
@@ -111,12 +161,43 @@ public class BrowseClusterItemViewController
     private void setupMessagesView() {
         setupMessagesToolbar();
 
-        rowNumberColumn.setCellValueFactory(new PropertyValueFactory<>("index"));
-        partitionColumn.setCellValueFactory(new PropertyValueFactory<>("partition"));
-        offsetColumn.setCellValueFactory(new PropertyValueFactory<>("offset"));
-        keyColumn.setCellValueFactory(new PropertyValueFactory<>("key"));
-        messageSummaryColumn.setCellValueFactory(new PropertyValueFactory<>("messageSummary"));
-        timestampColumn.setCellValueFactory(new PropertyValueFactory<>("timestamp"));
+        // the rows hold no properties, the cells get their values from the getters
+        rowNumberColumn.setCellValueFactory(
+                cell -> new ReadOnlyObjectWrapper<>(cell.getValue().getIndex()));
+        partitionColumn.setCellValueFactory(
+                cell -> new ReadOnlyObjectWrapper<>(cell.getValue().getPartition()));
+        offsetColumn.setCellValueFactory(
+                cell -> new ReadOnlyObjectWrapper<>(cell.getValue().getOffset()));
+        keyColumn.setCellValueFactory(
+                cell -> new ReadOnlyObjectWrapper<>(cell.getValue().getKey()));
+        messageSummaryColumn.setCellValueFactory(
+                cell -> new ReadOnlyObjectWrapper<>(cell.getValue().getMessageSummary()));
+        // sorted by the time, shown as text
+        timestampColumn.setCellValueFactory(
+                cell -> new ReadOnlyObjectWrapper<>(cell.getValue().getTimestampMillis()));
+        timestampColumn.setCellFactory(
+                column ->
+                        new TableCell<>() {
+                            @Override
+                            protected void updateItem(Long timestamp, boolean empty) {
+                                super.updateItem(timestamp, empty);
+                                setText(
+                                        empty || timestamp == null
+                                                ? null
+                                                : TimestampFormat.format(timestamp));
+                            }
+                        });
+        messagesTable.setRowFactory(
+                table ->
+                        new TableRow<>() {
+                            @Override
+                            protected void updateItem(MessageModel message, boolean empty) {
+                                super.updateItem(message, empty);
+                                if (!empty) {
+                                    formatAhead(getIndex());
+                                }
+                            }
+                        });
 
         messagesTable
                 .getSelectionModel()
@@ -138,12 +219,43 @@ public class BrowseClusterItemViewController
                     var messages = messagesTable.getItems();
                     save(messages, format);
                 });
-        messagesContextMenu.getItems().add(saveItem);
+        var browseFromItem = new MenuItem("Browse from this time");
+        browseFromItem.setOnAction(
+                event -> {
+                    var message = messagesTable.getSelectionModel().getSelectedItem();
+                    if (message != null) {
+                        var cursor = FetchCursor.timestamp(message.getTimestampMillis());
+                        cursorBox.setValue(cursor.toString());
+                        refreshMessages();
+                    }
+                });
+        messagesContextMenu.getItems().addAll(saveItem, browseFromItem);
         messagesTable.setContextMenu(messagesContextMenu);
     }
 
+    // formats the rows below a row being shown, before they are scrolled to
+    private void formatAhead(int index) {
+        var items = messagesTable.getItems();
+        var start = index + 1;
+        var end = Math.min(items.size(), start + FORMAT_AHEAD_ROWS);
+        if (start >= formatAheadStart && start <= formatAheadEnd) {
+            // only the rows not handed over yet
+            if (end <= formatAheadEnd) {
+                return;
+            }
+            start = formatAheadEnd;
+        } else {
+            formatAheadStart = start;
+        }
+        formatAheadEnd = end;
+        if (start < end) {
+            var messages = new ArrayList<>(items.subList(start, end));
+            formatExecutor.execute(() -> MessageModel.preformat(messages));
+        }
+    }
+
     private void setupCursorBox() {
-        this.cursorBox.setValue("End");
+        this.cursorBox.setValue(fetchCursor.toString());
         cursorBox
                 .valueProperty()
                 .addListener(
@@ -153,25 +265,31 @@ public class BrowseClusterItemViewController
                                     ObservableValue<? extends String> observableValue,
                                     String oldValue,
                                     String newValue) {
-                                switch (newValue) {
-                                    case "Beginning":
-                                        fetchFrom = 0;
-                                        break;
-                                    case "End":
-                                        fetchFrom = -1;
-                                        break;
-                                    default:
-                                        try {
-                                            fetchFrom = Integer.parseInt(newValue);
-                                        } catch (NumberFormatException e) {
-                                            cursorBox.valueProperty().set(oldValue);
-                                        }
-                                        break;
+                                var cursor = FetchCursor.parse(newValue);
+                                if (cursor == null) {
+                                    cursorBox.valueProperty().set(oldValue);
+                                } else {
+                                    fetchCursor = cursor;
                                 }
                             }
                         });
     }
 
+    private void setupSearchToBox() {
+        searchToBox.setValue(searchToCursor.toString());
+        searchToBox
+                .valueProperty()
+                .addListener(
+                        (observableValue, oldValue, newValue) -> {
+                            var cursor = FetchCursor.parse(newValue);
+                            if (cursor == null) {
+                                searchToBox.valueProperty().set(oldValue);
+                            } else {
+                                searchToCursor = cursor;
+                            }
+                        });
+    }
+
     private void setupMessageCountBox() {
         messageCountBox.setValue("" + maxMessagesToFetch);
         messageCountBox
@@ -192,6 +310,56 @@ public class BrowseClusterItemViewController
                         });
     }
 
+    private void setupByteLimitBox() {
+        byteLimitBox.setValue(formatByteLimit(maxBytesToFetch));
+        byteLimitBox
+                .valueProperty()
+                .addListener(
+                        (observableValue, oldValue, newValue) -> {
+                            var limit = parseByteLimit(newValue);
+                            if (limit < 0) {
+                                byteLimitBox.valueProperty().set(oldValue);
+                            } else {
+                                maxBytesToFetch = limit;
+                            }
+                        });
+    }
+
+    private static String formatByteLimit(long bytes) {
+        return bytes == 0 ? "No limit" : bytes / (1024 * 1024) + " MB";
+    }
+
+    // Accepts "No limit", or a number of bytes with an optional KB, MB or GB unit.
+    // Returns -1 if the text is none of them.
+    private static long parseByteLimit(String text) {
+        if (text == null) {
+            return -1;
+        }
+        text = text.trim().toUpperCase();
+        if (text.equals("NO LIMIT")) {
+            return 0;
+        }
+        long unit = 1;
+        for (var suffix : List.of("KB", "MB", "GB")) {
+            unit *= 1024;
+            if (text.endsWith(suffix)) {
+                text = text.substring(0, text.length() - suffix.length()).trim();
+                try {
+                    var value = Long.parseLong(text);
+                    return value > 0 ? value * unit : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        try {
+            var value = Long.parseLong(text);
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private void onConnectButtonClick(ActionEvent actionEvent) {
         if (isNameChanged()) {
             kafkaReader.getKafkaInstance().setName(clusterNameField.getText());
@@ -254,13 +422,12 @@ public class BrowseClusterItemViewController
                 mainLayout.getChildren().clear();
                 mainLayout.getChildren().add(messagesSplitPane);
                 messagesSplitPane.setVisible(true);
-                messagesModel.setMessages(selectedNode.getMessages());
-                currentNode = selectedNode;
-                if (loading) {
-                    currentNodeStale = true;
-                } else {
-                    fetchMessages(selectedNode);
+                if (currentNode != selectedNode) {
+                    tailButton.setSelected(false);
                 }
+                switchToNode(selectedNode);
+                // preempts the fetch of the previously selected node, if still running
+                fetchMessages(selectedNode);
         }
     }
 
@@ -270,42 +437,267 @@ public class BrowseClusterItemViewController
             Object sender,
             int batchNumber,
             boolean moreToCome) {
+        // called while the fetch is known not to be cancelled, see FetchHandle.deliver()
+        var generation = fetchGeneration;
+        if (records == null) {
+            log.error("Failed to fetch messages for {}", sender);
+            Platform.runLater(
+                    () -> {
+                        if (generation == fetchGeneration) {
+                            setLoadingStatus(false);
+                        }
+                    });
+            return;
+        }
         log.info("Received {} messages", records.size());
-        Platform.runLater(
-                () -> {
-                    log.info("Processing {} messages", records.size());
+        var senderNode = (AbstractNode) sender;
+        // the rows are created and the first ones formatted off the UI thread
+        rowStage.submit(
+                records,
+                getFormatter(senderNode),
+                FORMAT_AHEAD_ROWS,
+                messages -> {
+                    if (generation != fetchGeneration) {
+                        log.info("Dropping {} messages of a cancelled fetch", messages.size());
+                        messages.forEach(MessageModel::release);
+                        return;
+                    }
+                    log.info("Processing {} messages", messages.size());
+                    restampFormatter(messages, getFormatter(senderNode));
                     // update the sender node
-                    var senderNode = (AbstractNode) sender;
-                    var formatter = getFormatter(senderNode);
                     if (batchNumber == 1) {
-                        var messages = createMessages(0, records, formatter);
+                        numberRows(0, messages);
                         senderNode.setMessages(messages);
                     } else {
-                        var messages =
-                                createMessages(senderNode.getMessages().size(), records, formatter);
+                        numberRows(senderNode.getMessages().size(), messages);
                         senderNode.addMessages(messages);
                     }
-                    log.info("Added {} messages to the node", records.size());
+                    log.info("Added {} messages to the node", messages.size());
 
                     setLoadingStatus(moreToCome);
 
                     if (currentNode == senderNode) {
-                        updateMessagesTable();
-                        log.info("Added {} messages to the table", records.size());
-                    } else {
-                        if (currentNodeStale) {
-                            fetchMessages(currentNode);
-                            currentNodeStale = false;
-                        } else {
-                            new Alert(
-                                            Alert.AlertType.WARNING,
-                                            "currentTopicNode != senderNode, and currentNodeStale is false")
-                                    .showAndWait();
+                        if (!moreToCome) {
+                            showFetchStatus(
+                                    senderNode,
+                                    currentFetch == null ? null : currentFetch.getStopReason());
                         }
+                        updateMessagesTable();
+                        log.info("Added {} messages to the table", messages.size());
+                    }
+                },
+                error -> {
+                    if (generation != fetchGeneration) {
+                        return;
+                    }
+                    // the batches after a lost one would be numbered wrong, so the fetch ends
+                    cancelCurrentFetch();
+                    setLoadingStatus(false);
+                    fetchStatusLabel.setText("Failed to load messages: " + error);
+                });
+    }
+
+    @Override
+    public void recordsAvailable(TailSession session) {
+        Platform.runLater(
+                () -> {
+                    if (session != tailSession) {
+                        return;
+                    }
+                    var records = session.drain(TAIL_RECORDS_PER_UPDATE);
+                    var node = (AbstractNode) session.getSender();
+                    var messages = node.getMessages();
+                    if (messages == null) {
+                        // the fetch of the node has not finished
+                        messages = new ArrayList<>();
+                        node.setMessages(messages);
+                    }
+                    var startRow =
+                            messages.isEmpty() ? 0 : messages.get(messages.size() - 1).getIndex();
+                    node.addMessages(MessageModel.create(startRow, records, getFormatter(node)));
+
+                    var maxRows = kafkaReader.getKafkaInstance().getSettings().getTailMaxRows();
+                    messages = node.getMessages();
+                    if (messages.size() > maxRows) {
+                        node.setMessages(
+                                new ArrayList<>(
+                                        messages.subList(
+                                                messages.size() - maxRows, messages.size())));
+                    }
+
+                    if (currentNode == node) {
+                        updateMessagesTable();
                     }
+                    fetchStatusLabel.setText(
+                            String.format(
+                                    "Tailing %s: %d messages received, %d dropped",
+                                    session.getTopicPartitions().size() == 1
+                                            ? session.getTopicPartitions().get(0)
+                                            : session.getTopicPartitions().get(0).topic(),
+                                    session.getReceivedCount(),
+                                    session.getDroppedCount()));
                 });
     }
 
+    @Override
+    public void tailStopped(TailSession session, Exception error) {
+        Platform.runLater(
+                () -> {
+                    if (session != tailSession) {
+                        return;
+                    }
+                    tailSession = null;
+                    tailButton.setSelected(false);
+                    if (error != null) {
+                        fetchStatusLabel.setText("Tail stopped: " + error.getMessage());
+                    }
+                });
+    }
+
+    @Override
+    public void matchesFound(SearchJob job, List<ConsumerRecord<String, byte[]>> records) {
+        var node = (AbstractNode) job.getSender();
+        rowStage.submit(
+                records,
+                getFormatter(node),
+                FORMAT_AHEAD_ROWS,
+                matches -> {
+                    if (job != currentSearch) {
+                        matches.forEach(MessageModel::release);
+                        return;
+                    }
+                    restampFormatter(matches, getFormatter(node));
+                    var messages = node.getMessages();
+                    numberRows(messages == null ? 0 : messages.size(), matches);
+                    node.addMessages(matches);
+                    if (currentNode == node) {
+                        updateMessagesTable();
+                    }
+                },
+                error -> {
+                    if (job != currentSearch) {
+                        return;
+                    }
+                    // stops the search
+                    searchButton.setSelected(false);
+                    fetchStatusLabel.setText("Failed to load matches: " + error);
+                });
+    }
+
+    @Override
+    public void progressUpdated(SearchJob job, SearchProgress progress) {
+        Platform.runLater(
+                () -> {
+                    if (job == currentSearch) {
+                        fetchStatusLabel.setText("Searching: " + progress);
+                    }
+                });
+    }
+
+    @Override
+    public void searchFinished(SearchJob job, SearchProgress progress, Exception error) {
+        Platform.runLater(
+                () -> {
+                    if (job != currentSearch) {
+                        return;
+                    }
+                    currentSearch = null;
+                    searchButton.setSelected(false);
+                    fetchStatusLabel.setText(
+                            error != null
+                                    ? "Search failed: " + error.getMessage()
+                                    : String.format(
+                                            "Search ended, %s: %s", job.getStopReason(), progress));
+                });
+    }
+
+    // Searches the topic or partition on the brokers, from the From cursor up to the to cursor,
+    // for the messages passing the query and the filter fields. Only the matches are loaded.
+    private void startSearch() {
+        stopSearch();
+        switchToNode(selectedNode);
+        var topicPartitions = getTopicPartitions(currentNode);
+        if (topicPartitions.isEmpty()) {
+            searchButton.setSelected(false);
+            return;
+        }
+        var filter = compileQuery();
+        if (filter == null && StringUtils.isNotBlank(queryField.getText())) {
+            searchButton.setSelected(false);
+            return;
+        }
+        cancelCurrentFetch();
+        setLoadingStatus(false);
+        tailButton.setSelected(false);
+
+        var formatter = getFormatter(currentNode);
+        var include = includeField.getText().toLowerCase();
+        var exclude = excludeField.getText().toLowerCase();
+        Predicate<ConsumerRecord<String, byte[]>> matcher =
+                record -> {
+                    if (filter != null && !filter.test(record)) {
+                        return false;
+                    }
+                    if (StringUtils.isEmpty(include) && StringUtils.isEmpty(exclude)) {
+                        return true;
+                    }
+                    // the same text as the table filters
+                    var body = MessageModel.format(formatter, record.value()).toLowerCase();
+                    return (StringUtils.isEmpty(include) || body.contains(include))
+                            && (StringUtils.isEmpty(exclude) || !body.contains(exclude));
+                };
+
+        currentNode.setMessages(new ArrayList<>());
+        updateMessagesTable();
+        try {
+            var request =
+                    SearchRequest.builder()
+                            .topicPartitions(topicPartitions)
+                            .from(fetchCursor)
+                            .to(searchToCursor)
+                            .matcher(matcher)
+                            .maxMatches(maxMessagesToFetch)
+                            .maxMatchBytes(maxBytesToFetch)
+                            .build();
+            currentSearch = kafkaReader.searchAsync(request, this, currentNode);
+            fetchStatusLabel.setText("Searching " + topicPartitions.get(0).topic());
+        } catch (Exception e) {
+            log.error("Failed to start searching {}", topicPartitions, e);
+            searchButton.setSelected(false);
+        }
+    }
+
+    private void stopSearch() {
+        if (currentSearch != null) {
+            currentSearch.cancel();
+            currentSearch = null;
+        }
+    }
+
+    private void startTail() {
+        stopTail();
+        searchButton.setSelected(false);
+        var topicPartitions = getTopicPartitions(currentNode);
+        if (topicPartitions.isEmpty()) {
+            tailButton.setSelected(false);
+            return;
+        }
+        try {
+            tailSession = subscriber.subscribe(topicPartitions, this, currentNode);
+            fetchStatusLabel.setText("Tailing " + topicPartitions.get(0).topic());
+        } catch (Exception e) {
+            log.error("Failed to start tailing {}", topicPartitions, e);
+            tailButton.setSelected(false);
+        }
+    }
+
+    private void stopTail() {
+        if (tailSession != null) {
+            tailSession.cancel();
+            tailSession = null;
+        }
+    }
+
     private MessageFormatter getFormatter(AbstractNode senderNode) {
         var formatter = PluginLoader.defaultFormatter;
         var topicNode = getTopicNode(senderNode);
@@ -315,6 +707,60 @@ public class BrowseClusterItemViewController
         return formatter;
     }
 
+    // shows why the fetch ended, and what the fetch tuner has learned about the topic
+    private void showFetchStatus(AbstractNode node, FetchStopReason stopReason) {
+        var status = new StringBuilder();
+        if (stopReason != null) {
+            var messageCount = node.getMessages() == null ? 0 : node.getMessages().size();
+            status.append(String.format("Loaded %d messages, %s", messageCount, stopReason));
+        }
+
+        var topicNode = getTopicNode(node);
+        var profile =
+                topicNode == null
+                        ? null
+                        : kafkaReader
+                                .getKafkaInstance()
+                                .getFetchTuner()
+                                .getProfile(topicNode.getTopic());
+        if (profile != null) {
+            status.append(
+                    String.format(
+                            "%sFetching %d records, %d KB per partition per poll; records average"
+                                    + " %.0f bytes, polls take %.0f ms",
+                            status.length() > 0 ? ". " : "",
+                            profile.getMaxPollRecords(),
+                            profile.getMaxPartitionFetchBytes() / 1024,
+                            profile.getAverageRecordBytes(),
+                            profile.getAveragePollMillis()));
+        }
+        fetchStatusLabel.setText(status.toString());
+    }
+
+    // Makes the node current and shows its messages, and drops the messages of the node
+    // left, which holds them off the heap. They are read again, from the message cache
+    // mostly, if it is selected again; else every node visited would keep a fetch's
+    // worth of messages.
+    private void switchToNode(AbstractNode node) {
+        var previous = currentNode;
+        currentNode = node;
+        if (previous == node) {
+            return;
+        }
+        messagesModel.setMessages(node.getMessages());
+        if (previous == null
+                || previous.getMessages() == null
+                || previous.getMessages() == node.getMessages()) {
+            return;
+        }
+        var topicNode = getTopicNode(previous);
+        // the only partition of a topic may share the messages of the topic
+        if (topicNode != null && topicNode.getMessages() == previous.getMessages()) {
+            previous = topicNode;
+        }
+        previous.setMessages(null);
+    }
+
     private TopicNode getTopicNode(AbstractNode node) {
         TopicNode topicNode = null;
         if (node instanceof TopicNode) {
@@ -327,7 +773,24 @@ public class BrowseClusterItemViewController
 
     @Override
     public void messageFormatChanged(String topic) {
-        updateMessagesTable();
+        var topicNode = currentNode == null ? null : getTopicNode(currentNode);
+        if (topicNode == null || !topicNode.getTopic().equals(topic)) {
+            return;
+        }
+        // the rows shown go ahead of the rest of the topic, see Reformatter
+        Reformatter.shared.reformatNow(
+                getVisibleMessages(), topicNode.getFormatter(), messagesTable::refresh);
+    }
+
+    private List<MessageModel> getVisibleMessages() {
+        var flow = (VirtualFlow<?>) messagesTable.lookup(".virtual-flow");
+        if (flow == null || flow.getFirstVisibleCell() == null) {
+            return List.of();
+        }
+        var items = messagesTable.getItems();
+        var first = Math.max(0, flow.getFirstVisibleCell().getIndex());
+        var last = Math.min(items.size(), flow.getLastVisibleCell().getIndex() + 1);
+        return first < last ? items.subList(first, last) : List.of();
     }
 
     private void updateMessagesTable() {
@@ -339,16 +802,49 @@ public class BrowseClusterItemViewController
     }
 
     private void fetchMessages(AbstractNode node) {
+        cancelCurrentFetch();
+        searchButton.setSelected(false);
+        var filter = compileQuery();
+        if (filter == null && StringUtils.isNotBlank(queryField.getText())) {
+            setLoadingStatus(false);
+            return;
+        }
         setLoadingStatus(true);
         try {
             var topicPartitions = getTopicPartitions(node);
-            kafkaReader.getMessagesAsync(
-                    topicPartitions, maxMessagesToFetch, fetchFrom, this, node);
+            var request =
+                    FetchRequest.builder()
+                            .topicPartitions(topicPartitions)
+                            .maxMessageCount(maxMessagesToFetch)
+                            .maxBytes(maxBytesToFetch)
+                            .cursor(fetchCursor)
+                            .filter(filter)
+                            .build();
+            currentFetch = kafkaReader.getMessagesAsync(request, this, node);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Returns null if the query is blank, or wrong, which is then shown in the status line.
+    private RecordFilter compileQuery() {
+        try {
+            return RecordFilter.compile(queryField.getText());
+        } catch (IllegalArgumentException e) {
+            fetchStatusLabel.setText("Query: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void cancelCurrentFetch() {
+        if (currentFetch != null) {
+            currentFetch.cancel();
+            currentFetch = null;
+        }
+        // after cancel(), so that no batch of the old fetch can carry the new generation
+        ++fetchGeneration;
+    }
+
     private List<TopicPartition> getTopicPartitions(AbstractNode selectedNode) {
         List<TopicPartition> partitions = new ArrayList<>();
 
@@ -369,20 +865,20 @@ public class BrowseClusterItemViewController
         refreshButton.setDisable(isLoading);
     }
 
-    private static List<MessageModel> createMessages(
-            int startRow,
-            List<ConsumerRecord<String, byte[]>> records,
-            MessageFormatter formatter) {
-        final var row =
-                new Object() {
-                    public int value = startRow;
-                };
+    // The formatter of the topic may have changed while the rows were being created, and
+    // the rows missed the pass of Reformatter, which went through the rows held then.
+    private static void restampFormatter(List<MessageModel> messages, MessageFormatter formatter) {
+        for (var message : messages) {
+            if (message.getFormatter() != formatter) {
+                message.setFormatter(formatter);
+            }
+        }
+    }
 
-        var messages =
-                records.stream()
-                        .map(record -> new MessageModel(++row.value, record, formatter))
-                        .collect(Collectors.toList());
-        return messages;
+    private static void numberRows(int startRow, List<MessageModel> messages) {
+        for (int i = 0; i < messages.size(); ++i) {
+            messages.get(i).setIndex(startRow + i + 1);
+        }
     }
 
     private void save(List<MessageModel> messages, String format) {
@@ -394,14 +890,15 @@ public class BrowseClusterItemViewController
                 Paths.get(
                         SAVE_MESSAGE_DIR,
                         kafkaReader.getKafkaInstance().getName(),
-                        message.getRecord().topic(),
+                        message.getTopic(),
                         "" + message.getPartition(),
                         "" + message.getOffset() + format);
 
         try {
             File file = new File(path.toUri());
             file.getParentFile().mkdirs();
-            Files.write(path, message.getRecord().value());
+            var value = message.getValue();
+            Files.write(path, value == null ? new byte[0] : value);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -421,13 +918,43 @@ public class BrowseClusterItemViewController
                     }
                 });
 
+        queryField.setOnAction(
+                actionEvent -> {
+                    messagesTable.requestFocus();
+                    refreshMessages();
+                });
+
+        tailButton
+                .selectedProperty()
+                .addListener(
+                        (observable, wasSelected, selected) -> {
+                            if (selected) {
+                                startTail();
+                            } else {
+                                stopTail();
+                            }
+                        });
+
+        searchButton
+                .selectedProperty()
+                .addListener(
+                        (observable, wasSelected, selected) -> {
+                            if (selected) {
+                                startSearch();
+                            } else {
+                                stopSearch();
+                            }
+                        });
+
         setupMessageCountBox();
+        setupByteLimitBox();
         setupCursorBox();
+        setupSearchToBox();
         setupMessagesFilter();
     }
 
     private void refreshMessages() {
-        currentNode = selectedNode;
+        switchToNode(selectedNode);
         fetchMessages(currentNode);
     }
 
@@ -441,9 +968,12 @@ public class BrowseClusterItemViewController
                 Bindings.createObjectBinding(
                         () ->
                                 message -> {
+                                    // no need to format the message without a filter
                                     var filter = includeField.getText().toLowerCase();
-                                    var body = message.getMessageBody().toLowerCase();
-                                    return StringUtils.isEmpty(filter) || body.contains(filter);
+                                    return StringUtils.isEmpty(filter)
+                                            || message.getMessageBody()
+                                                    .toLowerCase()
+                                                    .contains(filter);
                                 },
                         includeField.textProperty()));
 
@@ -452,8 +982,10 @@ public class BrowseClusterItemViewController
                         () ->
                                 message -> {
                                     var filter = excludeField.getText().toLowerCase();
-                                    var body = message.getMessageBody().toLowerCase();
-                                    return StringUtils.isEmpty(filter) || !body.contains(filter);
+                                    return StringUtils.isEmpty(filter)
+                                            || !message.getMessageBody()
+                                                    .toLowerCase()
+                                                    .contains(filter);
                                 },
                         excludeField.textProperty()));
 
@@ -489,4 +1021,11 @@ public class BrowseClusterItemViewController
             ArrayList<String> nodeNames, String topic, String key, String value) {
         messagesModel.setMessages(currentNode.getMessages());
     }
+
+    public void close() {
+        cancelCurrentFetch();
+        stopTail();
+        stopSearch();
+        kafkaReader.getKafkaInstance().removeConnectionListener(this);
+    }
 }
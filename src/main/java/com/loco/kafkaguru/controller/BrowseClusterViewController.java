@@ -3,8 +3,8 @@ package com.loco.kafkaguru.controller;
 import com.loco.kafkaguru.MessageFormatter;
 import com.loco.kafkaguru.core.KafkaReader;
 import com.loco.kafkaguru.core.PluginLoader;
+import com.loco.kafkaguru.core.TopicMetadataDelta;
 import com.loco.kafkaguru.core.listeners.KafkaConnectionListener;
-import com.loco.kafkaguru.core.listeners.KafkaTopicsListener;
 import com.loco.kafkaguru.viewmodel.AbstractNode;
 import com.loco.kafkaguru.viewmodel.ClusterNode;
 import com.loco.kafkaguru.viewmodel.PartitionNode;
@@ -27,19 +27,24 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 @Log4j2
-public class BrowseClusterViewController
-        implements Initializable, KafkaTopicsListener, KafkaConnectionListener {
+public class BrowseClusterViewController implements Initializable, KafkaConnectionListener {
+    private static final Comparator<TreeItem<AbstractNode>> TOPIC_ITEM_ORDER =
+            Comparator.comparing(item -> item.getValue().toString());
+
     @FXML private TitledPane topicsPane;
     @FXML private TreeView<AbstractNode> topicsTree;
     @FXML private CheckBox followSelectionCheck;
 
     private ContextMenu topicContextMenu;
+    private CheckMenuItem prefetchItem;
+    private MenuItem pausePrefetchItem;
     private KafkaReader kafkaReader;
     private ClusterViewSettings settings;
 
     private List<ClusterItemSelectionListener> treeSelectionListeners = new ArrayList<>();
 
-    private Map<String, List<PartitionInfo>> topics;
+    // key = topic
+    private Map<String, TreeItem<AbstractNode>> topicItems = new HashMap<>();
     private ClusterNode clusterNode;
     private Map<String, String> topicFormats;
     private AbstractNode selectedNode;
@@ -51,6 +56,7 @@ public class BrowseClusterViewController
         this.kafkaReader = kafkaReader;
         this.settings = settings;
         this.clusterNode = new ClusterNode(kafkaReader.getKafkaInstance());
+        this.clusterNode.setTopicNodes(new ArrayList<>());
         this.topicFormats = topicFormats;
 
         kafkaReader.getKafkaInstance().addConnectionListener(this);
@@ -94,6 +100,12 @@ public class BrowseClusterViewController
             topicContextMenu.getItems().add(menuItem);
             menuItem.setOnAction(this::messageFormatChanged);
         }
+        prefetchItem = new CheckMenuItem("Prefetch in Background");
+        prefetchItem.setOnAction(this::prefetchChanged);
+        pausePrefetchItem = new MenuItem("Pause Prefetch");
+        pausePrefetchItem.setOnAction(this::pausePrefetchChanged);
+        topicContextMenu.getItems().add(new SeparatorMenuItem());
+        topicContextMenu.getItems().addAll(prefetchItem, pausePrefetchItem);
         topicsTree.addEventHandler(
                 MouseEvent.MOUSE_RELEASED,
                 e -> {
@@ -152,6 +164,48 @@ public class BrowseClusterViewController
                                 }
                             }
                         });
+
+        var prefetcher = kafkaReader.getKafkaInstance().getPrefetcher();
+        var topicNode = getTopicNode(treeItem.getValue());
+        prefetchItem.setDisable(topicNode == null);
+        prefetchItem.setSelected(false);
+        prefetchItem.setText("Prefetch in Background");
+        if (topicNode != null) {
+            prefetchItem.setSelected(prefetcher.isPrefetched(topicNode.getTopic()));
+            // the lag of the partition clicked, else of the whole topic
+            var node = treeItem.getValue();
+            var lag =
+                    node instanceof PartitionNode
+                            ? prefetcher.getLag(((PartitionNode) node).getTopicPartition())
+                            : prefetcher.getLag(topicNode.getTopic());
+            if (lag != null) {
+                prefetchItem.setText("Prefetch in Background (" + lag + " behind)");
+            }
+        }
+        pausePrefetchItem.setText(
+                String.format(
+                        "%s (%d MB read)",
+                        prefetcher.isPaused() ? "Resume Prefetch" : "Pause Prefetch",
+                        prefetcher.getPrefetchedBytes() / (1024 * 1024)));
+    }
+
+    private void prefetchChanged(ActionEvent event) {
+        var topicNode = getTopicNode((AbstractNode) topicContextMenu.getUserData());
+        if (topicNode != null) {
+            kafkaReader
+                    .getKafkaInstance()
+                    .getPrefetcher()
+                    .setPrefetched(topicNode.getTopic(), prefetchItem.isSelected());
+        }
+    }
+
+    private void pausePrefetchChanged(ActionEvent event) {
+        var prefetcher = kafkaReader.getKafkaInstance().getPrefetcher();
+        if (prefetcher.isPaused()) {
+            prefetcher.resume();
+        } else {
+            prefetcher.pause();
+        }
     }
 
     public void topicPreferenceUpdated(
@@ -196,47 +250,17 @@ public class BrowseClusterViewController
         return topicNode;
     }
 
-    private void createTopicNodes(
-            ClusterNode clusterNode, Map<String, List<PartitionInfo>> topics) {
-        var topicNodes =
-                topics.entrySet().stream()
-                        .map(entry -> createTopicNode(clusterNode, entry))
-                        .collect(Collectors.toList());
-
-        clusterNode.setTopicNodes(topicNodes);
-    }
-
     private TopicNode createTopicNode(
-            ClusterNode clusterNode, Map.Entry<String, List<PartitionInfo>> entry) {
-        var topicNode = new TopicNode(clusterNode, entry.getKey(), entry.getValue());
+            ClusterNode clusterNode, String topic, List<PartitionInfo> partitions) {
+        var topicNode = new TopicNode(clusterNode, topic, partitions);
         // TODO remove partition node creation logic out of TopicNode class
         topicNode.setFormatter(getFormatter(topicNode.getTopic()));
         return topicNode;
     }
 
     private TopicNode getTopicNode(String topic) {
-        var topicItem =
-                topicsTree.getRoot().getChildren().stream()
-                        .filter(
-                                item -> {
-                                    var node = item.getValue();
-                                    if (node instanceof TopicNode) {
-                                        var topicName = ((TopicNode) node).getTopic();
-                                        return topic.equals(topicName);
-                                    }
-                                    return false;
-                                })
-                        .findFirst();
-
-        return topicItem.isEmpty() ? null : (TopicNode) topicItem.get().getValue();
-    }
-
-    private List<TreeItem<AbstractNode>> createTopicItems(ClusterNode clusterNode) {
-        var topicNodes =
-                clusterNode.getTopicNodes().stream()
-                        .map(topicNode -> createTopicItem(topicNode))
-                        .collect(Collectors.toList());
-        return topicNodes;
+        var topicItem = topicItems.get(topic);
+        return topicItem == null ? null : (TopicNode) topicItem.getValue();
     }
 
     private TreeItem<AbstractNode> createTopicItem(TopicNode topicNode) {
@@ -249,45 +273,75 @@ public class BrowseClusterViewController
     }
 
     private List<TreeItem<AbstractNode>> createPartitionItems(TopicNode topicNode) {
-        return topicNode.getPartitions().stream()
+        return createPartitionItems(topicNode.getPartitions());
+    }
+
+    private List<TreeItem<AbstractNode>> createPartitionItems(List<PartitionNode> partitionNodes) {
+        return partitionNodes.stream()
                 .map(p -> new TreeItem<AbstractNode>(p))
                 .collect(Collectors.toList());
     }
 
-    @Override
-    public void topicsUpdated(Map<String, List<PartitionInfo>> newTopics) {
-        if (newTopics == null) {
-            return;
+    // patches the tree in place, so that expansion, selection and loaded messages are kept.
+    // Must be called on the FX thread.
+    public void updateTopicsTree(TopicMetadataDelta delta) {
+        var rootNode = topicsTree.getRoot();
+        var firstUpdate = topicItems.isEmpty();
+
+        var removedItems = new HashSet<TreeItem<AbstractNode>>();
+        for (var topic : delta.getRemovedTopics()) {
+            var topicItem = topicItems.remove(topic);
+            if (topicItem != null) {
+                removedItems.add(topicItem);
+                clusterNode.getTopicNodes().remove(topicItem.getValue());
+            }
         }
-        try {
-            if (topics == null || !newTopics.keySet().equals(topics.keySet())) {
-                Platform.runLater(
-                        new Runnable() {
-                            @Override
-                            public void run() {
-                                updateTopicsTree(newTopics);
+        rootNode.getChildren().removeAll(removedItems);
+
+        delta.getChangedTopics()
+                .forEach(
+                        (topic, partitions) -> {
+                            var topicItem = topicItems.get(topic);
+                            if (topicItem != null) {
+                                var topicNode = (TopicNode) topicItem.getValue();
+                                var addedPartitions = topicNode.updatePartitions(partitions);
+                                topicItem
+                                        .getChildren()
+                                        .addAll(createPartitionItems(addedPartitions));
+                            }
+                        });
+
+        var addedItems = new ArrayList<TreeItem<AbstractNode>>();
+        delta.getAddedTopics()
+                .forEach(
+                        (topic, partitions) -> {
+                            if (!topicItems.containsKey(topic)) {
+                                var topicNode = createTopicNode(clusterNode, topic, partitions);
+                                clusterNode.getTopicNodes().add(topicNode);
+                                var topicItem = createTopicItem(topicNode);
+                                topicItems.put(topic, topicItem);
+                                addedItems.add(topicItem);
                             }
                         });
+        if (firstUpdate) {
+            addedItems.sort(TOPIC_ITEM_ORDER);
+            rootNode.getChildren().setAll(addedItems);
+        } else {
+            // inserting one by one keeps the selection of the surrounding items intact
+            var children = rootNode.getChildren();
+            for (var topicItem : addedItems) {
+                var index = Collections.binarySearch(children, topicItem, TOPIC_ITEM_ORDER);
+                children.add(index < 0 ? -index - 1 : index, topicItem);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-    }
 
-    private void updateTopicsTree(Map<String, List<PartitionInfo>> newTopics) {
-        var rootNode = topicsTree.getRoot();
-        topics = newTopics;
-        rootNode.getChildren().clear();
+        if (firstUpdate) {
+            rootNode.setExpanded(true);
 
-        createTopicNodes(clusterNode, topics);
-        var topicItems = createTopicItems(clusterNode);
-        rootNode.getChildren().addAll(topicItems);
-
-        rootNode.setExpanded(true);
-
-        var lastSelectedTreeItem = getLastSelectedTreeItem(rootNode);
-        if (lastSelectedTreeItem != null) {
-            topicsTree.getSelectionModel().select(lastSelectedTreeItem);
+            var lastSelectedTreeItem = getLastSelectedTreeItem(rootNode);
+            if (lastSelectedTreeItem != null) {
+                topicsTree.getSelectionModel().select(lastSelectedTreeItem);
+            }
         }
     }
 
@@ -347,6 +401,11 @@ public class BrowseClusterViewController
         treeSelectionListeners.remove(listener);
     }
 
+    public void close() {
+        kafkaReader.getKafkaInstance().removeConnectionListener(this);
+        treeSelectionListeners.clear();
+    }
+
     @Override
     public void connected(String id, boolean really) {}
 
@@ -3,9 +3,11 @@ package com.loco.kafkaguru.controller;
 import com.loco.kafkaguru.core.KafkaInstance;
 import com.loco.kafkaguru.core.KafkaReader;
 import com.loco.kafkaguru.core.listeners.KafkaConnectionListener;
+import com.loco.kafkaguru.core.listeners.KafkaMetadataListener;
 import com.loco.kafkaguru.view.BrowseClusterItemView;
 import com.loco.kafkaguru.view.BrowseClusterView;
 import com.loco.kafkaguru.viewmodel.*;
+import javafx.application.Platform;
 import javafx.beans.property.*;
 import javafx.beans.value.ChangeListener;
 import javafx.fxml.FXML;
@@ -41,6 +43,8 @@ public class KafkaViewController
 
     private ChangeListener<Number> dividerListener;
 
+    private KafkaMetadataListener metadataListener;
+
     public KafkaViewController(
             KafkaInstance kafkaInstance, TabSettings settings, Map<String, String> topicFormats) {
         clusterId = kafkaInstance.getClusterInfo().getId();
@@ -62,6 +66,17 @@ public class KafkaViewController
 
         browseClusterController.addItemSelectionListener(browseClusterItemController);
         browseClusterController.addItemSelectionListener(this);
+
+        metadataListener =
+                delta ->
+                        Platform.runLater(
+                                () -> {
+                                    topicMessageDividerPos.removeListener(dividerListener);
+                                    var lastDividerPos = settings.getDividerPosition();
+                                    browseClusterController.updateTopicsTree(delta);
+                                    topicMessageDividerPos.set(lastDividerPos);
+                                    topicMessageDividerPos.addListener(dividerListener);
+                                });
     }
 
     @Override
@@ -79,12 +94,25 @@ public class KafkaViewController
         var lastDividerPos = settings.getDividerPosition();
         topicMessageDividerPos.set(lastDividerPos);
 
+        // shows the topics saved by the last run right away, if any
+        kafkaInstance.getMetadataService().addListener(metadataListener);
+
         // TODO report connection error
-        if (!StringUtils.isEmpty(kafkaInstance.getUrl())) {
+        if (kafkaInstance.isConnected()) {
+            // another tab of the same cluster has already connected
+            connected(clusterId, true);
+        } else if (!StringUtils.isEmpty(kafkaInstance.getUrl())) {
             kafkaInstance.connectAsync();
         }
     }
 
+    public void close() {
+        kafkaInstance.removeConnectionListener(this);
+        kafkaInstance.getMetadataService().removeListener(metadataListener);
+        browseClusterController.close();
+        browseClusterItemController.close();
+    }
+
     private void removeClusterNode() {
         //        parent.destroy(this);
         var removeCluster =
@@ -105,14 +133,13 @@ public class KafkaViewController
     @Override
     public void connected(String clusterId, boolean really) {
         if (really) {
-            kafkaInstance.refreshTopicsAsync(
-                    topics -> {
-                        topicMessageDividerPos.removeListener(dividerListener);
-                        var lastDividerPos = settings.getDividerPosition();
-                        browseClusterController.topicsUpdated(topics);
-                        topicMessageDividerPos.set(lastDividerPos);
-                        topicMessageDividerPos.addListener(dividerListener);
-                    });
+            var metadataService = kafkaInstance.getMetadataService();
+            // delivers the cached topics right away if another tab has loaded them
+            metadataService.addListener(metadataListener);
+            // the saved topics are brought up to date, the tree gets the differences
+            if (!metadataService.isRefreshed()) {
+                kafkaInstance.refreshTopicsAsync(topics -> {});
+            }
         } else {
             //            Platform.runLater(() -> removeClusterNode());
         }
@@ -1,7 +1,9 @@
 package com.loco.kafkaguru.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.loco.kafkaguru.core.CoreSettings;
 import com.loco.kafkaguru.core.KafkaInstance;
+import com.loco.kafkaguru.core.KafkaInstanceRegistry;
 import com.loco.kafkaguru.core.PluginLoader;
 import com.loco.kafkaguru.core.listeners.KafkaConnectionListener;
 import com.loco.kafkaguru.model.KafkaClusterInfo;
@@ -41,11 +43,18 @@ public class MainWindowController
     private Map<String, KafkaClusterInfo> clusters = new HashMap<>();
     // key = controller id
     private Map<String, KafkaViewController> controllers = new HashMap<>();
+    private KafkaInstanceRegistry kafkaInstances;
 
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
         PluginLoader.loadPlugins();
         settings = readSettings();
+        kafkaInstances =
+                new KafkaInstanceRegistry(
+                        settings.getCoreSettings(),
+                        settings.getFetchProfiles(),
+                        settings.getPrefetchSettings());
+        kafkaInstances.addConnectionListener(this);
         clusters = settings.getClusters();
         createMenuItems(clusters);
         controllers = new TreeMap<>();
@@ -67,6 +76,15 @@ public class MainWindowController
         if (settings == null) {
             settings = MainWindowSettings.createNew();
         }
+        if (settings.getCoreSettings() == null) {
+            settings.setCoreSettings(CoreSettings.createNew());
+        }
+        if (settings.getFetchProfiles() == null) {
+            settings.setFetchProfiles(new TreeMap<>());
+        }
+        if (settings.getPrefetchSettings() == null) {
+            settings.setPrefetchSettings(new TreeMap<>());
+        }
         return settings;
     }
 
@@ -228,9 +246,19 @@ public class MainWindowController
     }
 
     private KafkaInstance createKafkaInstance(KafkaClusterInfo cluster) {
-        var kafkaInstance = new KafkaInstance(cluster);
-        kafkaInstance.addConnectionListener(this);
-        return kafkaInstance;
+        return kafkaInstances.acquire(cluster);
+    }
+
+    private void closeController(KafkaViewController controller) {
+        controller.close();
+        kafkaInstances.release(controller.getClusterId());
+    }
+
+    // called when the application stops, to shut the consumers of every cluster down
+    public void shutdown() {
+        log.info("Closing all tabs");
+        controllers.values().forEach(KafkaViewController::close);
+        kafkaInstances.closeAll();
     }
 
     public void onRemoveCluster(ActionEvent event) {
@@ -259,7 +287,7 @@ public class MainWindowController
                         .map(entry -> entry.getKey())
                         .collect(Collectors.toList());
 
-        clusterControllerIds.forEach(id -> controllers.remove(id));
+        clusterControllerIds.forEach(id -> closeController(controllers.remove(id)));
 
         tabPane.getTabs().removeIf(tab -> clusterControllerIds.contains(tab.getId()));
         settings.getClusterTabs().remove(clusterId);
@@ -277,6 +305,7 @@ public class MainWindowController
         log.info("active tab title = " + activeTab.getText());
         var controller = controllers.remove(tabId);
         log.info("removed controller with id = " + tabId);
+        closeController(controller);
         var tabSettings = controller.getSettings();
         log.info("tabSettings = " + tabSettings);
         var clusterTabs = settings.getClusterTabs().get(controller.getClusterId());
@@ -1,5 +1,8 @@
 package com.loco.kafkaguru.controller;
 
+import com.loco.kafkaguru.core.CoreSettings;
+import com.loco.kafkaguru.core.FetchProfile;
+import com.loco.kafkaguru.core.PrefetchSettings;
 import com.loco.kafkaguru.model.KafkaClusterInfo;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -24,12 +27,20 @@ public class MainWindowSettings {
     private Map<String, List<TabSettings>> clusterTabs;
     // key = cluster id, value = formatter id
     private Map<String, String> topicFormats;
+    private CoreSettings coreSettings;
+    // key = cluster id, value = map of topic to what has been learned about fetching it
+    private Map<String, Map<String, FetchProfile>> fetchProfiles;
+    // key = cluster id, value = the topics prefetched in the background
+    private Map<String, PrefetchSettings> prefetchSettings;
 
     public static MainWindowSettings createNew() {
         return builder()
                 .clusters(new TreeMap<>())
                 .clusterTabs(new TreeMap<>())
                 .topicFormats(new TreeMap<>())
+                .coreSettings(CoreSettings.createNew())
+                .fetchProfiles(new TreeMap<>())
+                .prefetchSettings(new TreeMap<>())
                 .build();
     }
 }
@@ -0,0 +1,333 @@
+package com.loco.kafkaguru.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Decides which entries a cache bounded in bytes keeps, after W-TinyLFU. New entries go
+// to a small window kept in LRU order. An entry pushed out of the window joins the
+// main part only if it has been used more often, going by a sketch of the recent
+// accesses, than the entry it would push out there; so a single scan of many entries
+// cannot flush those in steady use. The main part is a segmented LRU, where entries
+// used again move from probation to a protected segment.
+class CachePolicy<K> {
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private enum Region {
+        WINDOW,
+        PROBATION,
+        PROTECTED
+    }
+
+    private static class Entry {
+        private Region region;
+        private long weight;
+
+        private Entry(Region region, long weight) {
+            this.region = region;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxBytes;
+    private final FrequencySketch sketch;
+    private final Map<K, Entry> entries = new HashMap<>();
+    // oldest first; an entry is moved to the end by putting it again
+    private final LinkedHashMap<K, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Entry> protectedSegment = new LinkedHashMap<>();
+    private long windowBytes = 0;
+    private long protectedBytes = 0;
+    private long totalBytes = 0;
+
+    private long hitCount = 0;
+    private long hitBytes = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long evictedBytes = 0;
+    private long rejectedCount = 0;
+
+    CachePolicy(long maxBytes, int expectedEntries) {
+        this.maxBytes = maxBytes;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    void recordHit(long bytes) {
+        ++hitCount;
+        hitBytes += bytes;
+    }
+
+    void recordMiss() {
+        ++missCount;
+    }
+
+    void recordAccess(K key) {
+        sketch.increment(key);
+        var entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        switch (entry.region) {
+            case WINDOW:
+                moveToEnd(window, key, entry);
+                break;
+            case PROBATION:
+                probation.remove(key);
+                entry.region = Region.PROTECTED;
+                protectedSegment.put(key, entry);
+                protectedBytes += entry.weight;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                moveToEnd(protectedSegment, key, entry);
+                break;
+        }
+    }
+
+    // adds an entry to the window, or changes the weight of one held
+    void setWeight(K key, long weight) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(Region.WINDOW, weight);
+            entries.put(key, entry);
+            window.put(key, entry);
+            windowBytes += weight;
+            totalBytes += weight;
+            sketch.increment(key);
+            return;
+        }
+        var change = weight - entry.weight;
+        entry.weight = weight;
+        totalBytes += change;
+        if (entry.region == Region.WINDOW) {
+            windowBytes += change;
+        } else if (entry.region == Region.PROTECTED) {
+            protectedBytes += change;
+        }
+    }
+
+    void remove(K key) {
+        var entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        regionOf(entry).remove(key);
+        totalBytes -= entry.weight;
+        if (entry.region == Region.WINDOW) {
+            windowBytes -= entry.weight;
+        } else if (entry.region == Region.PROTECTED) {
+            protectedBytes -= entry.weight;
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowBytes = 0;
+        protectedBytes = 0;
+        totalBytes = 0;
+    }
+
+    // Returns the entries to drop to fit in maxBytes, which are no longer held here.
+    // The current entry, just added to, is not among them.
+    List<K> evict(K current) {
+        // the entries leaving the window are candidates for the main part
+        var candidates = new ArrayDeque<K>();
+        var windowMax = (long) (maxBytes * WINDOW_SHARE);
+        for (var key : new ArrayList<>(window.keySet())) {
+            if (windowBytes <= windowMax) {
+                break;
+            }
+            if (key.equals(current)) {
+                continue;
+            }
+            var entry = window.remove(key);
+            windowBytes -= entry.weight;
+            entry.region = Region.PROBATION;
+            probation.put(key, entry);
+            candidates.add(key);
+        }
+
+        var evicted = new ArrayList<K>();
+        while (totalBytes > maxBytes) {
+            var candidate = first(candidates, current);
+            var victim = findVictim(current, candidates);
+            K loser;
+            if (candidate != null && victim != null) {
+                if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                    loser = victim;
+                } else {
+                    loser = candidate;
+                    ++rejectedCount;
+                }
+            } else if (candidate != null) {
+                loser = candidate;
+            } else if (victim != null) {
+                loser = victim;
+            } else {
+                break;
+            }
+            // a candidate which is not the loser stays in probation
+            if (candidate != null) {
+                candidates.remove(candidate);
+            }
+            var weight = entries.get(loser).weight;
+            remove(loser);
+            ++evictionCount;
+            evictedBytes += weight;
+            evicted.add(loser);
+        }
+        return evicted;
+    }
+
+    CacheStats getStats() {
+        return CacheStats.builder()
+                .hitCount(hitCount)
+                .hitBytes(hitBytes)
+                .missCount(missCount)
+                .evictionCount(evictionCount)
+                .evictedBytes(evictedBytes)
+                .rejectedCount(rejectedCount)
+                .entryCount(entries.size())
+                .totalBytes(totalBytes)
+                .maxBytes(maxBytes)
+                .build();
+    }
+
+    // the oldest entry of probation which is not a candidate, else of the protected
+    // segment, else of the window
+    private K findVictim(K current, ArrayDeque<K> candidates) {
+        for (var key : probation.keySet()) {
+            if (!key.equals(current) && !candidates.contains(key)) {
+                return key;
+            }
+        }
+        for (var key : protectedSegment.keySet()) {
+            if (!key.equals(current)) {
+                return key;
+            }
+        }
+        for (var key : window.keySet()) {
+            if (!key.equals(current)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private K first(ArrayDeque<K> candidates, K current) {
+        for (var key : candidates) {
+            if (!key.equals(current)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    // moves the oldest protected entries back to probation once the segment is full
+    private void demoteProtected() {
+        var protectedMax = (long) ((maxBytes - maxBytes * WINDOW_SHARE) * PROTECTED_SHARE);
+        var iterator = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedMax && protectedSegment.size() > 1) {
+            var oldest = iterator.next();
+            iterator.remove();
+            var entry = oldest.getValue();
+            protectedBytes -= entry.weight;
+            entry.region = Region.PROBATION;
+            probation.put(oldest.getKey(), entry);
+        }
+    }
+
+    private LinkedHashMap<K, Entry> regionOf(Entry entry) {
+        switch (entry.region) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedSegment;
+        }
+    }
+
+    private void moveToEnd(LinkedHashMap<K, Entry> region, K key, Entry entry) {
+        region.remove(key);
+        region.put(key, entry);
+    }
+
+    // Counts of the recent accesses of the keys, as a count-min sketch of four rows of
+    // 4-bit counters. All the counts are halved once the samples reach ten times the
+    // width, so that what was used often long ago gives way to what is used now.
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] rows;
+        private final int mask;
+        private final int sampleSize;
+        private int samples = 0;
+
+        private FrequencySketch(int expectedEntries) {
+            var width = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+            rows = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private void increment(Object key) {
+            var hash = spread(key.hashCode());
+            for (int i = 0; i < rows.length; ++i) {
+                var index = indexOf(hash, i);
+                if (rows[i][index] < MAX_COUNT) {
+                    ++rows[i][index];
+                }
+            }
+            // counted even when saturated, else a set in steady use would stop the aging
+            if (++samples >= sampleSize) {
+                halve();
+            }
+        }
+
+        private int frequency(Object key) {
+            var hash = spread(key.hashCode());
+            var frequency = MAX_COUNT;
+            for (int i = 0; i < rows.length; ++i) {
+                frequency = Math.min(frequency, rows[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private void halve() {
+            for (var row : rows) {
+                for (int j = 0; j < row.length; ++j) {
+                    row[j] >>= 1;
+                }
+            }
+            samples /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            var h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45D9F3B;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
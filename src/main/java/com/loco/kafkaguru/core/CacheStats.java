@@ -0,0 +1,27 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Builder;
+import lombok.Data;
+
+// Counters of a cache since it was created, to size it by
+@Data
+@Builder
+public class CacheStats {
+    // parts of the ranges asked for which were held, and their bytes
+    private final long hitCount;
+    private final long hitBytes;
+    // parts of the ranges asked for which were not held
+    private final long missCount;
+    private final long evictionCount;
+    private final long evictedBytes;
+    // entries new to the cache which were dropped rather than push out more used ones
+    private final long rejectedCount;
+    private final int entryCount;
+    private final long totalBytes;
+    private final long maxBytes;
+
+    public double getHitRate() {
+        var count = hitCount + missCount;
+        return count == 0 ? 0 : (double) hitCount / count;
+    }
+}
@@ -0,0 +1,54 @@
+package com.loco.kafkaguru.core;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// Adds what a consumer reads to the message cache. A poll returns all the records of a
+// partition from its previous position up to its new one, so each poll extends the run
+// of offsets held from where the partition was last sought.
+class CacheWriter {
+    private final MessageCache cache;
+    // key = partition being read, value = offset read up to so far
+    private final Map<TopicPartition, Long> positions = new HashMap<>();
+    // key = partition being read, value = offset not to cache from
+    private final Map<TopicPartition, Long> limits = new HashMap<>();
+
+    CacheWriter(MessageCache cache) {
+        this.cache = cache;
+    }
+
+    // the consumer has been sought to offset, and reads up to limit
+    void start(TopicPartition tp, long offset, long limit) {
+        positions.put(tp, offset);
+        limits.put(tp, limit);
+    }
+
+    void stop(TopicPartition tp) {
+        positions.remove(tp);
+        limits.remove(tp);
+    }
+
+    void add(Consumer<String, byte[]> consumer, ConsumerRecords<String, byte[]> records) {
+        for (var tp : records.partitions()) {
+            var from = positions.get(tp);
+            if (from == null) {
+                continue;
+            }
+            var to = Math.min(consumer.position(tp), limits.get(tp));
+            var partitionRecords = new ArrayList<ConsumerRecord<String, byte[]>>();
+            for (var record : records.records(tp)) {
+                if (record.offset() >= from && record.offset() < to) {
+                    partitionRecords.add(record);
+                }
+            }
+            cache.put(tp, from, to, partitionRecords);
+            positions.put(tp, Math.max(from, to));
+        }
+    }
+}
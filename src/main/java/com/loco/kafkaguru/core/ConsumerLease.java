@@ -0,0 +1,52 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+
+public class ConsumerLease implements AutoCloseable {
+    private final ConsumerPool pool;
+    @Getter private final KafkaConsumer<String, byte[]> consumer;
+    @Getter private final FetchConfig config;
+    @Getter private boolean invalid = false;
+    // a wakeup that the consumer has not thrown yet would break the next poll of another lessee
+    @Getter private boolean wakeupPending = false;
+    private boolean released = false;
+
+    ConsumerLease(
+            @NonNull ConsumerPool pool,
+            @NonNull KafkaConsumer<String, byte[]> consumer,
+            @NonNull FetchConfig config) {
+        this.pool = pool;
+        this.consumer = consumer;
+        this.config = config;
+    }
+
+    // the consumer is closed on release instead of going back to the pool
+    public void invalidate() {
+        invalid = true;
+    }
+
+    // makes a blocking poll of the lessee throw WakeupException
+    public synchronized void wakeup() {
+        if (released) {
+            return;
+        }
+        wakeupPending = true;
+        consumer.wakeup();
+    }
+
+    // to be called when the lessee has caught the WakeupException
+    public synchronized void wakeupConsumed() {
+        wakeupPending = false;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (released) {
+            return;
+        }
+        released = true;
+        pool.release(this);
+    }
+}
@@ -0,0 +1,151 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.TimeoutException;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+@Log4j2
+public class ConsumerPool {
+    private final Function<FetchConfig, KafkaConsumer<String, byte[]>> consumerFactory;
+    @Getter private final int maxSize;
+    private final Semaphore permits;
+    // most recently used first
+    private final Deque<KafkaConsumer<String, byte[]>> idleConsumers = new ArrayDeque<>();
+    // key = every consumer of the pool, value = the config it was created with
+    private final Map<KafkaConsumer<String, byte[]>, FetchConfig> allConsumers =
+            new IdentityHashMap<>();
+    private boolean closed = false;
+
+    public ConsumerPool(
+            @NonNull Function<FetchConfig, KafkaConsumer<String, byte[]>> consumerFactory,
+            int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Consumer pool size should be at least 1");
+        }
+        this.consumerFactory = consumerFactory;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public ConsumerLease lease(@NonNull FetchConfig config, Duration timeout)
+            throws KafkaException {
+        try {
+            if (!permits.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException(
+                        "No consumer became available within " + timeout.toMillis() + " ms");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptException(e);
+        }
+        return acquire(config);
+    }
+
+    // returns null when all the consumers are leased out
+    public ConsumerLease tryLease(@NonNull FetchConfig config) throws KafkaException {
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+        return acquire(config);
+    }
+
+    private ConsumerLease acquire(FetchConfig config) {
+        try {
+            KafkaConsumer<String, byte[]> consumer = null;
+            KafkaConsumer<String, byte[]> consumerToClose = null;
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Consumer pool is closed");
+                }
+                for (var idleConsumer : idleConsumers) {
+                    if (allConsumers.get(idleConsumer).equals(config)) {
+                        consumer = idleConsumer;
+                        break;
+                    }
+                }
+                if (consumer != null) {
+                    idleConsumers.remove(consumer);
+                } else if (allConsumers.size() >= maxSize) {
+                    // makes room by dropping the least recently used consumer of another config
+                    consumerToClose = idleConsumers.pollLast();
+                    allConsumers.remove(consumerToClose);
+                }
+            }
+            if (consumerToClose != null) {
+                closeQuietly(consumerToClose);
+            }
+            if (consumer == null) {
+                consumer = consumerFactory.apply(config);
+                synchronized (this) {
+                    allConsumers.put(consumer, config);
+                }
+                log.info(
+                        "Created pooled consumer for {}, pool now has {} consumers",
+                        config,
+                        allConsumers.size());
+            }
+            return new ConsumerLease(this, consumer, config);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(ConsumerLease lease) {
+        var consumer = lease.getConsumer();
+        var reuse = !lease.isInvalid() && !lease.isWakeupPending();
+        if (reuse) {
+            try {
+                consumer.unsubscribe();
+            } catch (KafkaException e) {
+                log.warn("Failed to reset pooled consumer, closing it", e);
+                reuse = false;
+            }
+        }
+        synchronized (this) {
+            if (closed || !reuse) {
+                allConsumers.remove(consumer);
+                closeQuietly(consumer);
+            } else {
+                idleConsumers.addFirst(consumer);
+            }
+        }
+        permits.release();
+    }
+
+    public synchronized int getIdleCount() {
+        return idleConsumers.size();
+    }
+
+    public int getLeasedCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        // leased consumers are closed by their release
+        idleConsumers.forEach(ConsumerPool::closeQuietly);
+        idleConsumers.forEach(allConsumers::remove);
+        idleConsumers.clear();
+    }
+
+    private static void closeQuietly(KafkaConsumer<String, byte[]> consumer) {
+        try {
+            consumer.close(Duration.ofSeconds(1));
+        } catch (KafkaException e) {
+            log.warn("Failed to close consumer", e);
+        }
+    }
+}
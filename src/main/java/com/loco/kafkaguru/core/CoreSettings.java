@@ -0,0 +1,53 @@
+package com.loco.kafkaguru.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CoreSettings {
+    // max number of fetch consumers per cluster, metadata client not included
+    @Builder.Default private int consumerPoolSize = 4;
+    @Builder.Default private long consumerLeaseTimeoutMs = 30_000;
+    // max number of background tasks running at the same time per cluster
+    @Builder.Default private int maxConcurrentTasks = 8;
+    // topic metadata is refreshed in the background once it is older than this
+    @Builder.Default private long metadataTtlMs = 60_000;
+    @Builder.Default private long metadataRequestTimeoutMs = 15_000;
+    // read the partitions of a topic with several consumers, merged by timestamp
+    @Builder.Default private boolean parallelFetch = true;
+    // records buffered per partition during a parallel fetch, before it is paused
+    @Builder.Default private int fetchBufferPerPartition = 1_000;
+    // a fetch stops early when less heap than this is free
+    @Builder.Default private long fetchMinFreeHeapBytes = 64 * 1024 * 1024;
+    // limits of the poll sizes chosen by FetchTuner
+    @Builder.Default private int minPollRecords = 100;
+    @Builder.Default private int maxPollRecords = 10_000;
+    @Builder.Default private int minPartitionFetchBytes = 100_000;
+    @Builder.Default private int maxPartitionFetchBytes = 16 * 1024 * 1024;
+    // what FetchTuner aims for in a single poll
+    @Builder.Default private long fetchTargetBytes = 4 * 1024 * 1024;
+    @Builder.Default private long fetchTargetLatencyMs = 1_000;
+    // records a tail holds for the view, the oldest ones are dropped beyond that
+    @Builder.Default private int tailBufferSize = 10_000;
+    // the oldest rows are removed from the view beyond that while tailing
+    @Builder.Default private int tailMaxRows = 5_000;
+    // records kept in memory per cluster, so that they are not read again
+    @Builder.Default private long messageCacheMaxBytes = 256 * 1024 * 1024;
+    // records kept on disk per cluster, so that they survive a restart; 0 for none
+    @Builder.Default private long diskCacheMaxBytes = 2L * 1024 * 1024 * 1024;
+    // size of a file of the disk cache, beyond which another is started
+    @Builder.Default private long diskCacheSegmentBytes = 64 * 1024 * 1024;
+    // read rate of the background prefetch per cluster, 0 for no limit
+    @Builder.Default private long prefetchMaxBytesPerSecond = 1024 * 1024;
+    // latest records per partition the prefetch starts with
+    @Builder.Default private int prefetchBacklog = 1_000;
+
+    public static CoreSettings createNew() {
+        return CoreSettings.builder().build();
+    }
+}
@@ -0,0 +1,84 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Counts what a fetch has taken, and tells when it has to stop
+class FetchBudget {
+    private final int maxMessageCount;
+    private final long maxBytes;
+    private final long minFreeHeapBytes;
+    @Getter private int messageCount = 0;
+    @Getter private long byteCount = 0;
+    // null as long as the fetch may go on
+    @Getter private FetchStopReason stopReason;
+
+    FetchBudget(FetchRequest request, CoreSettings settings) {
+        this.maxMessageCount = request.getMaxMessageCount();
+        this.maxBytes = request.getMaxBytes();
+        this.minFreeHeapBytes = settings.getFetchMinFreeHeapBytes();
+    }
+
+    static int sizeOf(ConsumerRecord<String, byte[]> record) {
+        return Math.max(record.serializedKeySize(), 0) + Math.max(record.serializedValueSize(), 0);
+    }
+
+    int getRemainingCount() {
+        return maxMessageCount - messageCount;
+    }
+
+    boolean isExhausted() {
+        return stopReason != null;
+    }
+
+    // 0 if there is no limit
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // for a fetch which holds records before taking them; stops it if the heap runs low
+    boolean checkMemory() {
+        if (stopReason == null && getFreeHeapBytes() < minFreeHeapBytes) {
+            stopReason = FetchStopReason.MEMORY_LIMIT;
+        }
+        return stopReason == null;
+    }
+
+    // Returns the leading records which fit in the budget. The first record of a fetch is
+    // always taken, even if it alone is bigger than the byte limit.
+    List<ConsumerRecord<String, byte[]>> take(List<ConsumerRecord<String, byte[]>> records) {
+        var taken = new ArrayList<ConsumerRecord<String, byte[]>>();
+        for (var record : records) {
+            if (messageCount >= maxMessageCount) {
+                stopReason = FetchStopReason.MESSAGE_LIMIT;
+                break;
+            }
+            var size = sizeOf(record);
+            if (maxBytes > 0 && messageCount > 0 && byteCount + size > maxBytes) {
+                stopReason = FetchStopReason.BYTE_LIMIT;
+                break;
+            }
+            taken.add(record);
+            ++messageCount;
+            byteCount += size;
+        }
+
+        if (stopReason == null && messageCount >= maxMessageCount) {
+            stopReason = FetchStopReason.MESSAGE_LIMIT;
+        } else if (stopReason == null && maxBytes > 0 && byteCount >= maxBytes) {
+            stopReason = FetchStopReason.BYTE_LIMIT;
+        } else if (stopReason == null && getFreeHeapBytes() < minFreeHeapBytes) {
+            stopReason = FetchStopReason.MEMORY_LIMIT;
+        }
+        return taken;
+    }
+
+    // garbage not collected yet counts as used, so this errs on the safe side
+    private static long getFreeHeapBytes() {
+        var runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
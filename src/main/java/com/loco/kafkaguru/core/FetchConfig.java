@@ -0,0 +1,17 @@
+package com.loco.kafkaguru.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// The consumer settings that control how much a poll returns. Consumers are pooled
+// per config, so the values are kept to powers of two to limit the variety.
+@Data
+@AllArgsConstructor
+public class FetchConfig {
+    private final int maxPollRecords;
+    private final int maxPartitionFetchBytes;
+
+    public String toString() {
+        return maxPollRecords + " records, " + maxPartitionFetchBytes / 1024 + " KB per partition";
+    }
+}
@@ -0,0 +1,108 @@
+package com.loco.kafkaguru.core;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+// Where a fetch starts from
+@Data
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class FetchCursor {
+    public enum Type {
+        BEGINNING,
+        END,
+        OFFSET,
+        TIMESTAMP
+    }
+
+    public static final FetchCursor BEGINNING = new FetchCursor(Type.BEGINNING, 0);
+    public static final FetchCursor END = new FetchCursor(Type.END, -1);
+
+    public static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final List<DateTimeFormatter> DATE_TIME_FORMATS =
+            List.of(
+                    TIME_FORMAT,
+                    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"),
+                    DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    private static final List<DateTimeFormatter> TIME_OF_DAY_FORMATS =
+            List.of(DateTimeFormatter.ofPattern("HH:mm:ss"), DateTimeFormatter.ofPattern("HH:mm"));
+
+    private final Type type;
+    // offset or epoch millis, depending on the type
+    private final long value;
+
+    public static FetchCursor offset(long offset) {
+        return new FetchCursor(Type.OFFSET, offset);
+    }
+
+    public static FetchCursor timestamp(long epochMillis) {
+        return new FetchCursor(Type.TIMESTAMP, epochMillis);
+    }
+
+    // Accepts "Beginning", "End", an offset, or a local date and time. A time without
+    // a date is taken as today. Returns null if the text is none of them.
+    public static FetchCursor parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        text = text.trim();
+        if (text.equalsIgnoreCase("Beginning")) {
+            return BEGINNING;
+        }
+        if (text.equalsIgnoreCase("End")) {
+            return END;
+        }
+        try {
+            var offset = Long.parseLong(text);
+            return offset < 0 ? null : offset(offset);
+        } catch (NumberFormatException e) {
+            // not an offset
+        }
+        try {
+            return timestamp(Instant.parse(text).toEpochMilli());
+        } catch (DateTimeParseException e) {
+            // not an instant
+        }
+        for (var format : DATE_TIME_FORMATS) {
+            try {
+                return timestamp(toEpochMillis(LocalDateTime.parse(text, format)));
+            } catch (DateTimeParseException e) {
+                // try the next format
+            }
+        }
+        for (var format : TIME_OF_DAY_FORMATS) {
+            try {
+                var dateTime = LocalDate.now().atTime(LocalTime.parse(text, format));
+                return timestamp(toEpochMillis(dateTime));
+            } catch (DateTimeParseException e) {
+                // try the next format
+            }
+        }
+        return null;
+    }
+
+    private static long toEpochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public String toString() {
+        switch (type) {
+            case BEGINNING:
+                return "Beginning";
+            case END:
+                return "End";
+            case OFFSET:
+                return String.valueOf(value);
+            default:
+                return TIME_FORMAT.format(
+                        LocalDateTime.ofInstant(
+                                Instant.ofEpochMilli(value), ZoneId.systemDefault()));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+// A running fetch. Cancelling it wakes up the consumers it has leased, so that
+// the fetch stops and returns them to the pool right away.
+@Log4j2
+public class FetchHandle {
+    @Getter private final Object sender;
+    private final List<ConsumerLease> leases = new ArrayList<>();
+    private Future<?> future;
+    private boolean cancelled = false;
+    private FetchStopReason stopReason;
+
+    FetchHandle(Object sender) {
+        this.sender = sender;
+    }
+
+    synchronized void setFuture(Future<?> future) {
+        this.future = future;
+        if (cancelled) {
+            future.cancel(false);
+        }
+    }
+
+    synchronized void addLease(ConsumerLease lease) {
+        leases.add(lease);
+        if (cancelled) {
+            lease.wakeup();
+        }
+    }
+
+    synchronized void removeLease(ConsumerLease lease) {
+        leases.remove(lease);
+    }
+
+    // Runs the delivery unless the fetch is cancelled. Once cancel() has returned, no
+    // further deliveries happen.
+    synchronized boolean deliver(Runnable delivery) {
+        if (cancelled) {
+            return false;
+        }
+        delivery.run();
+        return true;
+    }
+
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (stopReason == null) {
+                stopReason = FetchStopReason.CANCELLED;
+            }
+            leases.forEach(ConsumerLease::wakeup);
+            if (future != null) {
+                // a queued fetch never starts, a running one is stopped by the wakeup
+                future.cancel(false);
+            }
+        }
+        log.info("Cancelled fetch for {}", sender);
+    }
+
+    // set before the last batch is delivered
+    synchronized void setStopReason(FetchStopReason stopReason) {
+        if (this.stopReason == null) {
+            this.stopReason = stopReason;
+        }
+    }
+
+    // null while the fetch is running
+    public synchronized FetchStopReason getStopReason() {
+        return stopReason;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return future != null && future.isDone();
+    }
+}
@@ -0,0 +1,18 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// What has been learned about fetching a topic, saved with the settings
+@Data
+@NoArgsConstructor
+public class FetchProfile {
+    private long pollCount;
+    // moving averages over the recent non empty polls
+    private double averageRecordBytes;
+    private double averagePollMillis;
+    private int maxRecordBytes;
+    // the config to use for the next fetch
+    private int maxPollRecords;
+    private int maxPartitionFetchBytes;
+}
@@ -0,0 +1,20 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
+
+@Getter
+@Builder
+public class FetchRequest {
+    @NonNull private final List<TopicPartition> topicPartitions;
+    @Builder.Default private final int maxMessageCount = 50;
+    // total size of the keys and values to fetch at most, 0 for no limit
+    @Builder.Default private final long maxBytes = 0;
+    @NonNull @Builder.Default private final FetchCursor cursor = FetchCursor.END;
+    // records not passing it are dropped before they are counted or delivered, null for none
+    private final RecordFilter filter;
+}
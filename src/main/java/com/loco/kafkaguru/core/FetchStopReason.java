@@ -0,0 +1,23 @@
+package com.loco.kafkaguru.core;
+
+public enum FetchStopReason {
+    // all the requested messages that exist have been read
+    COMPLETED("all available messages read"),
+    MESSAGE_LIMIT("message limit reached"),
+    BYTE_LIMIT("byte limit reached"),
+    MEMORY_LIMIT("running low on memory"),
+    // some partitions sent nothing for too long, and were not read to the end
+    TIMED_OUT("some partitions timed out"),
+    CANCELLED("cancelled"),
+    FAILED("failed");
+
+    private final String description;
+
+    FetchStopReason(String description) {
+        this.description = description;
+    }
+
+    public String toString() {
+        return description;
+    }
+}
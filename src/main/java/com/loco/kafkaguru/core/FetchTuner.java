@@ -0,0 +1,116 @@
+package com.loco.kafkaguru.core;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+
+import java.util.Map;
+
+// Sizes the polls of each topic from the record sizes and poll times seen so far.
+// A poll should bring about fetchTargetBytes, unless that takes longer than
+// fetchTargetLatencyMs, and a partition fetch should fit the biggest record seen.
+@Log4j2
+public class FetchTuner {
+    // weight of the latest poll in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    private final CoreSettings settings;
+    // key = topic
+    private final Map<String, FetchProfile> profiles;
+
+    public FetchTuner(@NonNull CoreSettings settings, @NonNull Map<String, FetchProfile> profiles) {
+        this.settings = settings;
+        this.profiles = profiles;
+    }
+
+    public synchronized FetchConfig getConfig(String topic) {
+        var profile = profiles.get(topic);
+        if (profile == null || profile.getMaxPollRecords() == 0) {
+            return new FetchConfig(
+                    roundUp(settings.getMinPollRecords()),
+                    roundUp(settings.getMinPartitionFetchBytes()));
+        }
+        return new FetchConfig(profile.getMaxPollRecords(), profile.getMaxPartitionFetchBytes());
+    }
+
+    // returns null if nothing has been fetched from the topic yet
+    public synchronized FetchProfile getProfile(String topic) {
+        return profiles.get(topic);
+    }
+
+    public synchronized void recordPoll(
+            String topic, ConsumerRecords<String, byte[]> records, long pollMillis) {
+        // an empty poll only tells how long the consumer waited
+        if (records.isEmpty()) {
+            return;
+        }
+        long totalBytes = 0;
+        int maxBytes = 0;
+        for (var record : records) {
+            var size = FetchBudget.sizeOf(record);
+            totalBytes += size;
+            maxBytes = Math.max(maxBytes, size);
+        }
+
+        var profile = profiles.computeIfAbsent(topic, t -> new FetchProfile());
+        var recordBytes = (double) totalBytes / records.count();
+        if (profile.getPollCount() == 0) {
+            profile.setAverageRecordBytes(recordBytes);
+            profile.setAveragePollMillis(pollMillis);
+        } else {
+            profile.setAverageRecordBytes(average(profile.getAverageRecordBytes(), recordBytes));
+            profile.setAveragePollMillis(average(profile.getAveragePollMillis(), pollMillis));
+        }
+        profile.setPollCount(profile.getPollCount() + 1);
+        profile.setMaxRecordBytes(Math.max(profile.getMaxRecordBytes(), maxBytes));
+
+        var oldConfig = getConfig(topic);
+        tune(profile);
+        var newConfig = getConfig(topic);
+        if (!newConfig.equals(oldConfig)) {
+            log.info("Fetch config of topic {} changed from {} to {}", topic, oldConfig, newConfig);
+        }
+    }
+
+    private void tune(FetchProfile profile) {
+        var recordBytes = Math.max(profile.getAverageRecordBytes(), 1);
+        var pollRecords = settings.getFetchTargetBytes() / recordBytes;
+        // slow polls are made smaller, so that the first messages show up sooner
+        if (profile.getAveragePollMillis() > settings.getFetchTargetLatencyMs()) {
+            pollRecords *= settings.getFetchTargetLatencyMs() / profile.getAveragePollMillis();
+        }
+        var maxPollRecords =
+                clamp(
+                        roundUp((long) pollRecords),
+                        roundUp(settings.getMinPollRecords()),
+                        roundUp(settings.getMaxPollRecords()));
+
+        // a record bigger than the fetch size is still returned, but alone in its fetch
+        var partitionBytes = Math.max(profile.getMaxRecordBytes(), recordBytes * maxPollRecords);
+        var maxPartitionFetchBytes =
+                clamp(
+                        roundUp((long) partitionBytes),
+                        roundUp(settings.getMinPartitionFetchBytes()),
+                        roundUp(settings.getMaxPartitionFetchBytes()));
+
+        profile.setMaxPollRecords(maxPollRecords);
+        profile.setMaxPartitionFetchBytes(maxPartitionFetchBytes);
+    }
+
+    private static double average(double average, double value) {
+        return average + SMOOTHING * (value - average);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    // the next power of two, not less than the value
+    private static int roundUp(long value) {
+        if (value <= 1) {
+            return 1;
+        }
+        var highestBit = Long.highestOneBit(value - 1) << 1;
+        return (int) Math.min(highestBit, 1 << 30);
+    }
+}
@@ -0,0 +1,126 @@
+package com.loco.kafkaguru.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// The texts formatted from payloads, keyed by the formatter and the content of the
+// payload rather than by the message, and shared by all the tabs. A topic repeating the
+// same payloads, heartbeats for instance, then has each of them formatted once, and its
+// messages share the one text. The payloads are told apart by their length and a 64-bit
+// hash, which is enough for the number of entries held. Bounded by the bytes of the
+// texts, with the same policy as the message cache, which keeps the payloads seen often.
+public class FormattedContentCache {
+    private static final long MAX_BYTES = 64 * 1024 * 1024;
+    // what an entry costs besides its text
+    private static final int ENTRY_OVERHEAD = 96;
+
+    public static final FormattedContentCache shared = new FormattedContentCache(MAX_BYTES);
+
+    public enum Kind {
+        BODY,
+        SUMMARY
+    }
+
+    private static class Key {
+        private final String formatterName;
+        private final Kind kind;
+        private final long hash;
+        private final int length;
+
+        private Key(String formatterName, Kind kind, byte[] data) {
+            this.formatterName = formatterName;
+            this.kind = kind;
+            this.hash = hashOf(data);
+            this.length = data.length;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            var key = (Key) other;
+            return hash == key.hash
+                    && length == key.length
+                    && kind == key.kind
+                    && formatterName.equals(key.formatterName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash) * 31 + kind.ordinal();
+        }
+    }
+
+    private final CachePolicy<Key> policy;
+    private final Map<Key, String> texts = new HashMap<>();
+
+    public FormattedContentCache(long maxBytes) {
+        this.policy = new CachePolicy<>(maxBytes, 16 * 1024);
+    }
+
+    // Returns the text formatted from the payload, formatting it outside the lock if it
+    // is not held. A formatter without a name is not cached.
+    public String get(String formatterName, Kind kind, byte[] data, Supplier<String> format) {
+        if (formatterName == null) {
+            return format.get();
+        }
+        var key = new Key(formatterName, kind, data);
+        synchronized (this) {
+            var text = texts.get(key);
+            policy.recordAccess(key);
+            if (text != null) {
+                policy.recordHit(data.length);
+                return text;
+            }
+            policy.recordMiss();
+        }
+
+        var text = format.get();
+        synchronized (this) {
+            // formatted meanwhile by another thread, the text held is shared
+            var held = texts.putIfAbsent(key, text);
+            if (held != null) {
+                return held;
+            }
+            policy.setWeight(key, ENTRY_OVERHEAD + 2L * text.length());
+            for (var evicted : policy.evict(key)) {
+                texts.remove(evicted);
+            }
+            return text;
+        }
+    }
+
+    public synchronized CacheStats getStats() {
+        return policy.getStats();
+    }
+
+    // 64-bit hash of the bytes, eight at a time, mixed as in MurmurHash3
+    private static long hashOf(byte[] data) {
+        var hash = 0x9E3779B97F4A7C15L ^ data.length;
+        var i = 0;
+        for (; i + 8 <= data.length; i += 8) {
+            long word = 0;
+            for (int j = 7; j >= 0; --j) {
+                word = (word << 8) | (data[i + j] & 0xFF);
+            }
+            hash = (hash ^ mix(word)) * 0xC6A4A7935BD1E995L;
+        }
+        long tail = 0;
+        for (int j = data.length - 1; j >= i; --j) {
+            tail = (tail << 8) | (data[j] & 0xFF);
+        }
+        hash = (hash ^ mix(tail)) * 0xC6A4A7935BD1E995L;
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB93C185A1CE5L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,302 @@
+package com.loco.kafkaguru.core;
+
+import java.nio.charset.StandardCharsets;
+
+// Splits a JSON document held in a byte array into tokens, without copying it. Strings
+// and numbers are reported as ranges of the array, and decoded only when asked for.
+// A document cut short simply ends early, with END where more was expected.
+public class JsonTokenizer {
+    public enum Token {
+        OBJECT_START,
+        OBJECT_END,
+        ARRAY_START,
+        ARRAY_END,
+        STRING,
+        NUMBER,
+        TRUE,
+        FALSE,
+        NULL,
+        COLON,
+        COMMA,
+        // no more input
+        END,
+        // input which is not JSON, or a string which is not closed
+        INVALID
+    }
+
+    private static final byte[] TRUE_BYTES = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE_BYTES = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL_BYTES = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] data;
+    private final int limit;
+    private int position;
+
+    private Token token;
+    // range of the current token, without the quotes of a string
+    private int start;
+    private int end;
+    // the current string has escape sequences, so its bytes are not its value
+    private boolean escaped;
+
+    public JsonTokenizer(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public JsonTokenizer(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public Token next() {
+        while (position < limit && isWhitespace(data[position])) {
+            ++position;
+        }
+        start = position;
+        escaped = false;
+        if (position >= limit) {
+            end = position;
+            return token = Token.END;
+        }
+
+        var b = data[position++];
+        switch (b) {
+            case '{':
+                return single(Token.OBJECT_START);
+            case '}':
+                return single(Token.OBJECT_END);
+            case '[':
+                return single(Token.ARRAY_START);
+            case ']':
+                return single(Token.ARRAY_END);
+            case ':':
+                return single(Token.COLON);
+            case ',':
+                return single(Token.COMMA);
+            case '"':
+                return readString();
+            case 't':
+                return readLiteral(TRUE_BYTES, Token.TRUE);
+            case 'f':
+                return readLiteral(FALSE_BYTES, Token.FALSE);
+            case 'n':
+                return readLiteral(NULL_BYTES, Token.NULL);
+            default:
+                if (b == '-' || (b >= '0' && b <= '9')) {
+                    return readNumber();
+                }
+                end = position;
+                return token = Token.INVALID;
+        }
+    }
+
+    public Token getToken() {
+        return token;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isEscaped() {
+        return escaped;
+    }
+
+    // Skips the rest of the value whose first token is the current one. Returns false
+    // if the document ends before the value does.
+    public boolean skipValue() {
+        if (token != Token.OBJECT_START && token != Token.ARRAY_START) {
+            return token != Token.END && token != Token.INVALID;
+        }
+        var depth = 1;
+        while (depth > 0) {
+            switch (next()) {
+                case OBJECT_START:
+                case ARRAY_START:
+                    ++depth;
+                    break;
+                case OBJECT_END:
+                case ARRAY_END:
+                    --depth;
+                    break;
+                case END:
+                case INVALID:
+                    return false;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    // the raw text of the current token, or the value of the current string
+    public String getString() {
+        if (token != Token.STRING || !escaped) {
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+        var text = new StringBuilder(end - start);
+        var i = start;
+        while (i < end) {
+            var runStart = i;
+            while (i < end && data[i] != '\\') {
+                ++i;
+            }
+            text.append(new String(data, runStart, i - runStart, StandardCharsets.UTF_8));
+            if (i + 1 >= end) {
+                break;
+            }
+            var c = data[i + 1];
+            i += 2;
+            switch (c) {
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 <= end) {
+                        try {
+                            text.append(
+                                    (char)
+                                            Integer.parseInt(
+                                                    new String(
+                                                            data, i, 4, StandardCharsets.US_ASCII),
+                                                    16));
+                        } catch (NumberFormatException e) {
+                            // left out
+                        }
+                        i += 4;
+                    }
+                    break;
+                default:
+                    text.append((char) c);
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    // the value of the current number; integers are parsed without allocating
+    public double getNumber() {
+        long value = 0;
+        var i = start;
+        var negative = i < end && data[i] == '-';
+        if (negative) {
+            ++i;
+        }
+        // more than 18 digits may not fit a long
+        if (end - i > 18) {
+            return parseDouble();
+        }
+        for (; i < end; ++i) {
+            var b = data[i];
+            if (b < '0' || b > '9') {
+                return parseDouble();
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // NaN if the number is malformed
+    private double parseDouble() {
+        try {
+            return Double.parseDouble(getString());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // compares the value of the current string with UTF-8 bytes
+    public boolean stringEquals(byte[] utf8) {
+        if (token != Token.STRING) {
+            return false;
+        }
+        if (escaped) {
+            return getString().equals(new String(utf8, StandardCharsets.UTF_8));
+        }
+        if (end - start != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < utf8.length; ++i) {
+            if (data[start + i] != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Token single(Token t) {
+        end = position;
+        return token = t;
+    }
+
+    private Token readString() {
+        start = position;
+        while (position < limit) {
+            var b = data[position];
+            if (b == '"') {
+                end = position++;
+                return token = Token.STRING;
+            }
+            if (b == '\\') {
+                escaped = true;
+                ++position;
+            }
+            ++position;
+        }
+        end = position = limit;
+        return token = Token.INVALID;
+    }
+
+    private Token readLiteral(byte[] literal, Token t) {
+        var literalEnd = start + literal.length;
+        if (literalEnd > limit) {
+            end = position = limit;
+            return token = Token.INVALID;
+        }
+        for (int i = 1; i < literal.length; ++i) {
+            if (data[start + i] != literal[i]) {
+                end = position;
+                return token = Token.INVALID;
+            }
+        }
+        end = position = literalEnd;
+        return token = t;
+    }
+
+    private Token readNumber() {
+        while (position < limit && isNumberPart(data[position])) {
+            ++position;
+        }
+        end = position;
+        return token = Token.NUMBER;
+    }
+
+    private static boolean isNumberPart(byte b) {
+        return (b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '-' || b == '+';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
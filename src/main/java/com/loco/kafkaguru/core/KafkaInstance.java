@@ -6,38 +6,114 @@ import com.loco.kafkaguru.model.KafkaClusterInfo;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.log4j.Log4j2;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Log4j2
 public class KafkaInstance {
+    private static final String DISK_CACHE_DIRECTORY = "Message Cache";
+    private static final String TOPIC_METADATA_DIRECTORY = "Topic Metadata";
     private final int port;
+    private final AtomicInteger consumerCount = new AtomicInteger();
     private Properties properties;
-    private KafkaConsumer<String, byte[]> consumer;
-    private List<KafkaConnectionListener> connectionListeners = new ArrayList<>();
+    // used for offsets and topic listing, so that they are not blocked by running fetches
+    private KafkaConsumer<String, byte[]> metadataConsumer;
+    private ConsumerPool consumerPool;
+    private final TimestampOffsetCache timestampOffsets = new TimestampOffsetCache();
+    private List<KafkaConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+    private boolean connecting = false;
     @Getter private KafkaClusterInfo clusterInfo;
+    @Getter private CoreSettings settings;
+    @Getter private TopicMetadataService metadataService;
+    @Getter private TaskScheduler scheduler;
+    @Getter private FetchTuner fetchTuner;
+    // shared by all the views of the cluster
+    @Getter private MessageCache messageCache;
+    @Getter private Prefetcher prefetcher;
 
     public KafkaInstance(KafkaClusterInfo clusterInfo) {
-        this(clusterInfo, new Properties());
+        this(clusterInfo, CoreSettings.createNew());
     }
 
-    private synchronized void setConsumer(KafkaConsumer<String, byte[]> consumer) {
-        this.consumer = consumer;
+    public KafkaInstance(KafkaClusterInfo clusterInfo, @NonNull CoreSettings settings) {
+        this(clusterInfo, settings, new ConcurrentHashMap<>());
     }
 
-    public KafkaInstance(KafkaClusterInfo clusterInfo, @NonNull Properties properties) {
+    // fetchProfiles, key = topic, is updated as the topics are read
+    public KafkaInstance(
+            KafkaClusterInfo clusterInfo,
+            @NonNull CoreSettings settings,
+            @NonNull Map<String, FetchProfile> fetchProfiles) {
+        this(clusterInfo, settings, fetchProfiles, PrefetchSettings.createNew());
+    }
+
+    public KafkaInstance(
+            KafkaClusterInfo clusterInfo,
+            @NonNull CoreSettings settings,
+            @NonNull Map<String, FetchProfile> fetchProfiles,
+            @NonNull PrefetchSettings prefetchSettings) {
+        this(clusterInfo, settings, fetchProfiles, prefetchSettings, new Properties());
+    }
+
+    private synchronized void setClients(
+            KafkaConsumer<String, byte[]> metadataConsumer, ConsumerPool consumerPool) {
+        this.metadataConsumer = metadataConsumer;
+        this.consumerPool = consumerPool;
+    }
+
+    private synchronized KafkaConsumer<String, byte[]> getMetadataConsumer() {
+        if (metadataConsumer == null) {
+            throw new IllegalStateException("Not connected to " + clusterInfo.getUrl());
+        }
+        return metadataConsumer;
+    }
+
+    private synchronized ConsumerPool getConsumerPool() {
+        if (consumerPool == null) {
+            throw new IllegalStateException("Not connected to " + clusterInfo.getUrl());
+        }
+        return consumerPool;
+    }
+
+    public KafkaInstance(
+            KafkaClusterInfo clusterInfo,
+            @NonNull CoreSettings settings,
+            @NonNull Map<String, FetchProfile> fetchProfiles,
+            @NonNull PrefetchSettings prefetchSettings,
+            @NonNull Properties properties) {
         this.clusterInfo = clusterInfo;
+        this.settings = settings;
         this.properties = properties;
+        this.fetchTuner = new FetchTuner(settings, fetchProfiles);
+        this.messageCache = new MessageCache(settings.getMessageCacheMaxBytes());
+        this.prefetcher = new Prefetcher(this, prefetchSettings);
+        this.scheduler = new TaskScheduler(clusterInfo.getName(), settings.getMaxConcurrentTasks());
+        this.metadataService =
+                new TopicMetadataService(
+                        clusterInfo.getName(),
+                        settings,
+                        scheduler,
+                        new TopicMetadataFile(
+                                Paths.get(
+                                        TOPIC_METADATA_DIRECTORY, clusterInfo.getId() + ".json")));
 
         String[] parts = clusterInfo.getUrl().split(":");
         if (parts.length < 1) {
@@ -56,30 +132,58 @@ public class KafkaInstance {
     }
 
     private void connect() throws KafkaException, UnknownHostException {
-        setConsumer(createConsumer(createUrl(clusterInfo.getUrl(), port), properties));
+        var url = createUrl(clusterInfo.getUrl(), port);
+        initProperties(url);
+        var metadataConsumer = createConsumer("metadata", null);
+        var consumerPool =
+                new ConsumerPool(
+                        config ->
+                                createConsumer("fetch-" + consumerCount.incrementAndGet(), config),
+                        settings.getConsumerPoolSize());
+        closeClients();
+        timestampOffsets.clear();
+        // the url may point to another cluster now
+        messageCache.clear();
+        closeSegmentStore();
+        messageCache.setStore(createSegmentStore(url));
+        setClients(metadataConsumer, consumerPool);
+        metadataService.connect(createAdminClient());
+        prefetcher.start();
     }
 
-    public Map<String, List<PartitionInfo>> refreshTopics() throws KafkaException {
-        synchronized (consumer) {
-            var remainingTries = 3;
-            do {
-                try {
-                    return consumer.listTopics(Duration.ofSeconds(5));
-                } catch (KafkaException e) {
-                    --remainingTries;
-                    log.warn(
-                            "Failed to obtain topics from Kafka. Remaining tries = "
-                                    + remainingTries);
-                    if (remainingTries == 0) {
-                        throw e;
-                    }
-                }
-            } while (true);
+    // The disk cache of the cluster, or null if it is turned off or fails to open. Keyed
+    // by the id of the cluster, as the instances are; the url is its source.
+    private SegmentStore createSegmentStore(String url) {
+        if (settings.getDiskCacheMaxBytes() <= 0) {
+            return null;
+        }
+        var directory = Paths.get(DISK_CACHE_DIRECTORY, clusterInfo.getId());
+        try {
+            return new SegmentStore(
+                    directory,
+                    url,
+                    settings.getDiskCacheMaxBytes(),
+                    settings.getDiskCacheSegmentBytes());
+        } catch (IOException e) {
+            log.error("Failed to open the disk cache in {}", directory, e);
+            return null;
         }
     }
 
-    private KafkaConsumer<String, byte[]> createConsumer(String url, Properties properties)
-            throws UnknownHostException {
+    // lets the writes of the store finish, so that the next one does not write over them
+    private void closeSegmentStore() {
+        var store = messageCache.getStore();
+        if (store != null) {
+            messageCache.setStore(null);
+            store.close();
+        }
+    }
+
+    public Map<String, List<PartitionInfo>> refreshTopics() throws KafkaException {
+        return metadataService.refresh();
+    }
+
+    private void initProperties(String url) throws UnknownHostException {
         this.properties.putIfAbsent("bootstrap.servers", url);
         this.properties.putIfAbsent("client.id", InetAddress.getLocalHost().getHostName());
         this.properties.putIfAbsent("group.id", "kafka-tool");
@@ -89,73 +193,131 @@ public class KafkaInstance {
         this.properties.putIfAbsent("max.partition.fetch.bytes", 100_000);
         this.properties.putIfAbsent("key.deserializer", StringDeserializer.class);
         this.properties.putIfAbsent("value.deserializer", ByteArrayDeserializer.class);
+    }
 
-        return new KafkaConsumer<String, byte[]>(this.properties);
-    }
-
-    public void connectAsync() {
-        log.info("Starting connection thread");
-        new Thread(
-                        () -> {
-                            log.info("Started connection thread");
-                            try {
-                                connect();
-                                connectionListeners.forEach(
-                                        listener -> listener.connected(clusterInfo.getId(), true));
-                            } catch (KafkaException | UnknownHostException e) {
-                                log.error("Failed to connect to kafka ", e);
-                                connectionListeners.forEach(
-                                        listener -> listener.connected(clusterInfo.getId(), false));
-                            }
-                        })
-                .start();
-    }
-
-    public void refreshTopicsAsync(KafkaTopicsListener listener) {
-        log.info("Starting connection thread");
-        new Thread(
-                        () -> {
-                            try {
-                                log.info("Obtaining topics from kafka ");
-                                var topics = refreshTopics();
-                                listener.topicsUpdated(topics);
-                                log.info("Obtained topics from kafka ");
-                            } catch (KafkaException e) {
-                                log.error(
-                                        "Failed to fetch topics from kafka for {}",
-                                        clusterInfo.getUrl(),
-                                        e);
-                                listener.topicsUpdated(null);
-                            }
-                        })
-                .start();
-    }
-
-    public void assign(List<TopicPartition> topicPartitions) {
-        synchronized (consumer) {
-            consumer.assign(topicPartitions);
+    private KafkaConsumer<String, byte[]> createConsumer(
+            String clientIdSuffix, FetchConfig config) {
+        var consumerProperties = new Properties();
+        consumerProperties.putAll(properties);
+        if (config != null) {
+            consumerProperties.put("max.poll.records", config.getMaxPollRecords());
+            consumerProperties.put("max.partition.fetch.bytes", config.getMaxPartitionFetchBytes());
         }
+        // every consumer needs its own client id, otherwise their metrics collide
+        consumerProperties.put("client.id", properties.get("client.id") + "-" + clientIdSuffix);
+
+        return new KafkaConsumer<String, byte[]>(consumerProperties);
     }
 
-    public void seek(TopicPartition key, long startOffset) {
-        synchronized (consumer) {
-            consumer.seek(key, startOffset);
+    private AdminClient createAdminClient() {
+        var adminProperties = new Properties();
+        properties.forEach(
+                (key, value) -> {
+                    if (AdminClientConfig.configNames().contains(key)) {
+                        adminProperties.put(key, value);
+                    }
+                });
+        adminProperties.put("client.id", properties.get("client.id") + "-admin");
+
+        return AdminClient.create(adminProperties);
+    }
+
+    // a consumer outside of the pool, to be closed by the caller
+    public KafkaConsumer<String, byte[]> createDedicatedConsumer(String topic) {
+        getMetadataConsumer(); // fails if not connected
+        return createConsumer(
+                "dedicated-" + consumerCount.incrementAndGet(), fetchTuner.getConfig(topic));
+    }
+
+    public ConsumerLease leaseConsumer(FetchConfig config) throws KafkaException {
+        return getConsumerPool()
+                .lease(config, Duration.ofMillis(settings.getConsumerLeaseTimeoutMs()));
+    }
+
+    // returns null if all the consumers are in use
+    public ConsumerLease tryLeaseConsumer(FetchConfig config) throws KafkaException {
+        return getConsumerPool().tryLease(config);
+    }
+
+    // pooled consumers in use by the fetches of the views
+    public int getLeasedConsumerCount() {
+        return getConsumerPool().getLeasedCount();
+    }
+
+    public synchronized boolean isConnected() {
+        return metadataConsumer != null;
+    }
+
+    // returns null if the connection is already in progress
+    public Future<?> connectAsync() {
+        synchronized (this) {
+            // the instance is shared by tabs, so only one of them should connect at a time
+            if (connecting) {
+                log.info("Connection to {} is already in progress", clusterInfo.getUrl());
+                return null;
+            }
+            connecting = true;
+        }
+        try {
+            return scheduler.submit("connect", this::connectAndNotify);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                connecting = false;
+            }
+            throw e;
         }
     }
 
-    public ConsumerRecords<String, byte[]> poll(Duration timeout) {
-        synchronized (consumer) {
-            return consumer.poll(timeout);
+    // whatever goes wrong, the connection is no longer in progress and the listeners learn
+    // whether it succeeded
+    private void connectAndNotify() {
+        log.info("Connecting to {}", clusterInfo.getUrl());
+        var connected = false;
+        try {
+            connect();
+            connected = true;
+        } catch (KafkaException | UnknownHostException e) {
+            log.error("Failed to connect to kafka ", e);
+        } catch (RuntimeException e) {
+            log.error("Failed to connect to {}", clusterInfo.getUrl(), e);
+        } finally {
+            synchronized (this) {
+                connecting = false;
+            }
+            final var really = connected;
+            connectionListeners.forEach(
+                    listener -> listener.connected(clusterInfo.getId(), really));
         }
     }
 
+    public Future<?> refreshTopicsAsync(KafkaTopicsListener listener) {
+        return scheduler.submit(
+                "refresh-topics",
+                () -> {
+                    try {
+                        log.info("Obtaining topics from kafka ");
+                        var topics = refreshTopics();
+                        listener.topicsUpdated(topics);
+                        log.info("Obtained topics from kafka ");
+                    } catch (KafkaException e) {
+                        log.error(
+                                "Failed to fetch topics from kafka for {}",
+                                clusterInfo.getUrl(),
+                                e);
+                        listener.topicsUpdated(null);
+                    }
+                });
+    }
+
     public Map<TopicPartition, Long> getStartOffsets(List<TopicPartition> topicPartitions) {
+        var consumer = getMetadataConsumer();
         synchronized (consumer) {
             return consumer.beginningOffsets(topicPartitions);
         }
     }
 
     public Map<TopicPartition, Long> getEndOffsets(List<TopicPartition> topicPartitions) {
+        var consumer = getMetadataConsumer();
         synchronized (consumer) {
             return consumer.endOffsets(topicPartitions);
         }
@@ -167,6 +329,7 @@ public class KafkaInstance {
         Map<TopicPartition, Long> startOffsets;
         Map<TopicPartition, Long> endOffsets;
 
+        var consumer = getMetadataConsumer();
         synchronized (consumer) {
             startOffsets = getStartOffsets(topicPartitions);
             endOffsets = getEndOffsets(topicPartitions);
@@ -181,10 +344,58 @@ public class KafkaInstance {
         return offsets;
     }
 
+    // Returns the first offset whose timestamp is not less than the given one, for each
+    // partition, or null for the partitions which have no such message. Offsets resolved
+    // before are reused, the rest are resolved with a single request.
+    public Map<TopicPartition, Long> getOffsetsForTime(
+            List<TopicPartition> topicPartitions, long timestamp) {
+        var offsets = new HashMap<TopicPartition, Long>();
+        var timestampsToSearch = new HashMap<TopicPartition, Long>();
+        for (var tp : topicPartitions) {
+            var offset = timestampOffsets.get(tp, timestamp);
+            if (offset != null) {
+                offsets.put(tp, offset);
+            } else {
+                timestampsToSearch.put(tp, timestamp);
+            }
+        }
+        log.info(
+                "Offsets for {} found in cache for {} of {} partitions",
+                timestamp,
+                offsets.size(),
+                topicPartitions.size());
+        if (timestampsToSearch.isEmpty()) {
+            return offsets;
+        }
+
+        Map<TopicPartition, OffsetAndTimestamp> found;
+        var consumer = getMetadataConsumer();
+        synchronized (consumer) {
+            found = consumer.offsetsForTimes(timestampsToSearch);
+        }
+        for (var tp : timestampsToSearch.keySet()) {
+            var offsetAndTimestamp = found.get(tp);
+            if (offsetAndTimestamp == null) {
+                offsets.put(tp, null);
+            } else {
+                timestampOffsets.put(tp, timestamp, offsetAndTimestamp.offset());
+                // the message found is the first one for its own timestamp too
+                timestampOffsets.put(
+                        tp, offsetAndTimestamp.timestamp(), offsetAndTimestamp.offset());
+                offsets.put(tp, offsetAndTimestamp.offset());
+            }
+        }
+        return offsets;
+    }
+
     public void addConnectionListener(KafkaConnectionListener listener) {
         connectionListeners.add(listener);
     }
 
+    public void removeConnectionListener(KafkaConnectionListener listener) {
+        connectionListeners.remove(listener);
+    }
+
     public void setUrl(String newUrl) {
         var oldUrl = clusterInfo.getUrl();
         clusterInfo.setUrl(newUrl);
@@ -206,4 +417,40 @@ public class KafkaInstance {
     public String getUrl() {
         return clusterInfo.getUrl();
     }
+
+    public void close() {
+        prefetcher.stop();
+        logCacheStats();
+        closeSegmentStore();
+        scheduler.shutdown();
+        metadataService.close();
+        closeClients();
+        setClients(null, null);
+    }
+
+    private void logCacheStats() {
+        log.info("Message cache of {}: {}", getName(), messageCache.getStats());
+        var store = messageCache.getStore();
+        if (store != null) {
+            log.info("Disk cache of {}: {}", getName(), store.getStats());
+        }
+        log.info("Formatted content cache: {}", FormattedContentCache.shared.getStats());
+    }
+
+    private void closeClients() {
+        ConsumerPool oldPool;
+        KafkaConsumer<String, byte[]> oldMetadataConsumer;
+        synchronized (this) {
+            oldPool = consumerPool;
+            oldMetadataConsumer = metadataConsumer;
+        }
+        if (oldPool != null) {
+            oldPool.close();
+        }
+        if (oldMetadataConsumer != null) {
+            synchronized (oldMetadataConsumer) {
+                oldMetadataConsumer.close(Duration.ofSeconds(1));
+            }
+        }
+    }
 }
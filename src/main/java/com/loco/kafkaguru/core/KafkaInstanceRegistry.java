@@ -0,0 +1,102 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.core.listeners.KafkaConnectionListener;
+import com.loco.kafkaguru.model.KafkaClusterInfo;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One KafkaInstance per cluster, shared by all the tabs of that cluster.
+// The instance is closed when the last tab releases it.
+@Log4j2
+public class KafkaInstanceRegistry {
+    private final CoreSettings settings;
+    // key = cluster id, value = fetch profiles of its topics
+    private final Map<String, Map<String, FetchProfile>> fetchProfiles;
+    // key = cluster id
+    private final Map<String, PrefetchSettings> prefetchSettings;
+    private final List<KafkaConnectionListener> connectionListeners = new ArrayList<>();
+    // key = cluster id
+    private final Map<String, ClusterSession> sessions = new HashMap<>();
+
+    private static class ClusterSession {
+        private final KafkaInstance kafkaInstance;
+        private int referenceCount = 0;
+
+        private ClusterSession(KafkaInstance kafkaInstance) {
+            this.kafkaInstance = kafkaInstance;
+        }
+    }
+
+    public KafkaInstanceRegistry(
+            @NonNull CoreSettings settings,
+            @NonNull Map<String, Map<String, FetchProfile>> fetchProfiles,
+            @NonNull Map<String, PrefetchSettings> prefetchSettings) {
+        this.settings = settings;
+        this.fetchProfiles = fetchProfiles;
+        this.prefetchSettings = prefetchSettings;
+    }
+
+    // added to every instance created by this registry
+    public synchronized void addConnectionListener(KafkaConnectionListener listener) {
+        connectionListeners.add(listener);
+    }
+
+    public synchronized KafkaInstance acquire(@NonNull KafkaClusterInfo cluster) {
+        var session = sessions.get(cluster.getId());
+        if (session == null) {
+            // the profiles are updated by fetch threads, while the settings may be saved
+            var profiles =
+                    new ConcurrentHashMap<>(fetchProfiles.getOrDefault(cluster.getId(), Map.of()));
+            fetchProfiles.put(cluster.getId(), profiles);
+            var prefetch =
+                    prefetchSettings.computeIfAbsent(
+                            cluster.getId(), k -> PrefetchSettings.createNew());
+            var kafkaInstance = new KafkaInstance(cluster, settings, profiles, prefetch);
+            connectionListeners.forEach(kafkaInstance::addConnectionListener);
+            session = new ClusterSession(kafkaInstance);
+            sessions.put(cluster.getId(), session);
+            log.info("Created session for cluster {}", cluster.getName());
+        }
+        ++session.referenceCount;
+        return session.kafkaInstance;
+    }
+
+    public synchronized void release(@NonNull String clusterId) {
+        var session = sessions.get(clusterId);
+        if (session == null) {
+            log.warn("Released unknown cluster session {}", clusterId);
+            return;
+        }
+        if (--session.referenceCount > 0) {
+            return;
+        }
+        sessions.remove(clusterId);
+        log.info("Closing session for cluster {}", session.kafkaInstance.getName());
+        session.kafkaInstance.close();
+    }
+
+    public synchronized int getReferenceCount(String clusterId) {
+        var session = sessions.get(clusterId);
+        return session == null ? 0 : session.referenceCount;
+    }
+
+    // closes every instance, whatever tabs still hold them; one failing to close does not
+    // keep the others open
+    public synchronized void closeAll() {
+        for (var session : sessions.values()) {
+            log.info("Closing session for cluster {}", session.kafkaInstance.getName());
+            try {
+                session.kafkaInstance.close();
+            } catch (RuntimeException e) {
+                log.error("Failed to close cluster {}", session.kafkaInstance.getName(), e);
+            }
+        }
+        sessions.clear();
+    }
+}
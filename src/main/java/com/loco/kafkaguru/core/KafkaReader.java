@@ -1,17 +1,25 @@
 package com.loco.kafkaguru.core;
 
 import com.loco.kafkaguru.core.listeners.KafkaMessagesListener;
+import com.loco.kafkaguru.core.listeners.KafkaSearchListener;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.time.StopWatch;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Log4j2
 @Getter
@@ -25,131 +33,369 @@ public class KafkaReader {
     }
 
     private void fetchMessages(
-            @NonNull List<TopicPartition> topicPartitions,
-            int maxMessageCount,
-            long fetchFrom,
-            KafkaMessagesListener listener,
-            Object sender) {
+            @NonNull FetchRequest request, KafkaMessagesListener listener, FetchHandle handle) {
         log.info("Getting messages");
+        var topicPartitions = request.getTopicPartitions();
 
         if (topicPartitions.isEmpty()) {
             log.info("topicPartitions is empty");
+            handle.setStopReason(FetchStopReason.COMPLETED);
+            handle.deliver(
+                    () -> listener.messagesReceived(List.of(), handle.getSender(), 1, false));
             return;
         }
 
         log.info("Obtaining offsets");
         List<PartitionOffset> partitionOffsets = kafkaInstance.getOffsets(topicPartitions);
+        var cache = kafkaInstance.getMessageCache();
+        partitionOffsets.forEach(
+                po -> cache.checkEndOffset(po.getTopicPartition(), po.getEndOffset()));
 
         String topic = topicPartitions.get(0).topic();
-        log.info("Fetching {} messages from topic {}", maxMessageCount, topic);
+        log.info(
+                "Fetching {} messages, {} bytes at most, from topic {}",
+                request.getMaxMessageCount(),
+                request.getMaxBytes(),
+                topic);
 
         var stopWatch = StopWatch.createStarted();
+        var ranges =
+                planRanges(partitionOffsets, request.getCursor(), request.getMaxMessageCount());
+        var budget = new FetchBudget(request, kafkaInstance.getSettings());
 
-        synchronized (kafkaInstance) {
-            // TODO ensure that all partitions are from the same topic?
-            kafkaInstance.assign(topicPartitions);
-            seek(partitionOffsets, fetchFrom, maxMessageCount);
+        if (topicPartitions.size() > 1 && request.getCursor().getType() == FetchCursor.Type.END) {
+            // the even split of the ranges is only good enough for a single partition
+            new LatestFetcher(kafkaInstance, handle, maxWait)
+                    .fetch(partitionOffsets, budget, request.getFilter(), listener);
+        } else if ((topicPartitions.size() > 1 && kafkaInstance.getSettings().isParallelFetch())
+                || isAnyCached(ranges)) {
+            // also used for a single partition, as it reads only what is not in the cache
+            var maxConsumers =
+                    kafkaInstance.getSettings().isParallelFetch() ? Integer.MAX_VALUE : 1;
+            new ParallelFetcher(kafkaInstance, handle, maxWait, maxConsumers)
+                    .fetch(ranges, budget, request.getFilter(), listener);
+        } else {
+            fetchSerially(topicPartitions, ranges, budget, request.getFilter(), listener, handle);
+        }
 
-            var more = true;
-            var totalCount = 0;
-            for (int batchNumber = 1; more; ++batchNumber) {
-                var batch = getNextBatch(maxMessageCount - totalCount, maxWait);
+        log.info(
+                "Finished reading {} messages, {} bytes from topic: {} in {} seconds, {}.",
+                budget.getMessageCount(),
+                budget.getByteCount(),
+                topic,
+                stopWatch.getTime(TimeUnit.SECONDS),
+                handle.getStopReason());
+    }
 
-                var batchSize = batch.size();
-                totalCount += batchSize;
-                log.info("obtained {} messages, total {}", batchSize, totalCount);
+    private void fetchSerially(
+            List<TopicPartition> topicPartitions,
+            List<PartitionOffset> ranges,
+            FetchBudget budget,
+            RecordFilter filter,
+            KafkaMessagesListener listener,
+            FetchHandle handle) {
+        var sender = handle.getSender();
+        // key = partition, value = offset the range ends before
+        var endOffsets = new HashMap<TopicPartition, Long>();
+        ranges.forEach(range -> endOffsets.put(range.getTopicPartition(), range.getEndOffset()));
+        var cacheWriter = new CacheWriter(kafkaInstance.getMessageCache());
+        var topic = topicPartitions.get(0).topic();
+        var fetchConfig = kafkaInstance.getFetchTuner().getConfig(topic);
+        try (var lease = kafkaInstance.leaseConsumer(fetchConfig)) {
+            handle.addLease(lease);
+            var consumer = lease.getConsumer();
+            try {
+                // TODO ensure that all partitions are from the same topic?
+                consumer.assign(topicPartitions);
+                for (var range : ranges) {
+                    consumer.seek(range.getTopicPartition(), range.getStartOffset());
+                    cacheWriter.start(
+                            range.getTopicPartition(),
+                            range.getStartOffset(),
+                            range.getEndOffset());
+                }
 
-                more = (totalCount < maxMessageCount) && (batchSize > 0);
-                listener.messagesReceived(batch, sender, batchNumber, more);
-            }
+                var more = true;
+                for (int batchNumber = 1; more; ++batchNumber) {
+                    var polled =
+                            getNextBatch(
+                                    consumer,
+                                    topic,
+                                    endOffsets,
+                                    filter,
+                                    cacheWriter,
+                                    budget.getRemainingCount(),
+                                    maxWait);
+                    var batch = budget.take(polled == null ? List.of() : polled);
+                    log.info(
+                            "obtained {} messages, total {}",
+                            batch.size(),
+                            budget.getMessageCount());
 
-            log.info(
-                    "Finished reading {} messages from topic: {} in {} seconds.",
-                    totalCount,
-                    topic,
-                    stopWatch.getTime(TimeUnit.SECONDS));
+                    more =
+                            !budget.isExhausted()
+                                    && polled != null
+                                    && !isReadUpTo(consumer, endOffsets);
+                    if (!more) {
+                        handle.setStopReason(
+                                budget.isExhausted()
+                                        ? budget.getStopReason()
+                                        : FetchStopReason.COMPLETED);
+                    }
+                    final var batchNo = batchNumber;
+                    final var moreToCome = more;
+                    if (!handle.deliver(
+                            () -> listener.messagesReceived(batch, sender, batchNo, moreToCome))) {
+                        break;
+                    }
+                }
+            } catch (WakeupException e) {
+                lease.wakeupConsumed();
+                log.info("Fetch from {} cancelled", topicPartitions);
+            } catch (KafkaException e) {
+                lease.invalidate();
+                throw e;
+            } finally {
+                handle.removeLease(lease);
+            }
         }
     }
 
-    private ArrayList<ConsumerRecord<String, byte[]>> getNextBatch(int maxMessageCount, long wait) {
-        var batch = kafkaInstance.poll(Duration.ofMillis(wait));
+    // Returns the polled records which are within the ranges and pass the filter, or null
+    // if nothing at all arrived within the wait. The filter runs on the raw records, so
+    // the dropped ones are never formatted, while the cache gets all of them.
+    private ArrayList<ConsumerRecord<String, byte[]>> getNextBatch(
+            Consumer<String, byte[]> consumer,
+            String topic,
+            Map<TopicPartition, Long> endOffsets,
+            RecordFilter filter,
+            CacheWriter cacheWriter,
+            int maxMessageCount,
+            long wait) {
+        var pollStart = System.currentTimeMillis();
+        var batch = consumer.poll(Duration.ofMillis(wait));
+        kafkaInstance
+                .getFetchTuner()
+                .recordPoll(topic, batch, System.currentTimeMillis() - pollStart);
+        cacheWriter.add(consumer, batch);
+        if (batch.isEmpty()) {
+            return null;
+        }
 
         var batchMessages = new ArrayList<ConsumerRecord<String, byte[]>>();
         for (var record : batch) {
             if (batchMessages.size() == maxMessageCount) {
                 break;
             }
-            batchMessages.add(record);
+            var endOffset = endOffsets.get(new TopicPartition(record.topic(), record.partition()));
+            if (record.offset() < endOffset && (filter == null || filter.test(record))) {
+                batchMessages.add(record);
+            }
         }
         return batchMessages;
     }
 
-    private void seek(List<PartitionOffset> partitionOffsets, long fetchFrom, int maxMessageCount) {
-        switch ((int) fetchFrom) {
-            case 0:
-                seekToStart(partitionOffsets);
-                break;
-            case -1:
-                seekToEnd(partitionOffsets, maxMessageCount);
-                break;
+    private boolean isAnyCached(List<PartitionOffset> ranges) {
+        var cache = kafkaInstance.getMessageCache();
+        return ranges.stream()
+                .anyMatch(
+                        range ->
+                                cache.holdsAny(
+                                        range.getTopicPartition(),
+                                        range.getStartOffset(),
+                                        range.getEndOffset()));
+    }
+
+    private static boolean isReadUpTo(
+            Consumer<String, byte[]> consumer, Map<TopicPartition, Long> endOffsets) {
+        for (var entry : endOffsets.entrySet()) {
+            if (consumer.position(entry.getKey()) < entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the offsets to read from and up to, for each partition
+    private List<PartitionOffset> planRanges(
+            List<PartitionOffset> partitionOffsets, FetchCursor cursor, int maxMessageCount) {
+        switch (cursor.getType()) {
+            case BEGINNING:
+                return planFrom(partitionOffsets, Map.of(), maxMessageCount);
+            case END:
+                return planFromEnd(partitionOffsets, maxMessageCount);
+            case TIMESTAMP:
+                return planFrom(
+                        partitionOffsets,
+                        resolveOffsets(partitionOffsets, cursor),
+                        maxMessageCount);
             default:
                 if (partitionOffsets.size() != 1) {
                     throw new IllegalArgumentException(
                             "loading from specific"
                                     + " offset is possible only if single partition is provided");
                 }
-                seekTo(partitionOffsets.get(0), fetchFrom);
-                break;
+                var po = partitionOffsets.get(0);
+                return List.of(
+                        new PartitionOffset(
+                                po.getTopicPartition(), cursor.getValue(), po.getEndOffset()));
+        }
+    }
+
+    // Returns the offset the cursor points to in each partition, within its start and end.
+    // An offset cursor points to the same offset in all of them.
+    Map<TopicPartition, Long> resolveOffsets(
+            List<PartitionOffset> partitionOffsets, FetchCursor cursor) {
+        Map<TopicPartition, Long> timestampOffsets = Map.of();
+        if (cursor.getType() == FetchCursor.Type.TIMESTAMP) {
+            timestampOffsets =
+                    kafkaInstance.getOffsetsForTime(
+                            partitionOffsets.stream()
+                                    .map(PartitionOffset::getTopicPartition)
+                                    .collect(Collectors.toList()),
+                            cursor.getValue());
+        }
+
+        var offsets = new HashMap<TopicPartition, Long>();
+        for (var po : partitionOffsets) {
+            long offset;
+            switch (cursor.getType()) {
+                case BEGINNING:
+                    offset = po.getStartOffset();
+                    break;
+                case END:
+                    offset = po.getEndOffset();
+                    break;
+                case OFFSET:
+                    offset = cursor.getValue();
+                    break;
+                default:
+                    // no message at or after the time
+                    offset =
+                            Objects.requireNonNullElse(
+                                    timestampOffsets.get(po.getTopicPartition()),
+                                    po.getEndOffset());
+                    break;
+            }
+            // a cached offset may have been deleted by retention since
+            offsets.put(
+                    po.getTopicPartition(),
+                    Math.min(Math.max(offset, po.getStartOffset()), po.getEndOffset()));
         }
+        return offsets;
     }
 
-    private void seekToStart(List<PartitionOffset> partitionOffsets) {
+    // Every partition may have to provide all the messages, when the others are empty.
+    // Partitions not in fromOffsets are read from their start.
+    private List<PartitionOffset> planFrom(
+            List<PartitionOffset> partitionOffsets,
+            Map<TopicPartition, Long> fromOffsets,
+            int maxMessageCount) {
+        var ranges = new ArrayList<PartitionOffset>();
         for (PartitionOffset po : partitionOffsets) {
-            seekTo(po, po.getStartOffset());
+            var tp = po.getTopicPartition();
+            long startOffset = fromOffsets.getOrDefault(tp, po.getStartOffset());
+            long endOffset = Math.min(startOffset + maxMessageCount, po.getEndOffset());
+            ranges.add(new PartitionOffset(tp, startOffset, endOffset));
         }
+        return ranges;
     }
 
-    private void seekToEnd(List<PartitionOffset> partitionOffsets, int maxMessageCount) {
+    private List<PartitionOffset> planFromEnd(
+            List<PartitionOffset> partitionOffsets, int maxMessageCount) {
+        var ranges = new ArrayList<PartitionOffset>();
         int remainingMessages = maxMessageCount;
         int remainingPartitions = partitionOffsets.size();
 
         for (PartitionOffset po : partitionOffsets) {
+            long startOffset = po.getEndOffset();
             if (po.getEndOffset() > po.getStartOffset()) {
                 int messagesToFetch = remainingMessages / remainingPartitions;
-                long startOffset =
-                        Math.max(po.getEndOffset() - messagesToFetch, po.getStartOffset());
-                seekTo(po, startOffset);
+                startOffset = Math.max(po.getEndOffset() - messagesToFetch, po.getStartOffset());
                 int availableMessages = (int) (po.getEndOffset() - startOffset);
                 remainingMessages -= availableMessages;
             }
+            ranges.add(new PartitionOffset(po.getTopicPartition(), startOffset, po.getEndOffset()));
             --remainingPartitions;
         }
+        return ranges;
     }
 
-    private void seekTo(PartitionOffset po, long offset) {
-        kafkaInstance.seek(po.getTopicPartition(), offset);
+    // Fetching is stopped when the returned handle is cancelled; the listener is not
+    // called after that.
+    public FetchHandle getMessagesAsync(
+            @NonNull FetchRequest request, KafkaMessagesListener listener, Object sender) {
+        log.info("In getMessagesAsync()");
+        var handle = new FetchHandle(sender);
+        var topicPartitions = request.getTopicPartitions();
+        var taskName = topicPartitions.isEmpty() ? "fetch" : "fetch-" + topicPartitions.get(0);
+        var future =
+                kafkaInstance
+                        .getScheduler()
+                        .submit(
+                                taskName,
+                                () -> {
+                                    log.info("calling getMessages()");
+                                    try {
+                                        fetchMessages(request, listener, handle);
+                                    } catch (Exception e) {
+                                        log.error("Failed to fetch messages", e);
+                                        handle.setStopReason(FetchStopReason.FAILED);
+                                        handle.deliver(
+                                                () ->
+                                                        listener.messagesReceived(
+                                                                null, sender, 0, false));
+                                    }
+                                });
+        handle.setFuture(future);
+        return handle;
     }
 
-    public void getMessagesAsync(
-            List<TopicPartition> topicPartitions,
-            int limit,
-            long fetchFrom,
-            KafkaMessagesListener listener,
-            Object sender) {
-        log.info("In getMessagesAsync()");
-        new Thread(
-                        new Runnable() {
-                            @Override
-                            public void run() {
-                                log.info("calling getMessages()");
-                                try {
-                                    fetchMessages(
-                                            topicPartitions, limit, fetchFrom, listener, sender);
-                                } catch (Exception e) {
-                                    listener.messagesReceived(null, sender, 0, false);
-                                }
-                            }
-                        })
-                .start();
+    // The search is stopped when the returned job is cancelled; the listener is not
+    // called after that.
+    public SearchJob searchAsync(
+            @NonNull SearchRequest request, KafkaSearchListener listener, Object sender) {
+        var job = new SearchJob(kafkaInstance, request, listener, sender, maxWait);
+        var topicPartitions = request.getTopicPartitions();
+        var taskName = topicPartitions.isEmpty() ? "search" : "search-" + topicPartitions.get(0);
+        var future =
+                kafkaInstance
+                        .getScheduler()
+                        .submit(
+                                taskName,
+                                () -> {
+                                    List<PartitionOffset> ranges;
+                                    try {
+                                        ranges = planSearch(request);
+                                    } catch (Exception e) {
+                                        job.failed(e);
+                                        return;
+                                    }
+                                    job.run(ranges);
+                                });
+        job.setFuture(future);
+        return job;
+    }
+
+    private List<PartitionOffset> planSearch(SearchRequest request) {
+        var partitionOffsets = kafkaInstance.getOffsets(request.getTopicPartitions());
+        var fromOffsets = resolveOffsets(partitionOffsets, request.getFrom());
+        var to = request.getTo();
+        // an offset cursor includes the message it points to
+        var toOffsets =
+                resolveOffsets(
+                        partitionOffsets,
+                        to.getType() == FetchCursor.Type.OFFSET
+                                ? FetchCursor.offset(to.getValue() + 1)
+                                : to);
+
+        var ranges = new ArrayList<PartitionOffset>();
+        for (var po : partitionOffsets) {
+            var tp = po.getTopicPartition();
+            long startOffset = fromOffsets.get(tp);
+            ranges.add(
+                    new PartitionOffset(tp, startOffset, Math.max(startOffset, toOffsets.get(tp))));
+        }
+        return ranges;
     }
 }
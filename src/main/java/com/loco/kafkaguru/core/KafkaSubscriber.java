@@ -1,23 +1,73 @@
 package com.loco.kafkaguru.core;
 
-import com.loco.kafkaguru.core.KafkaReader;
+import com.loco.kafkaguru.core.listeners.KafkaTailListener;
 import lombok.NonNull;
-import org.apache.kafka.clients.consumer.Consumer;
-import org.apache.kafka.common.PartitionInfo;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.WakeupException;
 
-import java.util.Arrays;
+import java.time.Duration;
 import java.util.List;
 
+// Follows partitions from their end, reporting new records as they arrive. Every tail
+// has a consumer of its own, so that it does not hold back the pooled ones.
+@Log4j2
 public class KafkaSubscriber {
+    private static final long POLL_MILLIS = 500;
+
     private KafkaReader reader;
 
     public KafkaSubscriber(@NonNull KafkaReader reader) {
         this.reader = reader;
     }
 
-    public boolean subscribe(String topic) {
-        //        getConsumer().subscribe(Arrays.asList(topic));
+    public TailSession subscribe(
+            @NonNull List<TopicPartition> topicPartitions,
+            @NonNull KafkaTailListener listener,
+            Object sender) {
+        if (topicPartitions.isEmpty()) {
+            throw new IllegalArgumentException("No partitions to tail");
+        }
+        var kafkaInstance = reader.getKafkaInstance();
+        var session =
+                new TailSession(
+                        sender,
+                        topicPartitions,
+                        listener,
+                        kafkaInstance.getSettings().getTailBufferSize());
+        // runs until cancelled, so it should not take one of the limited task slots
+        kafkaInstance
+                .getScheduler()
+                .fork(
+                        "tail-" + topicPartitions.get(0),
+                        () -> {
+                            tail(session);
+                            return null;
+                        });
+        return session;
+    }
 
-        return true;
+    private void tail(TailSession session) {
+        var topicPartitions = session.getTopicPartitions();
+        log.info("Tailing {}", topicPartitions);
+        Exception error = null;
+        try (var consumer =
+                reader.getKafkaInstance().createDedicatedConsumer(topicPartitions.get(0).topic())) {
+            session.setConsumer(consumer);
+            consumer.assign(topicPartitions);
+            consumer.seekToEnd(topicPartitions);
+            while (!session.isCancelled()) {
+                session.add(consumer.poll(Duration.ofMillis(POLL_MILLIS)));
+            }
+        } catch (WakeupException | InterruptException e) {
+            log.info("Stopped tailing {}", topicPartitions);
+        } catch (Exception e) {
+            log.error("Failed to tail {}", topicPartitions, e);
+            error = e;
+        } finally {
+            session.setConsumer(null);
+        }
+        session.stopped(error);
     }
 }
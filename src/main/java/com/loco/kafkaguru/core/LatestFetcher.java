@@ -0,0 +1,300 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.core.listeners.KafkaMessagesListener;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// Finds the latest messages of a topic across all its partitions. The partitions are read
+// backwards from their ends in growing windows, and the newest records seen are kept in
+// a heap. A partition is settled once its oldest record read is older than all the
+// records in a full heap, because its unread records are older still. This relies on
+// the timestamps growing within a partition, same as PartitionMerger. The heap is kept
+// within the byte limit of the fetch as it fills up, by dropping its oldest records, and
+// the reading stops if the heap runs low.
+@Log4j2
+class LatestFetcher {
+    private static final long POLL_MILLIS = 500;
+    private static final int MIN_WINDOW = 8;
+    // records delivered at once, so that the view fills up gradually
+    private static final int DELIVERY_BATCH_SIZE = 500;
+
+    private static final Comparator<ConsumerRecord<String, byte[]>> RECORD_ORDER =
+            Comparator.<ConsumerRecord<String, byte[]>>comparingLong(ConsumerRecord::timestamp)
+                    .thenComparingInt(ConsumerRecord::partition)
+                    .thenComparingLong(ConsumerRecord::offset);
+
+    private final KafkaInstance kafkaInstance;
+    private final FetchHandle handle;
+    private final long maxWait;
+
+    private static class PartitionState {
+        private final PartitionOffset offsets;
+        // everything from here up to the end offset has been read
+        private long low;
+        private int window;
+        private int readCount = 0;
+        private long oldestTimestamp = Long.MAX_VALUE;
+
+        private PartitionState(PartitionOffset offsets, int window) {
+            this.offsets = offsets;
+            this.low = offsets.getEndOffset();
+            this.window = window;
+        }
+
+        private TopicPartition getTopicPartition() {
+            return offsets.getTopicPartition();
+        }
+
+        private boolean isExhausted() {
+            return low <= offsets.getStartOffset();
+        }
+
+        private long getWindowStart() {
+            return Math.max(offsets.getStartOffset(), low - window);
+        }
+    }
+
+    // the newest records read so far, oldest first, within a count and a byte limit
+    private static class NewestRecords {
+        private final PriorityQueue<ConsumerRecord<String, byte[]>> records =
+                new PriorityQueue<>(RECORD_ORDER);
+        private final int maxCount;
+        // 0 if there is no limit
+        private final long maxBytes;
+        private long bytes = 0;
+        // records have been dropped to keep within maxBytes
+        private boolean trimmed = false;
+
+        private NewestRecords(int maxCount, long maxBytes) {
+            this.maxCount = maxCount;
+            this.maxBytes = maxBytes;
+        }
+
+        // no older record can be kept any more
+        private boolean isFull() {
+            return records.size() >= maxCount || trimmed;
+        }
+
+        private void add(ConsumerRecord<String, byte[]> record) {
+            if (records.size() < maxCount) {
+                records.add(record);
+                bytes += FetchBudget.sizeOf(record);
+            } else if (RECORD_ORDER.compare(record, records.peek()) > 0) {
+                bytes -= FetchBudget.sizeOf(records.poll());
+                records.add(record);
+                bytes += FetchBudget.sizeOf(record);
+            }
+            // the newest record is kept even if it alone is bigger, as FetchBudget does
+            while (maxBytes > 0 && bytes > maxBytes && records.size() > 1) {
+                bytes -= FetchBudget.sizeOf(records.poll());
+                trimmed = true;
+            }
+        }
+    }
+
+    LatestFetcher(@NonNull KafkaInstance kafkaInstance, @NonNull FetchHandle handle, long maxWait) {
+        this.kafkaInstance = kafkaInstance;
+        this.handle = handle;
+        this.maxWait = maxWait;
+    }
+
+    void fetch(
+            List<PartitionOffset> partitionOffsets,
+            FetchBudget budget,
+            RecordFilter filter,
+            KafkaMessagesListener listener)
+            throws KafkaException {
+        var count = budget.getRemainingCount();
+        var initialWindow =
+                Math.max(
+                        MIN_WINDOW,
+                        (count + partitionOffsets.size() - 1) / partitionOffsets.size());
+        var states =
+                partitionOffsets.stream()
+                        .map(po -> new PartitionState(po, initialWindow))
+                        .collect(Collectors.toList());
+        var newest = new NewestRecords(count, budget.getMaxBytes());
+
+        var topic = partitionOffsets.get(0).getTopicPartition().topic();
+        try (var lease =
+                kafkaInstance.leaseConsumer(kafkaInstance.getFetchTuner().getConfig(topic))) {
+            handle.addLease(lease);
+            var consumer = lease.getConsumer();
+            try {
+                var rounds = 0;
+                List<PartitionState> unsettled;
+                while (budget.checkMemory()
+                        && !(unsettled = getUnsettled(states, newest, count)).isEmpty()) {
+                    ++rounds;
+                    readWindows(consumer, topic, unsettled, newest, budget);
+                }
+                log.info(
+                        "Found latest {} messages of {} partitions in {} rounds",
+                        newest.records.size(),
+                        states.size(),
+                        rounds);
+            } catch (WakeupException e) {
+                lease.wakeupConsumed();
+                log.info("Fetch of latest messages from {} cancelled", topic);
+                return;
+            } catch (KafkaException e) {
+                lease.invalidate();
+                throw e;
+            } finally {
+                handle.removeLease(lease);
+            }
+        }
+
+        deliver(newest, budget, filter, listener);
+    }
+
+    private static List<PartitionState> getUnsettled(
+            List<PartitionState> states, NewestRecords newest, int count) {
+        var full = newest.isFull();
+        var threshold =
+                full && !newest.records.isEmpty()
+                        ? newest.records.peek().timestamp()
+                        : Long.MAX_VALUE;
+        return states.stream()
+                .filter(state -> !state.isExhausted())
+                // a partition cannot contribute more than count records
+                .filter(state -> state.readCount < count)
+                .filter(state -> !full || state.oldestTimestamp >= threshold)
+                .collect(Collectors.toList());
+    }
+
+    // Reads the next window of each partition, and doubles the window for the next round.
+    // Stops early if the heap runs low.
+    private void readWindows(
+            Consumer<String, byte[]> consumer,
+            String topic,
+            List<PartitionState> states,
+            NewestRecords newest,
+            FetchBudget budget) {
+        var pending = new HashMap<TopicPartition, PartitionState>();
+        var cache = kafkaInstance.getMessageCache();
+        for (var state : states) {
+            // a window read before is taken from the cache
+            var pieces = cache.split(state.getTopicPartition(), state.getWindowStart(), state.low);
+            if (pieces.size() == 1 && pieces.get(0).isHeld()) {
+                pieces.get(0).getRecords().forEach(record -> add(state, record, newest));
+                state.low = state.getWindowStart();
+                state.window = (int) Math.min(2L * state.window, Integer.MAX_VALUE);
+            } else {
+                pending.put(state.getTopicPartition(), state);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        var cacheWriter = new CacheWriter(cache);
+        consumer.assign(pending.keySet());
+        // partitions read in the previous round may still be paused
+        consumer.resume(pending.keySet());
+        for (var state : pending.values()) {
+            consumer.seek(state.getTopicPartition(), state.getWindowStart());
+            cacheWriter.start(state.getTopicPartition(), state.getWindowStart(), state.low);
+        }
+
+        var lastReceived = System.currentTimeMillis();
+        while (!pending.isEmpty()) {
+            if (!budget.checkMemory()) {
+                log.warn("Stopped reading the latest messages of {}, the heap is low", topic);
+                return;
+            }
+            var pollStart = System.currentTimeMillis();
+            var records = consumer.poll(Duration.ofMillis(POLL_MILLIS));
+            kafkaInstance
+                    .getFetchTuner()
+                    .recordPoll(topic, records, System.currentTimeMillis() - pollStart);
+            cacheWriter.add(consumer, records);
+            if (!records.isEmpty()) {
+                lastReceived = System.currentTimeMillis();
+            }
+
+            for (var tp : records.partitions()) {
+                var state = pending.get(tp);
+                if (state == null) {
+                    continue;
+                }
+                for (var record : records.records(tp)) {
+                    if (record.offset() < state.low) {
+                        add(state, record, newest);
+                    }
+                }
+            }
+
+            var done = new ArrayList<TopicPartition>();
+            var timedOut = System.currentTimeMillis() - lastReceived > maxWait;
+            for (var entry : pending.entrySet()) {
+                if (timedOut || consumer.position(entry.getKey()) >= entry.getValue().low) {
+                    done.add(entry.getKey());
+                }
+            }
+            if (timedOut) {
+                log.warn("No messages received for {} ms from {}", maxWait, pending.keySet());
+            }
+            for (var tp : done) {
+                var state = pending.remove(tp);
+                // a partition which does not answer is given up, as if fully read
+                state.low = timedOut ? state.offsets.getStartOffset() : state.getWindowStart();
+                state.window = (int) Math.min(2L * state.window, Integer.MAX_VALUE);
+                consumer.pause(List.of(tp));
+            }
+        }
+    }
+
+    private static void add(
+            PartitionState state, ConsumerRecord<String, byte[]> record, NewestRecords newest) {
+        ++state.readCount;
+        state.oldestTimestamp = Math.min(state.oldestTimestamp, record.timestamp());
+        newest.add(record);
+    }
+
+    private void deliver(
+            NewestRecords newest,
+            FetchBudget budget,
+            RecordFilter filter,
+            KafkaMessagesListener listener) {
+        // the filter picks from the latest messages, as it does from the ranges of the
+        // other fetches, rather than searching further back for more matches
+        var records = new ArrayList<ConsumerRecord<String, byte[]>>();
+        for (var record : newest.records) {
+            if (filter == null || filter.test(record)) {
+                records.add(record);
+            }
+        }
+        // the byte limit keeps the newest records, so they are offered newest first
+        records.sort(RECORD_ORDER.reversed());
+        records = new ArrayList<>(budget.take(records));
+        Collections.reverse(records);
+        handle.setStopReason(
+                budget.isExhausted() ? budget.getStopReason() : FetchStopReason.COMPLETED);
+
+        var sender = handle.getSender();
+        var batchNumber = 1;
+        var from = 0;
+        do {
+            var to = Math.min(from + DELIVERY_BATCH_SIZE, records.size());
+            var batch = new ArrayList<>(records.subList(from, to));
+            final var batchNo = batchNumber;
+            final var moreToCome = to < records.size();
+            if (!handle.deliver(
+                    () -> listener.messagesReceived(batch, sender, batchNo, moreToCome))) {
+                return;
+            }
+            ++batchNumber;
+            from = to;
+        } while (from < records.size());
+    }
+}
@@ -0,0 +1,361 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Records already read from the cluster, kept per partition as runs of offsets whose
+// records are all held. A record never changes once written at an offset, so a fetch
+// only has to read the offsets missing here. Once the cache outgrows its size,
+// CachePolicy picks the partitions to drop by how often and how recently they are used.
+// Below it may be a store on disk, which is written through and looked in for what is
+// not held in memory.
+@Log4j2
+public class MessageCache {
+    // bookkeeping added to the size of each record
+    private static final int RECORD_OVERHEAD = 100;
+
+    // Part of a range to read: the records are null if the part is not held.
+    @Getter
+    public static class Piece {
+        private final long startOffset;
+        private final long endOffset;
+        private final List<ConsumerRecord<String, byte[]>> records;
+
+        Piece(long startOffset, long endOffset, List<ConsumerRecord<String, byte[]>> records) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.records = records;
+        }
+
+        public boolean isHeld() {
+            return records != null;
+        }
+    }
+
+    // offsets from start up to, not including, end, with the records in offset order;
+    // offsets removed by compaction have no record
+    private static class Interval {
+        private long start;
+        private long end;
+        private ArrayList<ConsumerRecord<String, byte[]>> records;
+        private long bytes;
+
+        private Interval(long start, long end, ArrayList<ConsumerRecord<String, byte[]>> records) {
+            this.start = start;
+            this.end = end;
+            this.records = records;
+            this.bytes = sizeOf(records);
+        }
+
+        // the records from one offset up to, not including, another
+        private List<ConsumerRecord<String, byte[]>> getRecords(long from, long to) {
+            return new ArrayList<>(records.subList(indexOf(from), indexOf(to)));
+        }
+
+        // index of the first record at or after the offset
+        private int indexOf(long offset) {
+            int low = 0;
+            int high = records.size();
+            while (low < high) {
+                var middle = (low + high) >>> 1;
+                if (records.get(middle).offset() < offset) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final long maxBytes;
+    // key = start offset
+    private final Map<TopicPartition, TreeMap<Long, Interval>> partitions = new HashMap<>();
+    private final CachePolicy<TopicPartition> policy;
+    private long totalBytes = 0;
+    private SegmentStore store;
+
+    public MessageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.policy = new CachePolicy<>(maxBytes, 1024);
+    }
+
+    // the store on disk, or null if there is none
+    public synchronized void setStore(SegmentStore store) {
+        this.store = store;
+    }
+
+    public synchronized SegmentStore getStore() {
+        return store;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // counters of the memory tier; the store on disk has its own
+    public synchronized CacheStats getStats() {
+        return policy.getStats();
+    }
+
+    // Splits the offsets from start up to end into the parts held here, with their
+    // records, and the parts which have to be read. The parts found on disk are brought
+    // back into memory. The disk is looked in outside the lock, not to hold up the
+    // other fetches while a partition is first loaded from it.
+    public List<Piece> split(TopicPartition tp, long start, long end) {
+        List<Piece> pieces;
+        SegmentStore store;
+        synchronized (this) {
+            pieces = splitInMemory(tp, start, end);
+            policy.recordAccess(tp);
+            for (var piece : pieces) {
+                if (piece.isHeld()) {
+                    policy.recordHit(sizeOf(piece.records));
+                } else {
+                    policy.recordMiss();
+                }
+            }
+            store = this.store;
+        }
+        if (store == null) {
+            return pieces;
+        }
+        var result = new ArrayList<Piece>();
+        for (var piece : pieces) {
+            if (piece.isHeld()) {
+                result.add(piece);
+                continue;
+            }
+            for (var storedPiece : store.split(tp, piece.startOffset, piece.endOffset)) {
+                if (storedPiece.isHeld()) {
+                    putInMemory(
+                            tp,
+                            storedPiece.startOffset,
+                            storedPiece.endOffset,
+                            storedPiece.records);
+                }
+                result.add(storedPiece);
+            }
+        }
+        return result;
+    }
+
+    private List<Piece> splitInMemory(TopicPartition tp, long start, long end) {
+        var pieces = new ArrayList<Piece>();
+        var intervals = partitions.get(tp);
+        var position = start;
+        if (intervals != null) {
+            var floor = intervals.floorEntry(start);
+            var candidates =
+                    floor != null && floor.getValue().end > start
+                            ? intervals.tailMap(floor.getKey(), true).values()
+                            : intervals.tailMap(start, true).values();
+            for (var interval : candidates) {
+                if (position >= end || interval.start >= end) {
+                    break;
+                }
+                if (interval.start > position) {
+                    pieces.add(new Piece(position, interval.start, null));
+                    position = interval.start;
+                }
+                var to = Math.min(interval.end, end);
+                pieces.add(new Piece(position, to, interval.getRecords(position, to)));
+                position = to;
+            }
+        }
+        if (position < end) {
+            pieces.add(new Piece(position, end, null));
+        }
+        return pieces;
+    }
+
+    public boolean holdsAny(TopicPartition tp, long start, long end) {
+        SegmentStore store;
+        synchronized (this) {
+            var intervals = partitions.get(tp);
+            if (intervals != null) {
+                var floor = intervals.floorEntry(start);
+                var ceiling = intervals.ceilingKey(start);
+                if ((floor != null && floor.getValue().end > start)
+                        || (ceiling != null && ceiling < end)) {
+                    return true;
+                }
+            }
+            store = this.store;
+        }
+        return store != null && store.holdsAny(tp, start, end);
+    }
+
+    // Adds all the records from start up to end, in offset order.
+    public void put(
+            TopicPartition tp, long start, long end, List<ConsumerRecord<String, byte[]>> records) {
+        // handed to the writer of the store, not to hold up the reader
+        putInMemory(tp, start, end, records);
+        var store = getStore();
+        if (store != null && start < end) {
+            store.write(tp, start, end, records);
+        }
+    }
+
+    private synchronized void putInMemory(
+            TopicPartition tp, long start, long end, List<ConsumerRecord<String, byte[]>> records) {
+        if (start >= end) {
+            return;
+        }
+        var intervals = partitions.computeIfAbsent(tp, k -> new TreeMap<>());
+
+        // the usual case, continuing a run being read
+        var floor = intervals.floorEntry(start);
+        if (floor != null && floor.getValue().end == start) {
+            var interval = floor.getValue();
+            var next = intervals.higherEntry(start);
+            if (next == null || next.getKey() >= end) {
+                var bytes = sizeOf(records);
+                interval.records.addAll(records);
+                interval.end = end;
+                interval.bytes += bytes;
+                totalBytes += bytes;
+                if (next != null && next.getKey() == end) {
+                    merge(intervals, interval, intervals.remove(end));
+                }
+                evict(tp);
+                return;
+            }
+        }
+
+        // otherwise the overlapping and adjacent runs are merged with the new one
+        var merged = new Interval(start, end, new ArrayList<>(records));
+        totalBytes += merged.bytes;
+        if (floor != null && floor.getValue().end >= start) {
+            var previous = intervals.remove(floor.getKey());
+            merged = join(previous, merged);
+        }
+        Long key;
+        while ((key = intervals.ceilingKey(merged.start)) != null && key <= merged.end) {
+            merged = join(merged, intervals.remove(key));
+        }
+        intervals.put(merged.start, merged);
+        evict(tp);
+    }
+
+    // Forgets a partition whose end offset is below what is held, as it has been
+    // deleted and created again since.
+    public void checkEndOffset(TopicPartition tp, long endOffset) {
+        SegmentStore store;
+        synchronized (this) {
+            var intervals = partitions.get(tp);
+            if (intervals != null
+                    && !intervals.isEmpty()
+                    && intervals.lastEntry().getValue().end > endOffset) {
+                log.info("{} has been recreated, dropping its cached messages", tp);
+                remove(tp);
+            }
+            store = this.store;
+        }
+        if (store != null) {
+            store.checkEndOffset(tp, endOffset);
+        }
+    }
+
+    // drops what is held in memory; the store on disk is kept
+    public synchronized void clear() {
+        partitions.clear();
+        policy.clear();
+        totalBytes = 0;
+    }
+
+    // joins two runs which overlap or touch, the first starting first
+    private Interval join(Interval first, Interval second) {
+        if (second.end <= first.end) {
+            // second adds nothing
+            totalBytes -= second.bytes;
+            return first;
+        }
+        var records = new ArrayList<>(first.records);
+        records.addAll(second.getRecords(first.end, second.end));
+        var joined = new Interval(first.start, second.end, records);
+        totalBytes += joined.bytes - first.bytes - second.bytes;
+        return joined;
+    }
+
+    private void merge(TreeMap<Long, Interval> intervals, Interval first, Interval second) {
+        intervals.remove(first.start);
+        intervals.put(first.start, join(first, second));
+    }
+
+    private void remove(TopicPartition tp) {
+        var intervals = partitions.remove(tp);
+        if (intervals != null) {
+            totalBytes -= bytesOf(intervals);
+        }
+        policy.remove(tp);
+    }
+
+    // drops the partitions chosen by the policy, but not the one just added to
+    private void evict(TopicPartition current) {
+        var intervals = partitions.get(current);
+        policy.setWeight(current, bytesOf(intervals));
+        for (var tp : policy.evict(current)) {
+            totalBytes -= bytesOf(partitions.remove(tp));
+            log.info("Dropped the cached messages of {}", tp);
+        }
+        // a single partition bigger than the cache keeps only the latest part of its
+        // latest run, as a run being extended keeps growing
+        while (totalBytes > maxBytes && intervals.size() > 1) {
+            totalBytes -= intervals.pollFirstEntry().getValue().bytes;
+        }
+        if (totalBytes > maxBytes) {
+            trimHead(intervals, totalBytes - maxBytes);
+        }
+        if (intervals.isEmpty()) {
+            remove(current);
+        } else {
+            policy.setWeight(current, bytesOf(intervals));
+        }
+    }
+
+    // drops the oldest records of the only run left until excess bytes are freed
+    private void trimHead(TreeMap<Long, Interval> intervals, long excess) {
+        var interval = intervals.pollFirstEntry().getValue();
+        long freed = 0;
+        var count = 0;
+        while (count < interval.records.size() && freed < excess) {
+            freed += sizeOf(List.of(interval.records.get(count)));
+            ++count;
+        }
+        totalBytes -= freed;
+        if (count == interval.records.size()) {
+            totalBytes -= interval.bytes - freed;
+            return;
+        }
+        interval.records =
+                new ArrayList<>(interval.records.subList(count, interval.records.size()));
+        interval.start = interval.records.get(0).offset();
+        interval.bytes -= freed;
+        intervals.put(interval.start, interval);
+    }
+
+    private static long bytesOf(TreeMap<Long, Interval> intervals) {
+        long bytes = 0;
+        for (var interval : intervals.values()) {
+            bytes += interval.bytes;
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(List<ConsumerRecord<String, byte[]>> records) {
+        long bytes = 0;
+        for (var record : records) {
+            bytes += FetchBudget.sizeOf(record) + RECORD_OVERHEAD;
+        }
+        return bytes;
+    }
+}
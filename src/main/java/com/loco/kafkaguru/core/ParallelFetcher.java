@@ -0,0 +1,380 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.core.listeners.KafkaMessagesListener;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.WakeupException;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+// Reads the partitions of a topic with several consumers at once. The partitions are
+// grouped by their leader, so that each consumer talks to as few brokers as possible,
+// and the records of all of them are delivered merged in timestamp order.
+@Log4j2
+class ParallelFetcher {
+    private static final long POLL_MILLIS = 500;
+
+    private final KafkaInstance kafkaInstance;
+    private final FetchHandle handle;
+    private final long maxWait;
+    private final int maxConsumers;
+
+    ParallelFetcher(
+            @NonNull KafkaInstance kafkaInstance,
+            @NonNull FetchHandle handle,
+            long maxWait,
+            int maxConsumers) {
+        this.kafkaInstance = kafkaInstance;
+        this.handle = handle;
+        this.maxWait = maxWait;
+        this.maxConsumers = maxConsumers;
+    }
+
+    // Each range is read from its start offset up to, not including, its end offset.
+    // The parts of the ranges held by the message cache are taken from there, and only
+    // the rest is read. Records not passing the filter, if any, are dropped.
+    void fetch(
+            List<PartitionOffset> ranges,
+            FetchBudget budget,
+            RecordFilter filter,
+            KafkaMessagesListener listener)
+            throws KafkaException {
+        var sender = handle.getSender();
+        var merger =
+                new PartitionMerger(
+                        ranges.stream()
+                                .map(PartitionOffset::getTopicPartition)
+                                .collect(Collectors.toList()),
+                        kafkaInstance.getSettings().getFetchBufferPerPartition());
+        var leases = new ArrayList<ConsumerLease>();
+        var workers = new ArrayList<Future<?>>();
+        try {
+            // key = partition, value = the parts of its range, held or to be read
+            var pieces = new HashMap<TopicPartition, List<MessageCache.Piece>>();
+            var toRead = new ArrayList<PartitionOffset>();
+            for (var range : ranges) {
+                var tp = range.getTopicPartition();
+                var parts =
+                        kafkaInstance
+                                .getMessageCache()
+                                .split(tp, range.getStartOffset(), range.getEndOffset());
+                if (parts.stream().allMatch(MessageCache.Piece::isHeld)) {
+                    parts.forEach(part -> offer(merger, tp, part.getRecords(), filter));
+                    merger.finish(tp);
+                } else {
+                    pieces.put(tp, parts);
+                    toRead.add(range);
+                }
+            }
+            log.info(
+                    "{} of {} partitions found in the cache",
+                    ranges.size() - toRead.size(),
+                    ranges.size());
+
+            if (!toRead.isEmpty()) {
+                var groups = groupByLeader(kafkaInstance, toRead);
+                var topic = toRead.get(0).getTopicPartition().topic();
+                leaseConsumers(
+                        kafkaInstance,
+                        handle,
+                        leases,
+                        Math.min(groups.size(), maxConsumers),
+                        kafkaInstance.getFetchTuner().getConfig(topic));
+                var assignments = assign(groups, leases.size());
+                log.info(
+                        "Reading {} partitions with {} consumers",
+                        toRead.size(),
+                        assignments.size());
+
+                for (int i = 0; i < assignments.size(); ++i) {
+                    var lease = leases.get(i);
+                    var assignment = assignments.get(i);
+                    workers.add(
+                            kafkaInstance
+                                    .getScheduler()
+                                    .fork(
+                                            "read-" + assignment.get(0).getTopicPartition(),
+                                            () -> {
+                                                read(lease, assignment, pieces, filter, merger);
+                                                return null;
+                                            }));
+                }
+            }
+
+            var more = true;
+            for (int batchNumber = 1; more; ++batchNumber) {
+                var batch = budget.take(merger.take(budget.getRemainingCount()));
+                more = !budget.isExhausted() && !merger.isDrained() && !merger.isClosed();
+                log.info("merged {} messages, total {}", batch.size(), budget.getMessageCount());
+                if (!more) {
+                    handle.setStopReason(
+                            budget.isExhausted()
+                                    ? budget.getStopReason()
+                                    : merger.isDrained()
+                                            ? FetchStopReason.COMPLETED
+                                            : FetchStopReason.CANCELLED);
+                }
+
+                final var batchNo = batchNumber;
+                final var moreToCome = more;
+                if (!handle.deliver(
+                        () -> listener.messagesReceived(batch, sender, batchNo, moreToCome))) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptException(e);
+        } finally {
+            merger.close();
+            stopWorkers(leases, workers);
+            for (var lease : leases) {
+                handle.removeLease(lease);
+                lease.close();
+            }
+        }
+    }
+
+    // The first consumer is waited for, the others are taken only if free right away.
+    static void leaseConsumers(
+            KafkaInstance kafkaInstance,
+            FetchHandle handle,
+            List<ConsumerLease> leases,
+            int maxCount,
+            FetchConfig config) {
+        var lease = kafkaInstance.leaseConsumer(config);
+        do {
+            leases.add(lease);
+            handle.addLease(lease);
+        } while (leases.size() < maxCount
+                && (lease = kafkaInstance.tryLeaseConsumer(config)) != null);
+    }
+
+    static Collection<List<PartitionOffset>> groupByLeader(
+            KafkaInstance kafkaInstance, List<PartitionOffset> ranges) {
+        var topic = ranges.get(0).getTopicPartition().topic();
+        var leaders = new HashMap<Integer, Integer>();
+        var partitions = kafkaInstance.getMetadataService().getPartitions(topic);
+        if (partitions != null) {
+            for (PartitionInfo partition : partitions) {
+                if (partition.leader() != null) {
+                    leaders.put(partition.partition(), partition.leader().id());
+                }
+            }
+        }
+
+        // key = leader id, -1 if not known
+        var groups = new TreeMap<Integer, List<PartitionOffset>>();
+        for (var range : ranges) {
+            var leader = leaders.getOrDefault(range.getTopicPartition().partition(), -1);
+            groups.computeIfAbsent(leader, k -> new ArrayList<>()).add(range);
+        }
+        return groups.values();
+    }
+
+    // Spreads the leader groups over the consumers, biggest group first, each one
+    // to the consumer with the fewest partitions so far.
+    static List<List<PartitionOffset>> assign(
+            Collection<List<PartitionOffset>> groups, int consumerCount) {
+        var sortedGroups = new ArrayList<>(groups);
+        sortedGroups.sort(Comparator.comparingInt(List<PartitionOffset>::size).reversed());
+
+        var assignments = new ArrayList<List<PartitionOffset>>();
+        for (var group : sortedGroups) {
+            if (assignments.size() < consumerCount) {
+                assignments.add(new ArrayList<>(group));
+            } else {
+                assignments.stream()
+                        .min(Comparator.comparingInt(List::size))
+                        .ifPresent(assignment -> assignment.addAll(group));
+            }
+        }
+        return assignments;
+    }
+
+    private void read(
+            ConsumerLease lease,
+            List<PartitionOffset> assignment,
+            Map<TopicPartition, List<MessageCache.Piece>> pieces,
+            RecordFilter filter,
+            PartitionMerger merger) {
+        var consumer = lease.getConsumer();
+        var topic = assignment.get(0).getTopicPartition().topic();
+        var cacheWriter = new CacheWriter(kafkaInstance.getMessageCache());
+        // key = partition being read, value = the parts of its range left, the first
+        // one being read
+        var active = new HashMap<TopicPartition, ArrayDeque<MessageCache.Piece>>();
+        var paused = new HashSet<TopicPartition>();
+        try {
+            consumer.assign(
+                    assignment.stream()
+                            .map(PartitionOffset::getTopicPartition)
+                            .collect(Collectors.toList()));
+            var done = new ArrayList<TopicPartition>();
+            for (var range : assignment) {
+                var tp = range.getTopicPartition();
+                active.put(tp, new ArrayDeque<>(pieces.get(tp)));
+                if (!startNextPiece(consumer, tp, active.get(tp), cacheWriter, filter, merger)) {
+                    done.add(tp);
+                }
+            }
+            done.forEach(tp -> finish(consumer, tp, active, paused, merger));
+
+            var lastReceived = System.currentTimeMillis();
+            while (!active.isEmpty() && !merger.isClosed()) {
+                // partitions whose records have not been taken yet are not fetched
+                for (var tp : active.keySet()) {
+                    if (merger.isFull(tp) != paused.contains(tp)) {
+                        if (paused.add(tp)) {
+                            consumer.pause(List.of(tp));
+                        } else {
+                            paused.remove(tp);
+                            consumer.resume(List.of(tp));
+                        }
+                    }
+                }
+                if (paused.size() == active.size()) {
+                    merger.awaitSpace(POLL_MILLIS);
+                    lastReceived = System.currentTimeMillis();
+                    continue;
+                }
+
+                var pollStart = System.currentTimeMillis();
+                var records = consumer.poll(Duration.ofMillis(POLL_MILLIS));
+                kafkaInstance
+                        .getFetchTuner()
+                        .recordPoll(topic, records, System.currentTimeMillis() - pollStart);
+                cacheWriter.add(consumer, records);
+                for (var tp : records.partitions()) {
+                    var parts = active.get(tp);
+                    if (parts == null) {
+                        continue;
+                    }
+                    var endOffset = parts.peekFirst().getEndOffset();
+                    var partitionRecords = new ArrayList<ConsumerRecord<String, byte[]>>();
+                    for (var record : records.records(tp)) {
+                        if (record.offset() < endOffset) {
+                            partitionRecords.add(record);
+                        }
+                    }
+                    offer(merger, tp, partitionRecords, filter);
+                }
+                if (!records.isEmpty()) {
+                    lastReceived = System.currentTimeMillis();
+                }
+
+                done.clear();
+                for (var entry : active.entrySet()) {
+                    var tp = entry.getKey();
+                    var parts = entry.getValue();
+                    if (consumer.position(tp) >= parts.peekFirst().getEndOffset()) {
+                        parts.pollFirst();
+                        cacheWriter.stop(tp);
+                        if (!startNextPiece(consumer, tp, parts, cacheWriter, filter, merger)) {
+                            done.add(tp);
+                        }
+                    }
+                }
+                // same as the serial fetch, give up on partitions that stay silent too long
+                if (System.currentTimeMillis() - lastReceived > maxWait) {
+                    for (var tp : active.keySet()) {
+                        if (!paused.contains(tp) && !done.contains(tp)) {
+                            log.warn("No messages received for {} ms from {}", maxWait, tp);
+                            done.add(tp);
+                        }
+                    }
+                }
+                done.forEach(tp -> finish(consumer, tp, active, paused, merger));
+            }
+        } catch (WakeupException e) {
+            lease.wakeupConsumed();
+            merger.close();
+        } catch (InterruptedException e) {
+            merger.close();
+        } catch (RuntimeException e) {
+            if (e instanceof KafkaException) {
+                lease.invalidate();
+            }
+            merger.fail(e);
+        }
+    }
+
+    // Hands over the held parts at the head of the range, and seeks to the part after
+    // them. Returns false if nothing is left to read.
+    private static boolean startNextPiece(
+            Consumer<String, byte[]> consumer,
+            TopicPartition tp,
+            ArrayDeque<MessageCache.Piece> parts,
+            CacheWriter cacheWriter,
+            RecordFilter filter,
+            PartitionMerger merger) {
+        while (!parts.isEmpty() && parts.peekFirst().isHeld()) {
+            offer(merger, tp, parts.pollFirst().getRecords(), filter);
+        }
+        if (parts.isEmpty()) {
+            return false;
+        }
+        var part = parts.peekFirst();
+        consumer.seek(tp, part.getStartOffset());
+        cacheWriter.start(tp, part.getStartOffset(), part.getEndOffset());
+        return true;
+    }
+
+    // the partition stays assigned, but is no longer fetched
+    private static void finish(
+            Consumer<String, byte[]> consumer,
+            TopicPartition tp,
+            Map<TopicPartition, ArrayDeque<MessageCache.Piece>> active,
+            Set<TopicPartition> paused,
+            PartitionMerger merger) {
+        active.remove(tp);
+        paused.remove(tp);
+        consumer.pause(List.of(tp));
+        merger.finish(tp);
+    }
+
+    private static void offer(
+            PartitionMerger merger,
+            TopicPartition tp,
+            List<ConsumerRecord<String, byte[]>> records,
+            RecordFilter filter) {
+        if (filter != null) {
+            records = records.stream().filter(filter).collect(Collectors.toList());
+        }
+        merger.offer(tp, records);
+    }
+
+    private static void stopWorkers(List<ConsumerLease> leases, List<Future<?>> workers) {
+        for (int i = 0; i < workers.size(); ++i) {
+            if (!workers.get(i).isDone()) {
+                leases.get(i).wakeup();
+            }
+        }
+        // the leases must not be released while a worker still uses its consumer
+        var interrupted = false;
+        for (int i = 0; i < workers.size(); ) {
+            try {
+                workers.get(i).get();
+                ++i;
+            } catch (ExecutionException e) {
+                log.error("Partition reader failed", e.getCause());
+                ++i;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
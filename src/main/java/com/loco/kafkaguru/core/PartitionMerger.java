@@ -0,0 +1,122 @@
+package com.loco.kafkaguru.core;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.*;
+
+// Merges the records of several partitions into one stream ordered by timestamp.
+// A record is released only once every partition still being read has a record
+// buffered, so that no later arrival can be older than it. This relies on the
+// timestamps growing within a partition, which holds for LogAppendTime and, in
+// practice, for CreateTime.
+class PartitionMerger {
+    private static final Comparator<ConsumerRecord<String, byte[]>> RECORD_ORDER =
+            Comparator.<ConsumerRecord<String, byte[]>>comparingLong(ConsumerRecord::timestamp)
+                    .thenComparingInt(ConsumerRecord::partition)
+                    .thenComparingLong(ConsumerRecord::offset);
+
+    private final int bufferCapacity;
+    private final Map<TopicPartition, ArrayDeque<ConsumerRecord<String, byte[]>>> buffers =
+            new HashMap<>();
+    private final Set<TopicPartition> finished = new HashSet<>();
+    // non empty buffers, ordered by their first record
+    private final PriorityQueue<ArrayDeque<ConsumerRecord<String, byte[]>>> heads =
+            new PriorityQueue<>(Comparator.comparing(ArrayDeque::peekFirst, RECORD_ORDER));
+    // number of partitions which are neither finished nor have a record buffered
+    private int waitingCount;
+    private RuntimeException failure;
+    private boolean closed = false;
+
+    PartitionMerger(Collection<TopicPartition> topicPartitions, int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+        topicPartitions.forEach(tp -> buffers.put(tp, new ArrayDeque<>()));
+        waitingCount = buffers.size();
+    }
+
+    synchronized void offer(TopicPartition tp, List<ConsumerRecord<String, byte[]>> records) {
+        if (records.isEmpty() || closed) {
+            return;
+        }
+        var buffer = buffers.get(tp);
+        var wasEmpty = buffer.isEmpty();
+        buffer.addAll(records);
+        if (wasEmpty) {
+            heads.add(buffer);
+            if (!finished.contains(tp)) {
+                --waitingCount;
+            }
+        }
+        notifyAll();
+    }
+
+    // no more records will be offered for the partition
+    synchronized void finish(TopicPartition tp) {
+        if (finished.add(tp) && buffers.get(tp).isEmpty()) {
+            --waitingCount;
+        }
+        notifyAll();
+    }
+
+    synchronized void fail(RuntimeException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    // makes the readers and writers give up
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized boolean isFull(TopicPartition tp) {
+        return buffers.get(tp).size() >= bufferCapacity;
+    }
+
+    // all partitions are finished, and all their records are taken
+    synchronized boolean isDrained() {
+        return waitingCount == 0 && heads.isEmpty();
+    }
+
+    // waits until records are taken, or the timeout elapses
+    synchronized void awaitSpace(long timeoutMs) throws InterruptedException {
+        if (!closed) {
+            wait(timeoutMs);
+        }
+    }
+
+    // Blocks until at least one record can be released, and returns up to maxCount of
+    // them in order. Returns an empty list once drained or closed.
+    synchronized List<ConsumerRecord<String, byte[]>> take(int maxCount)
+            throws InterruptedException {
+        while (!closed && failure == null && waitingCount > 0) {
+            wait();
+        }
+        if (failure != null) {
+            throw failure instanceof KafkaException
+                    ? failure
+                    : new KafkaException("Failed to read partitions", failure);
+        }
+
+        var batch = new ArrayList<ConsumerRecord<String, byte[]>>();
+        while (!closed && batch.size() < maxCount && waitingCount == 0 && !heads.isEmpty()) {
+            var buffer = heads.poll();
+            var record = buffer.pollFirst();
+            batch.add(record);
+            if (!buffer.isEmpty()) {
+                heads.add(buffer);
+            } else if (!finished.contains(new TopicPartition(record.topic(), record.partition()))) {
+                ++waitingCount;
+            }
+        }
+        notifyAll();
+        return batch;
+    }
+}
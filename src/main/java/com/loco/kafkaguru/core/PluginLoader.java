@@ -4,7 +4,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.loco.kafkaguru.MessageFormatter;
 import lombok.extern.log4j.Log4j2;
-import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
@@ -52,19 +51,7 @@ public class PluginLoader extends ClassLoader {
     }
 
     private static MessageFormatter createJsonFormatter() {
-        return new MessageFormatter() {
-            @Override
-            public String name() {
-                return "Json";
-            }
-
-            @Override
-            public String format(byte[] data) {
-                var text = new String(data);
-                String indented = new JSONObject(text).toString(4);
-                return indented;
-            }
-        };
+        return new StreamingJsonFormatter();
     }
 
     public static void loadPlugins(PluginInfo pluginInfo) {
@@ -0,0 +1,51 @@
+package com.loco.kafkaguru.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Which topics of a cluster are prefetched, saved with the settings. A topic is
+// prefetched when it matches one of the included patterns and none of the excluded
+// ones, where '*' in a pattern matches any text.
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PrefetchSettings {
+    @Builder.Default private List<String> includedTopics = new ArrayList<>();
+    @Builder.Default private List<String> excludedTopics = new ArrayList<>();
+    @Builder.Default private boolean paused = false;
+
+    public static PrefetchSettings createNew() {
+        return PrefetchSettings.builder().build();
+    }
+
+    public boolean isPrefetched(String topic) {
+        return includedTopics.stream().anyMatch(pattern -> matches(pattern, topic))
+                && excludedTopics.stream().noneMatch(pattern -> matches(pattern, topic));
+    }
+
+    static boolean matches(String pattern, String topic) {
+        var parts = pattern.split("\\*", -1);
+        if (parts.length == 1) {
+            return pattern.equals(topic);
+        }
+        if (!topic.startsWith(parts[0])) {
+            return false;
+        }
+        var position = parts[0].length();
+        for (int i = 1; i < parts.length - 1; ++i) {
+            var found = topic.indexOf(parts[i], position);
+            if (found < 0) {
+                return false;
+            }
+            position = found + parts[i].length();
+        }
+        var last = parts[parts.length - 1];
+        return topic.length() - last.length() >= position && topic.endsWith(last);
+    }
+}
@@ -0,0 +1,346 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.WakeupException;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps the message cache up to date with the latest records of the topics chosen in
+// PrefetchSettings, so that opening them shows their messages at once. It runs in the
+// background with a consumer of its own, reads no more bytes per second than the
+// settings allow, and gives way while the views are fetching.
+@Log4j2
+public class Prefetcher {
+    private static final long POLL_MILLIS = 500;
+    // how long to wait while the views are fetching
+    private static final long YIELD_MILLIS = 1_000;
+    // how often the topics are matched again
+    private static final long REFRESH_MILLIS = 30_000;
+    private static final long LAG_MILLIS = 5_000;
+    // how long to wait after a failure, doubled while it keeps failing
+    private static final long MIN_BACKOFF_MILLIS = 1_000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final KafkaInstance kafkaInstance;
+    @Getter private final PrefetchSettings settings;
+    // key = partition prefetched, value = offsets it is behind its end
+    private final Map<TopicPartition, Long> lags = new ConcurrentHashMap<>();
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+    private Future<?> task;
+    private KafkaConsumer<String, byte[]> consumer;
+    private boolean topicsChanged = false;
+
+    // byte rate cap, as a bucket holding at most a second of bytes
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+
+    Prefetcher(@NonNull KafkaInstance kafkaInstance, @NonNull PrefetchSettings settings) {
+        this.kafkaInstance = kafkaInstance;
+        this.settings = settings;
+    }
+
+    // (re)starts after a connection, as the url may point to another cluster
+    synchronized void start() {
+        stop();
+        lags.clear();
+        task =
+                kafkaInstance
+                        .getScheduler()
+                        .fork(
+                                "prefetch-" + kafkaInstance.getName(),
+                                () -> {
+                                    run();
+                                    return null;
+                                });
+    }
+
+    synchronized void stop() {
+        if (task == null) {
+            return;
+        }
+        task.cancel(true);
+        task = null;
+        if (consumer != null) {
+            consumer.wakeup();
+        }
+        lags.clear();
+    }
+
+    public synchronized boolean isPrefetched(String topic) {
+        return settings.isPrefetched(topic);
+    }
+
+    // prefetches a topic, or stops prefetching it
+    public synchronized void setPrefetched(String topic, boolean prefetched) {
+        if (prefetched) {
+            settings.getExcludedTopics().remove(topic);
+            if (!settings.isPrefetched(topic)) {
+                settings.getIncludedTopics().add(topic);
+            }
+        } else {
+            // an exact include is taken back, a pattern gets an exclude
+            settings.getIncludedTopics().remove(topic);
+            if (settings.isPrefetched(topic)) {
+                settings.getExcludedTopics().add(topic);
+            }
+        }
+        topicsChanged = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isPaused() {
+        return settings.isPaused();
+    }
+
+    public synchronized void pause() {
+        settings.setPaused(true);
+        log.info("Paused prefetching on {}", kafkaInstance.getName());
+    }
+
+    public synchronized void resume() {
+        settings.setPaused(false);
+        notifyAll();
+        log.info("Resumed prefetching on {}", kafkaInstance.getName());
+    }
+
+    // offsets a partition is behind its end, as last measured; null if it is not prefetched
+    public Long getLag(TopicPartition tp) {
+        return lags.get(tp);
+    }
+
+    // offsets a topic is behind its end, null if it is not prefetched
+    public Long getLag(String topic) {
+        Long lag = null;
+        for (var entry : lags.entrySet()) {
+            if (entry.getKey().topic().equals(topic)) {
+                lag = (lag == null ? 0 : lag) + entry.getValue();
+            }
+        }
+        return lag;
+    }
+
+    // bytes read since the prefetcher started
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    private synchronized void setConsumer(KafkaConsumer<String, byte[]> consumer) {
+        this.consumer = consumer;
+    }
+
+    // a stopped run may still be closing while the next one has started
+    private synchronized void clearConsumer(KafkaConsumer<String, byte[]> consumer) {
+        if (this.consumer == consumer) {
+            this.consumer = null;
+        }
+    }
+
+    private void run() {
+        var cache = kafkaInstance.getMessageCache();
+        var writer = new CacheWriter(cache);
+        Set<TopicPartition> assigned = new HashSet<>();
+        KafkaConsumer<String, byte[]> consumer = null;
+        long nextRefresh = 0;
+        long nextLag = 0;
+        var backoff = MIN_BACKOFF_MILLIS;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    if (!waitUntilWanted()) {
+                        continue;
+                    }
+                    var now = System.currentTimeMillis();
+                    if (now >= nextRefresh || takeTopicsChanged()) {
+                        nextRefresh = now + REFRESH_MILLIS;
+                        var wanted = getWantedPartitions();
+                        if (!wanted.equals(assigned)) {
+                            if (consumer == null && !wanted.isEmpty()) {
+                                consumer =
+                                        kafkaInstance.createDedicatedConsumer(
+                                                wanted.iterator().next().topic());
+                                setConsumer(consumer);
+                            }
+                            if (consumer != null) {
+                                assign(consumer, writer, assigned, wanted);
+                            }
+                            assigned = wanted;
+                            nextLag = 0;
+                        }
+                    }
+                    if (assigned.isEmpty()) {
+                        waitFor(REFRESH_MILLIS);
+                        continue;
+                    }
+                    // the views come first
+                    if (kafkaInstance.getLeasedConsumerCount() > 0) {
+                        Thread.sleep(YIELD_MILLIS);
+                        continue;
+                    }
+
+                    var records = consumer.poll(Duration.ofMillis(POLL_MILLIS));
+                    writer.add(consumer, records);
+                    long bytes = 0;
+                    for (var record : records) {
+                        bytes += FetchBudget.sizeOf(record);
+                    }
+                    prefetchedBytes.addAndGet(bytes);
+                    if (now >= nextLag) {
+                        nextLag = now + LAG_MILLIS;
+                        measureLags(consumer, assigned);
+                    }
+                    throttle(bytes);
+                    backoff = MIN_BACKOFF_MILLIS;
+                } catch (WakeupException | InterruptException | InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // the cluster may be away for a while; everything is set up again
+                    log.error(
+                            "Failed to prefetch on {}, trying again in {} ms",
+                            kafkaInstance.getName(),
+                            backoff,
+                            e);
+                    if (consumer != null) {
+                        clearConsumer(consumer);
+                        closeQuietly(consumer);
+                        consumer = null;
+                    }
+                    writer = new CacheWriter(cache);
+                    assigned = new HashSet<>();
+                    lags.clear();
+                    nextRefresh = 0;
+                    Thread.sleep(backoff);
+                    backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+                }
+            }
+        } catch (WakeupException | InterruptException | InterruptedException e) {
+            log.info("Stopped prefetching on {}", kafkaInstance.getName());
+        } finally {
+            if (consumer != null) {
+                clearConsumer(consumer);
+                closeQuietly(consumer);
+            }
+        }
+    }
+
+    private static void closeQuietly(KafkaConsumer<String, byte[]> consumer) {
+        try {
+            consumer.close(Duration.ofSeconds(1));
+        } catch (Exception e) {
+            log.warn("Failed to close the prefetch consumer", e);
+        }
+    }
+
+    // waits while paused; returns false if woken up to look again
+    private synchronized boolean waitUntilWanted() throws InterruptedException {
+        if (settings.isPaused()) {
+            wait(REFRESH_MILLIS);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void waitFor(long millis) throws InterruptedException {
+        if (!topicsChanged) {
+            wait(millis);
+        }
+    }
+
+    private synchronized boolean takeTopicsChanged() {
+        var changed = topicsChanged;
+        topicsChanged = false;
+        return changed;
+    }
+
+    private Set<TopicPartition> getWantedPartitions() {
+        var topics = kafkaInstance.getMetadataService().getTopics();
+        var wanted = new HashSet<TopicPartition>();
+        synchronized (this) {
+            topics.forEach(
+                    (topic, partitions) -> {
+                        if (settings.isPrefetched(topic)) {
+                            partitions.forEach(
+                                    partition ->
+                                            wanted.add(
+                                                    new TopicPartition(
+                                                            topic, partition.partition())));
+                        }
+                    });
+        }
+        return wanted;
+    }
+
+    // The partitions added start with the offsets missing from the cache among their
+    // latest prefetchBacklog ones.
+    private void assign(
+            KafkaConsumer<String, byte[]> consumer,
+            CacheWriter writer,
+            Set<TopicPartition> assigned,
+            Set<TopicPartition> wanted) {
+        var added = new ArrayList<TopicPartition>();
+        for (var tp : wanted) {
+            if (!assigned.contains(tp)) {
+                added.add(tp);
+            }
+        }
+        for (var tp : assigned) {
+            if (!wanted.contains(tp)) {
+                writer.stop(tp);
+                lags.remove(tp);
+            }
+        }
+        consumer.assign(wanted);
+        if (added.isEmpty()) {
+            return;
+        }
+
+        var cache = kafkaInstance.getMessageCache();
+        var backlog = kafkaInstance.getSettings().getPrefetchBacklog();
+        var startOffsets = consumer.beginningOffsets(added);
+        var endOffsets = consumer.endOffsets(added);
+        for (var tp : added) {
+            var end = endOffsets.get(tp);
+            var start = Math.max(startOffsets.get(tp), end - backlog);
+            cache.checkEndOffset(tp, end);
+            var position = end;
+            for (var piece : cache.split(tp, start, end)) {
+                if (!piece.isHeld()) {
+                    position = piece.getStartOffset();
+                    break;
+                }
+            }
+            consumer.seek(tp, position);
+            writer.start(tp, position, Long.MAX_VALUE);
+        }
+        log.info("Prefetching {} on {}", wanted, kafkaInstance.getName());
+    }
+
+    private void measureLags(KafkaConsumer<String, byte[]> consumer, Set<TopicPartition> assigned) {
+        var endOffsets = consumer.endOffsets(assigned);
+        for (var tp : assigned) {
+            lags.put(tp, Math.max(0, endOffsets.get(tp) - consumer.position(tp)));
+        }
+    }
+
+    // waits until the bytes just read are within the rate
+    private void throttle(long bytes) throws InterruptedException {
+        var rate = (double) kafkaInstance.getSettings().getPrefetchMaxBytesPerSecond();
+        if (rate <= 0) {
+            return;
+        }
+        var now = System.nanoTime();
+        tokens = Math.min(rate, tokens + rate * (now - lastRefill) / 1e9) - bytes;
+        lastRefill = now;
+        if (tokens < 0) {
+            Thread.sleep((long) (-tokens / rate * 1_000));
+        }
+    }
+}
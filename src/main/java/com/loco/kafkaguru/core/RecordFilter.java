@@ -0,0 +1,590 @@
+package com.loco.kafkaguru.core;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+// A filter on the records read from kafka, written in a small query language:
+//
+//   key = "order-1" and (partition = 3 or offset >= 1000)
+//   body contains "error" and not header.type = "ping"
+//   json.items[0].price > 10.5 and timestamp >= "2020-05-01 10:00"
+//
+// The fields are key, partition, offset, timestamp, body, header.<name> and
+// json.<path>. The operators are =, !=, <, <=, >, >=, contains and exists, combined
+// with and, or, not and parentheses. A != b is the same as not a = b. Contains ignores
+// the case of ASCII letters. A timestamp is compared with epoch millis, or with a
+// quoted time in any form FetchCursor accepts.
+//
+// The query is compiled once into a tree of predicates that test the raw records: the
+// body is searched byte by byte, and JSON fields are looked up by tokenizing the value,
+// without building a document or decoding the body into a string.
+public class RecordFilter implements Predicate<ConsumerRecord<String, byte[]>> {
+    private enum Operator {
+        EQ("="),
+        NE("!="),
+        LT("<"),
+        LE("<="),
+        GT(">"),
+        GE(">="),
+        CONTAINS("contains"),
+        EXISTS("exists");
+
+        private final String text;
+
+        Operator(String text) {
+            this.text = text;
+        }
+    }
+
+    private final String query;
+    private final Predicate<ConsumerRecord<String, byte[]>> predicate;
+
+    private RecordFilter(String query, Predicate<ConsumerRecord<String, byte[]>> predicate) {
+        this.query = query;
+        this.predicate = predicate;
+    }
+
+    // Throws IllegalArgumentException, which tells where the query is wrong, if it
+    // cannot be compiled. A blank query is not a filter, and returns null.
+    public static RecordFilter compile(String query) {
+        if (StringUtils.isBlank(query)) {
+            return null;
+        }
+        return new RecordFilter(query.trim(), new Parser(query).parse());
+    }
+
+    @Override
+    public boolean test(ConsumerRecord<String, byte[]> record) {
+        return predicate.test(record);
+    }
+
+    public String toString() {
+        return query;
+    }
+
+    // Recursive descent over the query text, with the usual precedence: not binds
+    // tighter than and, which binds tighter than or.
+    private static class Parser {
+        private final String text;
+        private int position = 0;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> parse() {
+            var predicate = parseOr();
+            skipSpaces();
+            if (position < text.length()) {
+                throw error("unexpected '" + text.substring(position) + "'");
+            }
+            return predicate;
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> parseOr() {
+            var predicate = parseAnd();
+            while (acceptWord("or")) {
+                predicate = predicate.or(parseAnd());
+            }
+            return predicate;
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> parseAnd() {
+            var predicate = parseNot();
+            while (acceptWord("and")) {
+                predicate = predicate.and(parseNot());
+            }
+            return predicate;
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> parseNot() {
+            if (acceptWord("not")) {
+                return parseNot().negate();
+            }
+            if (accept("(")) {
+                var predicate = parseOr();
+                if (!accept(")")) {
+                    throw error("missing ')'");
+                }
+                return predicate;
+            }
+            return parseComparison();
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> parseComparison() {
+            var fieldPosition = position;
+            var field = readName();
+            if (field.isEmpty()) {
+                throw error("field expected");
+            }
+            var operator = readOperator();
+            var value = operator == Operator.EXISTS ? null : readValue();
+
+            var lowerField = field.toLowerCase();
+            if (lowerField.startsWith("header.") && field.length() > "header.".length()) {
+                return compareHeader(field.substring("header.".length()), operator, value);
+            }
+            if (lowerField.startsWith("json.") && field.length() > "json.".length()) {
+                return compareJson(parsePath(field.substring("json.".length())), operator, value);
+            }
+            switch (lowerField) {
+                case "key":
+                    return compareKey(operator, value);
+                case "partition":
+                    return compareNumber(operator, toLong(field, value), ConsumerRecord::partition);
+                case "offset":
+                    return compareNumber(operator, toLong(field, value), ConsumerRecord::offset);
+                case "timestamp":
+                    return compareNumber(operator, toTimestamp(value), ConsumerRecord::timestamp);
+                case "body":
+                    return compareBody(operator, value);
+                default:
+                    position = fieldPosition;
+                    throw error("unknown field '" + field + "'");
+            }
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> compareKey(
+                Operator operator, Object value) {
+            if (operator == Operator.EXISTS) {
+                return record -> record.key() != null;
+            }
+            var text = toText("key", value);
+            switch (operator) {
+                case EQ:
+                    return record -> text.equals(record.key());
+                case NE:
+                    return record -> !text.equals(record.key());
+                case CONTAINS:
+                    return record ->
+                            record.key() != null
+                                    && StringUtils.containsIgnoreCase(record.key(), text);
+                default:
+                    return record ->
+                            record.key() != null && isTrue(operator, record.key().compareTo(text));
+            }
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> compareNumber(
+                Operator operator,
+                long value,
+                ToLongFunction<ConsumerRecord<String, byte[]>> field) {
+            if (operator == Operator.CONTAINS || operator == Operator.EXISTS) {
+                throw error(operator.text + " is not possible on numbers");
+            }
+            return record -> isTrue(operator, Long.compare(field.applyAsLong(record), value));
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> compareBody(
+                Operator operator, Object value) {
+            if (operator == Operator.EXISTS) {
+                return record -> record.value() != null;
+            }
+            var bytes = toText("body", value).getBytes(StandardCharsets.UTF_8);
+            switch (operator) {
+                case EQ:
+                    return record -> bytesEqual(record.value(), 0, lengthOf(record.value()), bytes);
+                case NE:
+                    return record ->
+                            !bytesEqual(record.value(), 0, lengthOf(record.value()), bytes);
+                case CONTAINS:
+                    var needle = toLowerAscii(bytes);
+                    return record ->
+                            record.value() != null
+                                    && containsIgnoreCase(
+                                            record.value(), 0, record.value().length, needle);
+                default:
+                    throw error(operator.text + " is not possible on the body");
+            }
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> compareHeader(
+                String name, Operator operator, Object value) {
+            if (operator == Operator.EXISTS) {
+                return record -> record.headers().lastHeader(name) != null;
+            }
+            var bytes = toText("header." + name, value).getBytes(StandardCharsets.UTF_8);
+            Predicate<byte[]> test;
+            switch (operator) {
+                case EQ:
+                case NE:
+                    test = header -> bytesEqual(header, 0, lengthOf(header), bytes);
+                    break;
+                case CONTAINS:
+                    var needle = toLowerAscii(bytes);
+                    test =
+                            header ->
+                                    header != null
+                                            && containsIgnoreCase(header, 0, header.length, needle);
+                    break;
+                default:
+                    throw error(operator.text + " is not possible on headers");
+            }
+            Predicate<ConsumerRecord<String, byte[]>> predicate =
+                    record -> {
+                        var header = record.headers().lastHeader(name);
+                        return header != null && test.test(header.value());
+                    };
+            return operator == Operator.NE ? predicate.negate() : predicate;
+        }
+
+        private Predicate<ConsumerRecord<String, byte[]>> compareJson(
+                Object[] path, Operator operator, Object value) {
+            Predicate<JsonTokenizer> test;
+            if (operator == Operator.EXISTS) {
+                test = tokenizer -> true;
+            } else if (value == null) {
+                if (operator != Operator.EQ && operator != Operator.NE) {
+                    throw error(operator.text + " is not possible on null");
+                }
+                test = tokenizer -> tokenizer.getToken() == JsonTokenizer.Token.NULL;
+            } else if (value instanceof Boolean) {
+                if (operator != Operator.EQ && operator != Operator.NE) {
+                    throw error(operator.text + " is not possible on booleans");
+                }
+                var expected =
+                        (Boolean) value ? JsonTokenizer.Token.TRUE : JsonTokenizer.Token.FALSE;
+                test = tokenizer -> tokenizer.getToken() == expected;
+            } else if (value instanceof Number) {
+                if (operator == Operator.CONTAINS) {
+                    throw error("contains is not possible on numbers");
+                }
+                var number = ((Number) value).doubleValue();
+                var compareOperator = operator == Operator.NE ? Operator.EQ : operator;
+                test =
+                        tokenizer ->
+                                tokenizer.getToken() == JsonTokenizer.Token.NUMBER
+                                        && isTrue(
+                                                compareOperator,
+                                                Double.compare(tokenizer.getNumber(), number));
+            } else {
+                var text = (String) value;
+                var bytes = text.getBytes(StandardCharsets.UTF_8);
+                var needle = toLowerAscii(bytes);
+                var compareOperator = operator == Operator.NE ? Operator.EQ : operator;
+                test =
+                        tokenizer -> {
+                            if (tokenizer.getToken() != JsonTokenizer.Token.STRING) {
+                                return false;
+                            }
+                            switch (compareOperator) {
+                                case EQ:
+                                    return tokenizer.stringEquals(bytes);
+                                case CONTAINS:
+                                    return tokenizer.isEscaped()
+                                            ? StringUtils.containsIgnoreCase(
+                                                    tokenizer.getString(), text)
+                                            : containsIgnoreCase(
+                                                    tokenizer.getData(),
+                                                    tokenizer.getStart(),
+                                                    tokenizer.getEnd(),
+                                                    needle);
+                                default:
+                                    return isTrue(
+                                            compareOperator, tokenizer.getString().compareTo(text));
+                            }
+                        };
+            }
+
+            Predicate<ConsumerRecord<String, byte[]>> predicate =
+                    record -> {
+                        if (record.value() == null) {
+                            return false;
+                        }
+                        var tokenizer = new JsonTokenizer(record.value());
+                        return seek(tokenizer, path) && test.test(tokenizer);
+                    };
+            return operator == Operator.NE ? predicate.negate() : predicate;
+        }
+
+        // a.b[2].c becomes "a", "b", 2, "c", with the names as UTF-8 bytes
+        private Object[] parsePath(String path) {
+            var segments = new ArrayList<Object>();
+            for (var part : path.split("\\.", -1)) {
+                var bracket = part.indexOf('[');
+                var name = bracket < 0 ? part : part.substring(0, bracket);
+                if (!name.isEmpty()) {
+                    segments.add(name.getBytes(StandardCharsets.UTF_8));
+                } else if (bracket != 0) {
+                    throw error("empty name in json path '" + path + "'");
+                }
+                while (bracket >= 0) {
+                    var close = part.indexOf(']', bracket);
+                    try {
+                        segments.add(Integer.parseInt(part.substring(bracket + 1, close)));
+                    } catch (RuntimeException e) {
+                        throw error("bad index in json path '" + path + "'");
+                    }
+                    bracket = part.indexOf('[', close);
+                }
+            }
+            return segments.toArray();
+        }
+
+        private Operator readOperator() {
+            skipSpaces();
+            for (var operator : List.of("!=", "<=", ">=", "=", "<", ">")) {
+                if (text.startsWith(operator, position)) {
+                    position += operator.length();
+                    for (var o : Operator.values()) {
+                        if (o.text.equals(operator)) {
+                            return o;
+                        }
+                    }
+                }
+            }
+            if (acceptWord("contains")) {
+                return Operator.CONTAINS;
+            }
+            if (acceptWord("exists")) {
+                return Operator.EXISTS;
+            }
+            throw error("operator expected");
+        }
+
+        // a quoted string, a number, true, false or null
+        private Object readValue() {
+            skipSpaces();
+            if (position >= text.length()) {
+                throw error("value expected");
+            }
+            var quote = text.charAt(position);
+            if (quote == '"' || quote == '\'') {
+                var value = new StringBuilder();
+                ++position;
+                while (position < text.length() && text.charAt(position) != quote) {
+                    var c = text.charAt(position++);
+                    if (c == '\\' && position < text.length()) {
+                        c = text.charAt(position++);
+                    }
+                    value.append(c);
+                }
+                if (position >= text.length()) {
+                    throw error("missing closing " + quote);
+                }
+                ++position;
+                return value.toString();
+            }
+
+            var valuePosition = position;
+            var word = readName();
+            switch (word.toLowerCase()) {
+                case "true":
+                    return true;
+                case "false":
+                    return false;
+                case "null":
+                    return null;
+                default:
+                    break;
+            }
+            try {
+                return Long.parseLong(word);
+            } catch (NumberFormatException e) {
+                // not an integer
+            }
+            try {
+                return Double.parseDouble(word);
+            } catch (NumberFormatException e) {
+                position = valuePosition;
+                throw error("value expected, strings must be quoted");
+            }
+        }
+
+        private long toLong(String field, Object value) {
+            if (!(value instanceof Long)) {
+                throw error(field + " must be compared with an integer");
+            }
+            return (Long) value;
+        }
+
+        private long toTimestamp(Object value) {
+            if (value instanceof Long) {
+                return (Long) value;
+            }
+            var cursor = value instanceof String ? FetchCursor.parse((String) value) : null;
+            if (cursor == null || cursor.getType() != FetchCursor.Type.TIMESTAMP) {
+                throw error("timestamp must be compared with epoch millis or a quoted time");
+            }
+            return cursor.getValue();
+        }
+
+        private String toText(String field, Object value) {
+            if (!(value instanceof String)) {
+                throw error(field + " must be compared with a quoted string");
+            }
+            return (String) value;
+        }
+
+        // letters, digits, and the characters of field names, paths and numbers
+        private String readName() {
+            skipSpaces();
+            var start = position;
+            while (position < text.length()) {
+                var c = text.charAt(position);
+                if (!Character.isLetterOrDigit(c) && "_.-+[]$".indexOf(c) < 0) {
+                    break;
+                }
+                ++position;
+            }
+            return text.substring(start, position);
+        }
+
+        private boolean accept(String token) {
+            skipSpaces();
+            if (text.startsWith(token, position)) {
+                position += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptWord(String word) {
+            skipSpaces();
+            var end = position + word.length();
+            if (text.regionMatches(true, position, word, 0, word.length())
+                    && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)))) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                ++position;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(
+                    String.format("%s at position %d of the query", message, position + 1));
+        }
+    }
+
+    private static boolean isTrue(Operator operator, int comparison) {
+        switch (operator) {
+            case EQ:
+                return comparison == 0;
+            case NE:
+                return comparison != 0;
+            case LT:
+                return comparison < 0;
+            case LE:
+                return comparison <= 0;
+            case GT:
+                return comparison > 0;
+            case GE:
+                return comparison >= 0;
+            default:
+                return false;
+        }
+    }
+
+    // positions the tokenizer on the first token of the value at the path
+    private static boolean seek(JsonTokenizer tokenizer, Object[] path) {
+        var token = tokenizer.next();
+        for (var segment : path) {
+            if (segment instanceof byte[]) {
+                if (token != JsonTokenizer.Token.OBJECT_START) {
+                    return false;
+                }
+                while (true) {
+                    if (tokenizer.next() != JsonTokenizer.Token.STRING) {
+                        return false;
+                    }
+                    var found = tokenizer.stringEquals((byte[]) segment);
+                    if (tokenizer.next() != JsonTokenizer.Token.COLON) {
+                        return false;
+                    }
+                    token = tokenizer.next();
+                    if (found) {
+                        break;
+                    }
+                    if (!tokenizer.skipValue() || tokenizer.next() != JsonTokenizer.Token.COMMA) {
+                        return false;
+                    }
+                }
+            } else {
+                if (token != JsonTokenizer.Token.ARRAY_START) {
+                    return false;
+                }
+                token = tokenizer.next();
+                for (int i = (Integer) segment; i > 0; --i) {
+                    if (!tokenizer.skipValue() || tokenizer.next() != JsonTokenizer.Token.COMMA) {
+                        return false;
+                    }
+                    token = tokenizer.next();
+                }
+            }
+        }
+        switch (token) {
+            case OBJECT_START:
+            case ARRAY_START:
+            case STRING:
+            case NUMBER:
+            case TRUE:
+            case FALSE:
+            case NULL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int lengthOf(byte[] data) {
+        return data == null ? 0 : data.length;
+    }
+
+    private static boolean bytesEqual(byte[] data, int start, int end, byte[] expected) {
+        if (data == null || end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; ++i) {
+            if (data[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toLowerAscii(byte[] bytes) {
+        var lower = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            lower[i] = toLowerAscii(bytes[i]);
+        }
+        return lower;
+    }
+
+    private static byte toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // needle must be lower case already
+    static boolean containsIgnoreCase(byte[] data, int start, int end, byte[] needle) {
+        if (needle.length == 0) {
+            return true;
+        }
+        var first = needle[0];
+        var last = end - needle.length;
+        outer:
+        for (int i = start; i <= last; ++i) {
+            if (toLowerAscii(data[i]) != first) {
+                continue;
+            }
+            for (int j = 1; j < needle.length; ++j) {
+                if (toLowerAscii(data[i + j]) != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,320 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.core.listeners.KafkaSearchListener;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+// Scans a range of a topic for the records accepted by a matcher. The partitions are
+// split over several consumers, and only the matches are handed to the listener.
+@Log4j2
+public class SearchJob {
+    private static final long POLL_MILLIS = 500;
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+
+    private final KafkaInstance kafkaInstance;
+    @Getter private final SearchRequest request;
+    private final KafkaSearchListener listener;
+    private final FetchHandle handle;
+    private final long maxWait;
+    private final FetchBudget budget;
+
+    private final AtomicLong scannedRecords = new AtomicLong();
+    private final AtomicLong scannedBytes = new AtomicLong();
+    private final AtomicLong scannedOffsets = new AtomicLong();
+    private long totalOffsets = 0;
+    private long startedAt;
+    // set when enough matches have been found
+    private volatile boolean stopping = false;
+    // set when a partition has not been read to the end of its range
+    private volatile boolean timedOut = false;
+
+    SearchJob(
+            KafkaInstance kafkaInstance,
+            SearchRequest request,
+            KafkaSearchListener listener,
+            Object sender,
+            long maxWait) {
+        this.kafkaInstance = kafkaInstance;
+        this.request = request;
+        this.listener = listener;
+        this.handle = new FetchHandle(sender);
+        this.maxWait = maxWait;
+        this.budget =
+                new FetchBudget(
+                        FetchRequest.builder()
+                                .topicPartitions(request.getTopicPartitions())
+                                .maxMessageCount(request.getMaxMatches())
+                                .maxBytes(request.getMaxMatchBytes())
+                                .build(),
+                        kafkaInstance.getSettings());
+    }
+
+    public Object getSender() {
+        return handle.getSender();
+    }
+
+    void setFuture(Future<?> future) {
+        handle.setFuture(future);
+    }
+
+    public void cancel() {
+        handle.cancel();
+    }
+
+    public boolean isCancelled() {
+        return handle.isCancelled();
+    }
+
+    // null while the search is running
+    public FetchStopReason getStopReason() {
+        return handle.getStopReason();
+    }
+
+    public synchronized SearchProgress getProgress() {
+        return new SearchProgress(
+                scannedRecords.get(),
+                scannedBytes.get(),
+                budget.getMessageCount(),
+                scannedOffsets.get(),
+                totalOffsets,
+                startedAt == 0 ? 0 : System.currentTimeMillis() - startedAt);
+    }
+
+    void run(List<PartitionOffset> ranges) {
+        synchronized (this) {
+            startedAt = System.currentTimeMillis();
+            totalOffsets =
+                    ranges.stream()
+                            .mapToLong(range -> range.getEndOffset() - range.getStartOffset())
+                            .sum();
+        }
+        log.info("Searching {} offsets of {}", totalOffsets, request.getTopicPartitions());
+        if (ranges.isEmpty()) {
+            finish(null);
+            return;
+        }
+
+        var leases = new ArrayList<ConsumerLease>();
+        var workers = new ArrayList<Future<?>>();
+        Exception error = null;
+        try {
+            var groups = ParallelFetcher.groupByLeader(kafkaInstance, ranges);
+            var topic = ranges.get(0).getTopicPartition().topic();
+            ParallelFetcher.leaseConsumers(
+                    kafkaInstance,
+                    handle,
+                    leases,
+                    groups.size(),
+                    kafkaInstance.getFetchTuner().getConfig(topic));
+            var assignments = ParallelFetcher.assign(groups, leases.size());
+            log.info(
+                    "Searching {} partitions with {} consumers", ranges.size(), assignments.size());
+
+            for (int i = 0; i < assignments.size(); ++i) {
+                var lease = leases.get(i);
+                var assignment = assignments.get(i);
+                workers.add(
+                        kafkaInstance
+                                .getScheduler()
+                                .fork(
+                                        "search-" + assignment.get(0).getTopicPartition(),
+                                        () -> {
+                                            scan(lease, assignment);
+                                            return null;
+                                        }));
+            }
+
+            for (var worker : workers) {
+                while (!isDone(worker) && !handle.isCancelled()) {
+                    var progress = getProgress();
+                    handle.deliver(() -> listener.progressUpdated(this, progress));
+                }
+            }
+        } catch (ExecutionException e) {
+            error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handle.cancel();
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            stopping = true;
+            awaitWorkers(workers);
+            for (var lease : leases) {
+                handle.removeLease(lease);
+                lease.close();
+            }
+        }
+
+        finish(error);
+    }
+
+    // the search could not be started
+    void failed(Exception error) {
+        finish(error);
+    }
+
+    private void finish(Exception error) {
+        if (error != null) {
+            log.error("Search of {} failed", request.getTopicPartitions(), error);
+        }
+        handle.setStopReason(
+                error != null
+                        ? FetchStopReason.FAILED
+                        : budget.isExhausted()
+                                ? budget.getStopReason()
+                                : timedOut ? FetchStopReason.TIMED_OUT : FetchStopReason.COMPLETED);
+        var progress = getProgress();
+        handle.deliver(() -> listener.searchFinished(this, progress, error));
+        log.info(
+                "Search of {} ended: {}, {}",
+                request.getTopicPartitions(),
+                getStopReason(),
+                progress);
+    }
+
+    private static boolean isDone(Future<?> worker)
+            throws ExecutionException, InterruptedException {
+        try {
+            worker.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void scan(ConsumerLease lease, List<PartitionOffset> assignment) {
+        var consumer = lease.getConsumer();
+        var topic = assignment.get(0).getTopicPartition().topic();
+        // key = partition being read
+        var active = new HashMap<TopicPartition, PartitionOffset>();
+        var positions = new HashMap<TopicPartition, Long>();
+        try {
+            consumer.assign(
+                    assignment.stream()
+                            .map(PartitionOffset::getTopicPartition)
+                            .collect(Collectors.toList()));
+            for (var range : assignment) {
+                var tp = range.getTopicPartition();
+                if (range.getStartOffset() < range.getEndOffset()) {
+                    consumer.seek(tp, range.getStartOffset());
+                    active.put(tp, range);
+                    positions.put(tp, range.getStartOffset());
+                }
+            }
+
+            var lastReceived = System.currentTimeMillis();
+            while (!active.isEmpty() && !stopping) {
+                var pollStart = System.currentTimeMillis();
+                var records = consumer.poll(Duration.ofMillis(POLL_MILLIS));
+                kafkaInstance
+                        .getFetchTuner()
+                        .recordPoll(topic, records, System.currentTimeMillis() - pollStart);
+                if (!records.isEmpty()) {
+                    lastReceived = System.currentTimeMillis();
+                }
+
+                var matches = new ArrayList<ConsumerRecord<String, byte[]>>();
+                long bytes = 0;
+                long count = 0;
+                for (var tp : records.partitions()) {
+                    var range = active.get(tp);
+                    if (range == null) {
+                        continue;
+                    }
+                    var endOffset = range.getEndOffset();
+                    for (var record : records.records(tp)) {
+                        if (record.offset() >= endOffset) {
+                            break;
+                        }
+                        ++count;
+                        bytes += FetchBudget.sizeOf(record);
+                        if (request.getMatcher().test(record)) {
+                            matches.add(record);
+                        }
+                    }
+                }
+                scannedRecords.addAndGet(count);
+                scannedBytes.addAndGet(bytes);
+                if (!matches.isEmpty()) {
+                    matchesFound(matches);
+                }
+
+                // a partition timing out counts only the offsets actually scanned
+                var idle = System.currentTimeMillis() - lastReceived > maxWait;
+                for (var tp : new ArrayList<>(active.keySet())) {
+                    var endOffset = active.get(tp).getEndOffset();
+                    var position = Math.min(consumer.position(tp), endOffset);
+                    scannedOffsets.addAndGet(position - positions.put(tp, position));
+                    if (position >= endOffset || idle) {
+                        if (position < endOffset) {
+                            log.warn(
+                                    "No messages received for {} ms from {}, {} offsets not"
+                                            + " scanned",
+                                    maxWait,
+                                    tp,
+                                    endOffset - position);
+                            timedOut = true;
+                        }
+                        active.remove(tp);
+                        consumer.pause(List.of(tp));
+                    }
+                }
+            }
+        } catch (WakeupException e) {
+            lease.wakeupConsumed();
+        } catch (KafkaException e) {
+            lease.invalidate();
+            throw e;
+        }
+    }
+
+    private void matchesFound(List<ConsumerRecord<String, byte[]>> matches) {
+        List<ConsumerRecord<String, byte[]>> taken;
+        synchronized (this) {
+            if (budget.isExhausted()) {
+                return;
+            }
+            taken = budget.take(matches);
+            if (budget.isExhausted()) {
+                stopping = true;
+            }
+        }
+        if (!taken.isEmpty()) {
+            handle.deliver(() -> listener.matchesFound(this, taken));
+        }
+    }
+
+    // the leases must not be released while a worker still uses its consumer
+    private static void awaitWorkers(List<Future<?>> workers) {
+        var interrupted = false;
+        for (int i = 0; i < workers.size(); ) {
+            try {
+                workers.get(i).get();
+                ++i;
+            } catch (ExecutionException e) {
+                ++i;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.loco.kafkaguru.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class SearchProgress {
+    private final long scannedRecords;
+    private final long scannedBytes;
+    private final long matchedRecords;
+    // offsets passed so far and in total, which include gaps left by compaction
+    private final long scannedOffsets;
+    private final long totalOffsets;
+    private final long elapsedMillis;
+
+    public double getRecordsPerSecond() {
+        return elapsedMillis == 0 ? 0 : scannedRecords * 1000.0 / elapsedMillis;
+    }
+
+    public double getFractionDone() {
+        return totalOffsets == 0 ? 1 : (double) scannedOffsets / totalOffsets;
+    }
+
+    // -1 until there is enough to estimate from
+    public long getRemainingMillis() {
+        if (scannedOffsets == 0) {
+            return -1;
+        }
+        return (long) (elapsedMillis * (double) (totalOffsets - scannedOffsets) / scannedOffsets);
+    }
+
+    public String toString() {
+        var remainingMillis = getRemainingMillis();
+        return String.format(
+                "%.1f MB scanned, %.0f records/s, %d matches, %.0f%% done%s",
+                scannedBytes / (1024.0 * 1024.0),
+                getRecordsPerSecond(),
+                matchedRecords,
+                getFractionDone() * 100,
+                remainingMillis < 0 ? "" : ", " + (remainingMillis + 999) / 1000 + " s left");
+    }
+}
@@ -0,0 +1,24 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+@Getter
+@Builder
+public class SearchRequest {
+    @NonNull private final List<TopicPartition> topicPartitions;
+    @NonNull @Builder.Default private final FetchCursor from = FetchCursor.BEGINNING;
+    // the search ends before the message this points to, or at an offset cursor itself
+    @NonNull @Builder.Default private final FetchCursor to = FetchCursor.END;
+    // tested on the records as read from kafka
+    @NonNull private final Predicate<ConsumerRecord<String, byte[]>> matcher;
+    @Builder.Default private final int maxMatches = 1_000;
+    // total size of the keys and values of the matches, 0 for no limit
+    @Builder.Default private final long maxMatchBytes = 0;
+}
@@ -0,0 +1,586 @@
+package com.loco.kafkaguru.core;
+
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+// Records kept on disk, so that a topic read before a restart does not have to be read
+// from the cluster again. Each partition has a directory of append-only segment files,
+// named after their first offset. A segment is a series of blocks, each holding the
+// records of a run of offsets which continues the run of the block before it:
+//
+//   int length, int crc, long start offset, long end offset, int count, records
+//
+// where the length covers the whole block and the crc what follows it. The blocks are
+// indexed when a partition is first used. A block cut short by a crash, or failing its
+// crc, ends its segment, which is truncated there; a file is deleted only for such
+// damage, not when reading it is interrupted. The segments are read through a
+// MappedByteBuffer. The writes are done by a thread of the store, so that reading from
+// the cluster does not wait for the disk; if the disk falls behind by more than a
+// segment, what comes meanwhile is not stored. Once the store outgrows its size,
+// CachePolicy picks the segments to delete. The store remembers the source of its
+// records, the url of the cluster, and starts empty if it has changed.
+@Log4j2
+public class SegmentStore {
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String SOURCE_FILE = "source";
+    private static final int BLOCK_HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+    private static final long CLOSE_WAIT_SECONDS = 10;
+
+    private static class Segment {
+        private final Path path;
+        private final long startOffset;
+        private long endOffset;
+        private long size;
+        // key = start offset of a block, value = its position in the file
+        private final TreeMap<Long, Integer> index = new TreeMap<>();
+        private MappedByteBuffer buffer;
+
+        private Segment(Path path, long startOffset) {
+            this.path = path;
+            this.startOffset = startOffset;
+            this.endOffset = startOffset;
+        }
+
+        // the whole file, mapped again if it has grown since
+        private ByteBuffer map() throws IOException {
+            if (buffer == null || buffer.capacity() < size) {
+                try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+            return buffer.duplicate();
+        }
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    // key = partition, value = its segments by start offset; loaded when first used
+    private final Map<TopicPartition, TreeMap<Long, Segment>> partitions = new HashMap<>();
+    // all the segment files, weighted by their sizes
+    private final CachePolicy<Path> policy;
+    private final ExecutorService writer =
+            Executors.newSingleThreadExecutor(
+                    runnable -> {
+                        var thread = new Thread(runnable, "kafkaguru-segment-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    // bytes of the records handed to the writer and not written yet
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    public SegmentStore(Path directory, String source, long maxBytes, long segmentBytes)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.policy = new CachePolicy<>(maxBytes, 4096);
+        Files.createDirectories(directory);
+        var sourceFile = directory.resolve(SOURCE_FILE);
+        if (Files.exists(sourceFile) && !Files.readString(sourceFile).equals(source)) {
+            log.info("The source of {} has changed, deleting its messages", directory);
+            deleteSegmentFiles();
+        }
+        Files.writeString(sourceFile, source);
+
+        // the files modified last are taken as the ones used last
+        try (var paths = Files.walk(directory, 2)) {
+            var segmentFiles =
+                    paths.filter(path -> path.toString().endsWith(SEGMENT_SUFFIX))
+                            .sorted(Comparator.comparingLong(SegmentStore::lastModified))
+                            .collect(Collectors.toList());
+            for (var path : segmentFiles) {
+                policy.setWeight(path, Files.size(path));
+            }
+        }
+        // the size may have been lowered since
+        evict(null);
+        log.info(
+                "Message store {} holds {} segments, {} bytes",
+                directory,
+                policy.getStats().getEntryCount(),
+                policy.getTotalBytes());
+    }
+
+    public synchronized long getTotalBytes() {
+        return policy.getTotalBytes();
+    }
+
+    public synchronized CacheStats getStats() {
+        return policy.getStats();
+    }
+
+    // Splits the offsets from start up to end into the parts held here, with their
+    // records, and the parts which are not.
+    public synchronized List<MessageCache.Piece> split(TopicPartition tp, long start, long end) {
+        var pieces = new ArrayList<MessageCache.Piece>();
+        var position = start;
+        for (var segment : getSegments(tp, start, end)) {
+            if (segment.startOffset > position) {
+                pieces.add(new MessageCache.Piece(position, segment.startOffset, null));
+                policy.recordMiss();
+                position = segment.startOffset;
+            }
+            var to = Math.min(segment.endOffset, end);
+            try {
+                var records = read(tp, segment, position, to);
+                pieces.add(new MessageCache.Piece(position, to, records));
+                policy.recordAccess(segment.path);
+                policy.recordHit(records.stream().mapToLong(FetchBudget::sizeOf).sum());
+            } catch (ClosedChannelException e) {
+                // interrupted, the file is fine; the rest is a miss
+                log.info("Stopped reading {}", segment.path);
+                policy.recordMiss();
+                pieces.add(new MessageCache.Piece(position, end, null));
+                return pieces;
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to read {}, deleting it", segment.path, e);
+                delete(tp, segment);
+                pieces.add(new MessageCache.Piece(position, to, null));
+                policy.recordMiss();
+            }
+            position = to;
+        }
+        if (position < end) {
+            pieces.add(new MessageCache.Piece(position, end, null));
+            policy.recordMiss();
+        }
+        return pieces;
+    }
+
+    public synchronized boolean holdsAny(TopicPartition tp, long start, long end) {
+        return !getSegments(tp, start, end).isEmpty();
+    }
+
+    // Adds all the records from start up to end, in offset order, in the background.
+    // Offsets already held are left as they are.
+    public void write(
+            TopicPartition tp, long start, long end, List<ConsumerRecord<String, byte[]>> records) {
+        var bytes = records.stream().mapToLong(FetchBudget::sizeOf).sum();
+        // a write is always taken when none is waiting, however large
+        var pending = pendingBytes.get();
+        if (pending > 0 && pending + bytes > segmentBytes) {
+            log.warn("The message store falls behind, not storing {}-{} of {}", start, end, tp);
+            return;
+        }
+        pendingBytes.addAndGet(bytes);
+        try {
+            writer.execute(
+                    () -> {
+                        try {
+                            writeNow(tp, start, end, records);
+                        } finally {
+                            pendingBytes.addAndGet(-bytes);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            // closed
+            pendingBytes.addAndGet(-bytes);
+        }
+    }
+
+    // finishes the writes handed over, and takes no more
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Gave up waiting for the writes to {}", directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void writeNow(
+            TopicPartition tp, long start, long end, List<ConsumerRecord<String, byte[]>> records) {
+        var position = start;
+        for (var segment : getSegments(tp, start, end)) {
+            if (segment.startOffset > position) {
+                append(tp, position, segment.startOffset, records);
+            }
+            position = Math.max(position, segment.endOffset);
+        }
+        if (position < end) {
+            append(tp, position, end, records);
+        }
+    }
+
+    // Forgets a partition whose end offset is below what is held, as it has been
+    // deleted and created again since.
+    public synchronized void checkEndOffset(TopicPartition tp, long endOffset) {
+        var segments = getSegments(tp);
+        if (!segments.isEmpty() && segments.lastEntry().getValue().endOffset > endOffset) {
+            log.info("{} has been recreated, deleting its stored messages", tp);
+            new ArrayList<>(segments.values()).forEach(segment -> delete(tp, segment));
+        }
+    }
+
+    // the segments holding some of the offsets from start up to end
+    private Collection<Segment> getSegments(TopicPartition tp, long start, long end) {
+        var segments = getSegments(tp);
+        var floor = segments.floorKey(start);
+        return segments.subMap(floor == null ? start : floor, true, end, false).values().stream()
+                .filter(segment -> segment.endOffset > start)
+                .collect(Collectors.toList());
+    }
+
+    private TreeMap<Long, Segment> getSegments(TopicPartition tp) {
+        var segments = partitions.get(tp);
+        if (segments == null) {
+            segments = load(tp);
+            if (segments == null) {
+                // interrupted, loaded again next time
+                return new TreeMap<>();
+            }
+            partitions.put(tp, segments);
+        }
+        return segments;
+    }
+
+    private Path getDirectory(TopicPartition tp) {
+        return directory.resolve(tp.topic() + "-" + tp.partition());
+    }
+
+    // null if interrupted
+    private TreeMap<Long, Segment> load(TopicPartition tp) {
+        var segments = new TreeMap<Long, Segment>();
+        var partitionDirectory = getDirectory(tp);
+        if (!Files.isDirectory(partitionDirectory)) {
+            return segments;
+        }
+        try (var paths = Files.list(partitionDirectory)) {
+            for (var path : paths.collect(Collectors.toList())) {
+                var name = path.getFileName().toString();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    var startOffset =
+                            Long.parseLong(
+                                    name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    var segment = new Segment(path, startOffset);
+                    if (verify(segment)) {
+                        segments.put(startOffset, segment);
+                    } else {
+                        deleteFile(path);
+                    }
+                } catch (ClosedChannelException e) {
+                    log.info("Stopped loading {}", partitionDirectory);
+                    return null;
+                } catch (NumberFormatException | IOException e) {
+                    log.error("Failed to load {}, deleting it", path, e);
+                    deleteFile(path);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to list {}", partitionDirectory, e);
+        }
+        return segments;
+    }
+
+    // Indexes the blocks of a segment, and truncates it after the last good one. Returns
+    // false if there is none.
+    private boolean verify(Segment segment) throws IOException {
+        try (var channel =
+                FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var fileSize = channel.size();
+            var header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            long position = 0;
+            while (position + BLOCK_HEADER_BYTES <= fileSize) {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                var length = header.getInt();
+                var crc = header.getInt();
+                var startOffset = header.getLong();
+                var endOffset = header.getLong();
+                if (length < BLOCK_HEADER_BYTES
+                        || position + length > fileSize
+                        || startOffset != segment.endOffset
+                        || endOffset < startOffset) {
+                    break;
+                }
+                var body = ByteBuffer.allocate(length - 8);
+                channel.read(body, position + 8);
+                body.flip();
+                var checksum = new CRC32();
+                checksum.update(body);
+                if ((int) checksum.getValue() != crc) {
+                    break;
+                }
+                segment.index.put(startOffset, (int) position);
+                segment.endOffset = endOffset;
+                position += length;
+            }
+            if (position < fileSize) {
+                log.warn(
+                        "{} was written only partly, truncating it from {} to {} bytes",
+                        segment.path,
+                        fileSize,
+                        position);
+                channel.truncate(position);
+                adjustSize(segment.path, position);
+            }
+            segment.size = position;
+            return position > 0;
+        }
+    }
+
+    private List<ConsumerRecord<String, byte[]>> read(
+            TopicPartition tp, Segment segment, long start, long end) throws IOException {
+        var records = new ArrayList<ConsumerRecord<String, byte[]>>();
+        var buffer = segment.map();
+        var first = segment.index.floorEntry(start);
+        for (var block : segment.index.tailMap(first.getKey(), true).entrySet()) {
+            if (block.getKey() >= end) {
+                break;
+            }
+            buffer.position(block.getValue() + 4 + 4 + 8 + 8);
+            var count = buffer.getInt();
+            for (int i = 0; i < count; ++i) {
+                var record = readRecord(tp, buffer);
+                if (record.offset() >= end) {
+                    break;
+                }
+                if (record.offset() >= start) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    // writes a block to the last segment if it continues it, or to a new segment
+    private void append(
+            TopicPartition tp, long start, long end, List<ConsumerRecord<String, byte[]>> records) {
+        var blockRecords =
+                records.stream()
+                        .filter(record -> record.offset() >= start && record.offset() < end)
+                        .collect(Collectors.toList());
+        var block = encode(start, end, blockRecords);
+
+        var segments = getSegments(tp);
+        var previous = segments.floorEntry(start);
+        var segment =
+                previous != null
+                                && previous.getValue().endOffset == start
+                                && previous.getValue().size + block.remaining() <= segmentBytes
+                        ? previous.getValue()
+                        : null;
+        try {
+            if (segment == null) {
+                Files.createDirectories(getDirectory(tp));
+                var path =
+                        getDirectory(tp).resolve(String.format("%020d%s", start, SEGMENT_SUFFIX));
+                segment = new Segment(path, start);
+                Files.deleteIfExists(path);
+                segments.put(start, segment);
+                policy.setWeight(path, 0);
+            }
+            try (var channel =
+                    FileChannel.open(
+                            segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                var position = segment.size;
+                while (block.hasRemaining()) {
+                    position += channel.write(block, position);
+                }
+                segment.index.put(start, (int) segment.size);
+                segment.size = position;
+                segment.endOffset = end;
+            }
+            adjustSize(segment.path, segment.size);
+        } catch (IOException e) {
+            log.error("Failed to write {} of {} to the message store", start, tp, e);
+            if (segment != null) {
+                delete(tp, segment);
+            }
+            return;
+        }
+        evict(segment.path);
+    }
+
+    private void deleteSegmentFiles() throws IOException {
+        try (var paths = Files.walk(directory, 2)) {
+            for (var path : paths.collect(Collectors.toList())) {
+                if (path.toString().endsWith(SEGMENT_SUFFIX)) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private void adjustSize(Path path, long size) {
+        policy.setWeight(path, size);
+    }
+
+    // deletes the segments chosen by the policy, but not the one just written to
+    private void evict(Path current) {
+        for (var path : policy.evict(current)) {
+            var removed = false;
+            for (var entry : partitions.entrySet()) {
+                var segment =
+                        entry.getValue().values().stream()
+                                .filter(s -> s.path.equals(path))
+                                .findFirst();
+                if (segment.isPresent()) {
+                    delete(entry.getKey(), segment.get());
+                    removed = true;
+                    break;
+                }
+            }
+            if (!removed) {
+                deleteFile(path);
+            }
+        }
+    }
+
+    private void delete(TopicPartition tp, Segment segment) {
+        getSegments(tp).remove(segment.startOffset);
+        segment.buffer = null;
+        deleteFile(segment.path);
+    }
+
+    private void deleteFile(Path path) {
+        policy.remove(path);
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // a file still mapped cannot be deleted on some systems
+            log.warn("Failed to delete {}, deleting it on exit", path, e);
+            path.toFile().deleteOnExit();
+        }
+    }
+
+    private static ByteBuffer encode(
+            long start, long end, List<ConsumerRecord<String, byte[]>> records) {
+        var size = BLOCK_HEADER_BYTES;
+        for (var record : records) {
+            size += sizeOf(record);
+        }
+        var buffer = ByteBuffer.allocate(size);
+        buffer.position(8);
+        buffer.putLong(start);
+        buffer.putLong(end);
+        buffer.putInt(records.size());
+        for (var record : records) {
+            writeRecord(buffer, record);
+        }
+
+        var checksum = new CRC32();
+        checksum.update(buffer.array(), 8, size - 8);
+        buffer.putInt(0, size);
+        buffer.putInt(4, (int) checksum.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int sizeOf(ConsumerRecord<String, byte[]> record) {
+        var size = 8 + 8 + 1 + 4 + 4 + 4 + 4 + 4;
+        size += record.key() == null ? 0 : record.key().getBytes(StandardCharsets.UTF_8).length;
+        size += record.value() == null ? 0 : record.value().length;
+        for (var header : record.headers()) {
+            size += 4 + header.key().getBytes(StandardCharsets.UTF_8).length;
+            size += 4 + (header.value() == null ? 0 : header.value().length);
+        }
+        return size;
+    }
+
+    private static void writeRecord(ByteBuffer buffer, ConsumerRecord<String, byte[]> record) {
+        buffer.putLong(record.offset());
+        buffer.putLong(record.timestamp());
+        buffer.put((byte) record.timestampType().id);
+        buffer.putInt(record.serializedKeySize());
+        buffer.putInt(record.serializedValueSize());
+        writeBytes(
+                buffer,
+                record.key() == null ? null : record.key().getBytes(StandardCharsets.UTF_8));
+        writeBytes(buffer, record.value());
+        var headers = record.headers().toArray();
+        buffer.putInt(headers.length);
+        for (var header : headers) {
+            writeBytes(buffer, header.key().getBytes(StandardCharsets.UTF_8));
+            writeBytes(buffer, header.value());
+        }
+    }
+
+    private static ConsumerRecord<String, byte[]> readRecord(TopicPartition tp, ByteBuffer buffer) {
+        var offset = buffer.getLong();
+        var timestamp = buffer.getLong();
+        var timestampType = timestampTypeOf(buffer.get());
+        var serializedKeySize = buffer.getInt();
+        var serializedValueSize = buffer.getInt();
+        var key = readBytes(buffer);
+        var value = readBytes(buffer);
+        var headers = new RecordHeaders();
+        var headerCount = buffer.getInt();
+        for (int i = 0; i < headerCount; ++i) {
+            headers.add(new String(readBytes(buffer), StandardCharsets.UTF_8), readBytes(buffer));
+        }
+        return new ConsumerRecord<>(
+                tp.topic(),
+                tp.partition(),
+                offset,
+                timestamp,
+                timestampType,
+                null,
+                serializedKeySize,
+                serializedValueSize,
+                key == null ? null : new String(key, StandardCharsets.UTF_8),
+                value,
+                headers);
+    }
+
+    // the length, -1 for null, then the bytes
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        var length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static TimestampType timestampTypeOf(int id) {
+        for (var type : TimestampType.values()) {
+            if (type.id == id) {
+                return type;
+            }
+        }
+        return TimestampType.NO_TIMESTAMP_TYPE;
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.SummaryFormatter;
+import com.loco.kafkaguru.core.JsonTokenizer.Token;
+
+import java.nio.charset.StandardCharsets;
+
+// Formats JSON straight from the bytes, going through the tokens of JsonTokenizer once.
+// The body is indented by four spaces, with the fields in the order of the document;
+// the summary is the same on a single line, and the tokens are read only until it is
+// long enough. Any value may be at the top, several values one after the other too. A
+// document cut short is shown as far as it goes, and input which is not JSON as it is.
+public class StreamingJsonFormatter implements SummaryFormatter {
+    private static final int INDENT = 4;
+    // deeper documents are shown as they are, rather than risk the stack
+    private static final int MAX_DEPTH = 512;
+
+    private static class Output {
+        private final StringBuilder text;
+        private final boolean indented;
+        private final int maxLength;
+
+        private Output(boolean indented, int maxLength, int expectedLength) {
+            this.text = new StringBuilder(Math.min(expectedLength, maxLength));
+            this.indented = indented;
+            this.maxLength = maxLength;
+        }
+
+        private boolean isFull() {
+            return text.length() >= maxLength;
+        }
+
+        // a line break in the body, a space after a comma in the summary
+        private void newLine(int depth) {
+            if (indented) {
+                text.append('\n');
+                for (int i = 0; i < depth * INDENT; ++i) {
+                    text.append(' ');
+                }
+            } else if (text.length() > 0 && text.charAt(text.length() - 1) == ',') {
+                text.append(' ');
+            }
+        }
+
+        // the raw text of the token, only as much of it as still fits
+        private void appendToken(JsonTokenizer tokenizer) {
+            var length = Math.min(tokenizer.getEnd() - tokenizer.getStart(), room());
+            text.append(
+                    new String(
+                            tokenizer.getData(),
+                            tokenizer.getStart(),
+                            length,
+                            StandardCharsets.UTF_8));
+        }
+
+        private void appendString(JsonTokenizer tokenizer) {
+            text.append('"');
+            appendToken(tokenizer);
+            if (!isFull()) {
+                text.append('"');
+            }
+        }
+
+        private int room() {
+            // a character takes at least a byte
+            return (int)
+                    Math.min(Integer.MAX_VALUE, Math.max(0L, (long) maxLength - text.length()));
+        }
+    }
+
+    @Override
+    public String name() {
+        return "Json";
+    }
+
+    @Override
+    public String format(byte[] data) {
+        var output = new Output(true, Integer.MAX_VALUE, data.length);
+        return write(data, output) ? output.text.toString() : new String(data);
+    }
+
+    @Override
+    public String summarize(byte[] data, int maxLength) {
+        var output = new Output(false, maxLength, maxLength);
+        if (!write(data, output)) {
+            return summarizeText(data, maxLength);
+        }
+        var text = output.text;
+        return text.length() > maxLength ? text.substring(0, maxLength) : text.toString();
+    }
+
+    // false if the input is not JSON
+    private static boolean write(byte[] data, Output output) {
+        var tokenizer = new JsonTokenizer(data);
+        var written = false;
+        while (tokenizer.next() != Token.END && !output.isFull()) {
+            if (written) {
+                output.newLine(0);
+                if (!output.indented) {
+                    output.text.append(' ');
+                }
+            }
+            if (!writeValue(tokenizer, output, 0)) {
+                // a document cut short is shown as far as it goes
+                return output.text.length() > 0 && (output.isFull() || isCutShort(tokenizer, data));
+            }
+            written = true;
+        }
+        return written;
+    }
+
+    // the input ended, maybe in the middle of a string or a literal
+    private static boolean isCutShort(JsonTokenizer tokenizer, byte[] data) {
+        return tokenizer.getToken() == Token.END
+                || (tokenizer.getToken() == Token.INVALID && tokenizer.getEnd() == data.length);
+    }
+
+    // Writes the value whose first token is the current one. Returns false if it is not
+    // written whole: the input ended or is not JSON, or the output is full.
+    private static boolean writeValue(JsonTokenizer tokenizer, Output output, int depth) {
+        if (output.isFull()) {
+            return false;
+        }
+        switch (tokenizer.getToken()) {
+            case OBJECT_START:
+                return depth < MAX_DEPTH
+                        && writeContainer(tokenizer, output, depth, '{', '}', Token.OBJECT_END);
+            case ARRAY_START:
+                return depth < MAX_DEPTH
+                        && writeContainer(tokenizer, output, depth, '[', ']', Token.ARRAY_END);
+            case STRING:
+                output.appendString(tokenizer);
+                return true;
+            case NUMBER:
+            case TRUE:
+            case FALSE:
+            case NULL:
+                output.appendToken(tokenizer);
+                return true;
+            default:
+                var data = tokenizer.getData();
+                var start = tokenizer.getStart();
+                if (tokenizer.getToken() == Token.INVALID
+                        && tokenizer.getEnd() == data.length
+                        && start > 0
+                        && data[start - 1] == '"') {
+                    // a string cut short, shown as far as it goes
+                    output.text.append('"');
+                    output.appendToken(tokenizer);
+                }
+                return false;
+        }
+    }
+
+    private static boolean writeContainer(
+            JsonTokenizer tokenizer,
+            Output output,
+            int depth,
+            char open,
+            char close,
+            Token closeToken) {
+        var isObject = closeToken == Token.OBJECT_END;
+        output.text.append(open);
+        if (tokenizer.next() == closeToken) {
+            output.text.append(close);
+            return true;
+        }
+        while (true) {
+            output.newLine(depth + 1);
+            if (isObject) {
+                if (tokenizer.getToken() != Token.STRING) {
+                    return false;
+                }
+                output.appendString(tokenizer);
+                if (tokenizer.next() != Token.COLON) {
+                    return false;
+                }
+                output.text.append(": ");
+                tokenizer.next();
+            }
+            if (!writeValue(tokenizer, output, depth + 1)) {
+                return false;
+            }
+            var token = tokenizer.next();
+            if (token == closeToken) {
+                output.newLine(depth);
+                output.text.append(close);
+                return true;
+            }
+            if (token != Token.COMMA || output.isFull()) {
+                return false;
+            }
+            output.text.append(',');
+            tokenizer.next();
+        }
+    }
+
+    // the start of input which is not JSON, with runs of white space made one space
+    private static String summarizeText(byte[] data, int maxLength) {
+        var text =
+                new String(data, 0, Math.min(data.length, maxLength * 4), StandardCharsets.UTF_8);
+        var summary = new StringBuilder(Math.min(text.length(), maxLength));
+        var lastSpace = false;
+        for (int i = 0; i < text.length() && summary.length() < maxLength; ++i) {
+            var c = text.charAt(i);
+            var space = c == ' ' || c == '\n' || c == '\r' || c == '\t';
+            if (!space) {
+                summary.append(c);
+            } else if (!lastSpace) {
+                summary.append(' ');
+            }
+            lastSpace = space;
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.core.listeners.KafkaTailListener;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// A running tail of some partitions. The records received wait in a bounded buffer
+// until the listener drains them; when it falls behind, the oldest ones are dropped.
+@Log4j2
+public class TailSession {
+    @Getter private final Object sender;
+    @Getter private final List<TopicPartition> topicPartitions;
+    private final KafkaTailListener listener;
+    private final int capacity;
+    private final Deque<ConsumerRecord<String, byte[]>> buffer = new ArrayDeque<>();
+    private KafkaConsumer<String, byte[]> consumer;
+    private long receivedCount = 0;
+    private long droppedCount = 0;
+    private boolean notified = false;
+    private boolean cancelled = false;
+
+    TailSession(
+            Object sender,
+            List<TopicPartition> topicPartitions,
+            KafkaTailListener listener,
+            int capacity) {
+        this.sender = sender;
+        this.topicPartitions = topicPartitions;
+        this.listener = listener;
+        this.capacity = capacity;
+    }
+
+    synchronized void setConsumer(KafkaConsumer<String, byte[]> consumer) {
+        this.consumer = consumer;
+        if (cancelled && consumer != null) {
+            consumer.wakeup();
+        }
+    }
+
+    void add(Iterable<ConsumerRecord<String, byte[]>> records) {
+        synchronized (this) {
+            for (var record : records) {
+                if (buffer.size() == capacity) {
+                    buffer.pollFirst();
+                    ++droppedCount;
+                }
+                buffer.addLast(record);
+                ++receivedCount;
+            }
+            if (buffer.isEmpty() || notified || cancelled) {
+                return;
+            }
+            notified = true;
+        }
+        listener.recordsAvailable(this);
+    }
+
+    void stopped(Exception error) {
+        listener.tailStopped(this, error);
+    }
+
+    // Takes up to maxCount of the oldest buffered records. The listener is notified again
+    // only when this has returned everything buffered.
+    public List<ConsumerRecord<String, byte[]>> drain(int maxCount) {
+        List<ConsumerRecord<String, byte[]>> records = new ArrayList<>();
+        boolean renotify;
+        synchronized (this) {
+            while (records.size() < maxCount && !buffer.isEmpty()) {
+                records.add(buffer.pollFirst());
+            }
+            notified = !buffer.isEmpty() && !cancelled;
+            renotify = notified;
+        }
+        // the rest is offered in a later call, so that one drain cannot take too long
+        if (renotify) {
+            listener.recordsAvailable(this);
+        }
+        return records;
+    }
+
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        buffer.clear();
+        if (consumer != null) {
+            consumer.wakeup();
+        }
+        log.info("Cancelled tail of {}", topicPartitions);
+    }
+}
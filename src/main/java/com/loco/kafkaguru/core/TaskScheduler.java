@@ -0,0 +1,273 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs the background work of one cluster. At most maxConcurrency tasks run at a
+// time, the rest wait in a queue. All schedulers share one set of worker threads,
+// which are virtual threads when the runtime supports them.
+@Log4j2
+public class TaskScheduler {
+    private static final ExecutorService workers = createWorkers();
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(
+                    runnable -> {
+                        var thread = new Thread(runnable, "kafkaguru-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    @Getter private final String name;
+    @Getter private final int maxConcurrency;
+    private final Deque<ManagedTask<?>> queue = new ArrayDeque<>();
+    private final List<ManagedTask<?>> runningTasks = new ArrayList<>();
+    private final List<ScheduledFuture<?>> periodicTasks = new ArrayList<>();
+    private boolean shutdown = false;
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong totalRunMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    public TaskScheduler(@NonNull String name, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency should be at least 1");
+        }
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    private class ManagedTask<T> extends FutureTask<T> {
+        private final String taskName;
+        private final boolean limited;
+        private final long submittedAt = System.currentTimeMillis();
+
+        private ManagedTask(String taskName, Callable<T> callable, boolean limited) {
+            super(callable);
+            this.taskName = taskName;
+            this.limited = limited;
+        }
+
+        @Override
+        public void run() {
+            var thread = Thread.currentThread();
+            var threadName = thread.getName();
+            var startedAt = System.currentTimeMillis();
+            thread.setName(name + "/" + taskName);
+            try {
+                super.run();
+            } finally {
+                thread.setName(threadName);
+                taskFinished(this, startedAt);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                taskCancelled(this);
+            }
+        }
+    }
+
+    public <T> Future<T> submit(String taskName, Callable<T> callable) {
+        var task = new ManagedTask<>(taskName, callable, true);
+        synchronized (this) {
+            checkRunning();
+            queue.addLast(task);
+        }
+        dispatch();
+        return task;
+    }
+
+    public Future<?> submit(String taskName, Runnable runnable) {
+        return submit(taskName, Executors.callable(runnable));
+    }
+
+    // Starts right away, without waiting for a free slot. Only meant for subtasks of an
+    // already running task, which would otherwise deadlock waiting for their parent's slot,
+    // and for tasks that run until cancelled, which would hold a slot forever.
+    public <T> Future<T> fork(String taskName, Callable<T> callable) {
+        var task = new ManagedTask<>(taskName, callable, false);
+        synchronized (this) {
+            checkRunning();
+            runningTasks.add(task);
+        }
+        workers.execute(task);
+        return task;
+    }
+
+    // a new run is not started while the previous one is still queued or running
+    public synchronized Future<?> scheduleWithFixedDelay(
+            String taskName, Runnable runnable, long initialDelayMs, long delayMs) {
+        checkRunning();
+        var lastRun = new AtomicReference<Future<?>>();
+        var future =
+                timer.scheduleWithFixedDelay(
+                        () -> {
+                            var previousRun = lastRun.get();
+                            if (previousRun == null || previousRun.isDone()) {
+                                try {
+                                    lastRun.set(submit(taskName, runnable));
+                                } catch (RejectedExecutionException e) {
+                                    log.info(
+                                            "Skipped {}, scheduler {} is shut down",
+                                            taskName,
+                                            name);
+                                }
+                            }
+                        },
+                        initialDelayMs,
+                        delayMs,
+                        TimeUnit.MILLISECONDS);
+        periodicTasks.add(future);
+        return future;
+    }
+
+    private void dispatch() {
+        var tasksToStart = new ArrayList<ManagedTask<?>>();
+        synchronized (this) {
+            while (getLimitedRunningCount() < maxConcurrency && !queue.isEmpty()) {
+                var task = queue.pollFirst();
+                if (task.isDone()) {
+                    continue;
+                }
+                runningTasks.add(task);
+                tasksToStart.add(task);
+            }
+        }
+        tasksToStart.forEach(workers::execute);
+    }
+
+    private void taskFinished(ManagedTask<?> task, long startedAt) {
+        var finishedAt = System.currentTimeMillis();
+        var waitMillis = startedAt - task.submittedAt;
+        completedCount.incrementAndGet();
+        totalWaitMillis.addAndGet(waitMillis);
+        totalRunMillis.addAndGet(finishedAt - startedAt);
+        maxWaitMillis.accumulateAndGet(waitMillis, Math::max);
+        log.debug(
+                "Task {}/{} waited {} ms, ran {} ms",
+                name,
+                task.taskName,
+                waitMillis,
+                finishedAt - startedAt);
+
+        synchronized (this) {
+            runningTasks.remove(task);
+        }
+        dispatch();
+    }
+
+    private void taskCancelled(ManagedTask<?> task) {
+        synchronized (this) {
+            queue.remove(task);
+        }
+    }
+
+    private int getLimitedRunningCount() {
+        return (int) runningTasks.stream().filter(task -> task.limited).count();
+    }
+
+    private void checkRunning() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler " + name + " is shut down");
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return runningTasks.size();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    // time spent in the queue before starting
+    public long getAverageWaitMillis() {
+        var count = completedCount.get();
+        return count == 0 ? 0 : totalWaitMillis.get() / count;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    public long getAverageRunMillis() {
+        var count = completedCount.get();
+        return count == 0 ? 0 : totalRunMillis.get() / count;
+    }
+
+    public void shutdown() {
+        List<ManagedTask<?>> tasksToCancel;
+        synchronized (this) {
+            shutdown = true;
+            periodicTasks.forEach(future -> future.cancel(false));
+            periodicTasks.clear();
+            tasksToCancel = new ArrayList<>(queue);
+            tasksToCancel.addAll(runningTasks);
+        }
+        tasksToCancel.forEach(task -> task.cancel(true));
+        log.info("Scheduler {} shut down, {}", name, this);
+    }
+
+    public String toString() {
+        return "queued "
+                + getQueueDepth()
+                + ", running "
+                + getRunningCount()
+                + ", completed "
+                + getCompletedCount()
+                + ", avg wait "
+                + getAverageWaitMillis()
+                + " ms, avg run "
+                + getAverageRunMillis()
+                + " ms";
+    }
+
+    private static ExecutorService createWorkers() {
+        try {
+            // Thread.ofVirtual() is only available from Java 21, so it is looked up reflectively
+            var builderClass = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder =
+                    builderClass
+                            .getMethod("name", String.class, long.class)
+                            .invoke(builder, "kafkaguru-virtual-", 0L);
+            var factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            var executor =
+                    (ExecutorService)
+                            Executors.class
+                                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                                    .invoke(null, factory);
+            log.info("Running tasks on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.info("Virtual threads are not available, running tasks on platform threads");
+        }
+
+        var threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(
+                runnable -> {
+                    var thread =
+                            new Thread(
+                                    runnable, "kafkaguru-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
@@ -0,0 +1,54 @@
+package com.loco.kafkaguru.core;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Remembers the offsets resolved by offsetsForTimes. The offset for a timestamp never
+// decreases as the timestamp grows, so when the nearest resolved timestamps below and
+// above a new one have the same offset, the new one has that offset too.
+class TimestampOffsetCache {
+    private static final int MAX_ENTRIES_PER_PARTITION = 64;
+
+    // key = timestamp, value = first offset whose timestamp is not less than the key
+    private final Map<TopicPartition, TreeMap<Long, Long>> offsets = new HashMap<>();
+
+    // returns null if the offset cannot be told from the cached ones
+    synchronized Long get(TopicPartition tp, long timestamp) {
+        var partitionOffsets = offsets.get(tp);
+        if (partitionOffsets == null) {
+            return null;
+        }
+        var floor = partitionOffsets.floorEntry(timestamp);
+        if (floor == null) {
+            return null;
+        }
+        if (floor.getKey() == timestamp) {
+            return floor.getValue();
+        }
+        var ceiling = partitionOffsets.ceilingEntry(timestamp);
+        if (ceiling != null && ceiling.getValue().equals(floor.getValue())) {
+            return floor.getValue();
+        }
+        return null;
+    }
+
+    // Only offsets of existing messages should be put. A timestamp beyond the last message
+    // resolves to a different offset as soon as new messages arrive.
+    synchronized void put(TopicPartition tp, long timestamp, long offset) {
+        var partitionOffsets = offsets.computeIfAbsent(tp, k -> new TreeMap<>());
+        partitionOffsets.put(timestamp, offset);
+        if (partitionOffsets.size() > MAX_ENTRIES_PER_PARTITION) {
+            // drop the entry farthest from the latest lookup
+            var first = partitionOffsets.firstKey();
+            var last = partitionOffsets.lastKey();
+            partitionOffsets.remove(timestamp - first > last - timestamp ? first : last);
+        }
+    }
+
+    synchronized void clear() {
+        offsets.clear();
+    }
+}
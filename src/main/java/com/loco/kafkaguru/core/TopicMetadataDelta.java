@@ -0,0 +1,64 @@
+package com.loco.kafkaguru.core;
+
+import lombok.Getter;
+import org.apache.kafka.common.PartitionInfo;
+
+import java.util.*;
+
+@Getter
+public class TopicMetadataDelta {
+    // key = topic
+    private final Map<String, List<PartitionInfo>> addedTopics;
+    private final Set<String> removedTopics;
+    // topics whose partition count has changed, with their new partitions
+    private final Map<String, List<PartitionInfo>> changedTopics;
+
+    public TopicMetadataDelta(
+            Map<String, List<PartitionInfo>> addedTopics,
+            Set<String> removedTopics,
+            Map<String, List<PartitionInfo>> changedTopics) {
+        this.addedTopics = Collections.unmodifiableMap(addedTopics);
+        this.removedTopics = Collections.unmodifiableSet(removedTopics);
+        this.changedTopics = Collections.unmodifiableMap(changedTopics);
+    }
+
+    public static TopicMetadataDelta of(Map<String, List<PartitionInfo>> topics) {
+        return new TopicMetadataDelta(new TreeMap<>(topics), Set.of(), Map.of());
+    }
+
+    public static TopicMetadataDelta between(
+            Map<String, List<PartitionInfo>> oldTopics,
+            Map<String, List<PartitionInfo>> newTopics) {
+        var added = new TreeMap<String, List<PartitionInfo>>();
+        var changed = new TreeMap<String, List<PartitionInfo>>();
+        for (var entry : newTopics.entrySet()) {
+            var oldPartitions = oldTopics.get(entry.getKey());
+            if (oldPartitions == null) {
+                added.put(entry.getKey(), entry.getValue());
+            } else if (oldPartitions.size() != entry.getValue().size()) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        var removed = new TreeSet<String>();
+        for (var topic : oldTopics.keySet()) {
+            if (!newTopics.containsKey(topic)) {
+                removed.add(topic);
+            }
+        }
+        return new TopicMetadataDelta(added, removed, changed);
+    }
+
+    public boolean isEmpty() {
+        return addedTopics.isEmpty() && removedTopics.isEmpty() && changedTopics.isEmpty();
+    }
+
+    public String toString() {
+        return "added "
+                + addedTopics.size()
+                + ", removed "
+                + removedTopics.size()
+                + ", changed "
+                + changedTopics.size()
+                + " topics";
+    }
+}
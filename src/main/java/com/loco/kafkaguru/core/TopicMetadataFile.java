@@ -0,0 +1,118 @@
+package com.loco.kafkaguru.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The topics of a cluster saved next to the settings, so that they can be shown at
+// start before the cluster has answered. Only the partition numbers and leaders are
+// kept, which is what is needed until the first refresh.
+@Log4j2
+class TopicMetadataFile {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class SavedPartition {
+        private int partition;
+        // -1 if there is no leader
+        private int leaderId;
+        private String leaderHost;
+        private int leaderPort;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class SavedTopics {
+        private long savedAt;
+        // key = topic
+        private Map<String, List<SavedPartition>> topics;
+    }
+
+    private final Path path;
+
+    TopicMetadataFile(Path path) {
+        this.path = path;
+    }
+
+    // returns null if nothing has been saved, or it cannot be read
+    Map<String, List<PartitionInfo>> load() {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            var saved = mapper.readValue(path.toFile(), SavedTopics.class);
+            var topics = new TreeMap<String, List<PartitionInfo>>();
+            saved.getTopics()
+                    .forEach(
+                            (topic, partitions) -> {
+                                var partitionInfos = new ArrayList<PartitionInfo>();
+                                for (var partition : partitions) {
+                                    partitionInfos.add(toPartitionInfo(topic, partition));
+                                }
+                                topics.put(topic, partitionInfos);
+                            });
+            log.info("Loaded {} topics saved in {}", topics.size(), path);
+            return topics;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to load the topics saved in {}", path, e);
+            return null;
+        }
+    }
+
+    void save(Map<String, List<PartitionInfo>> topics) {
+        var savedTopics = new TreeMap<String, List<SavedPartition>>();
+        topics.forEach(
+                (topic, partitions) -> {
+                    var savedPartitions = new ArrayList<SavedPartition>();
+                    for (var partition : partitions) {
+                        savedPartitions.add(toSavedPartition(partition));
+                    }
+                    savedTopics.put(topic, savedPartitions);
+                });
+        // written aside first, so that a crash cannot leave half a file
+        var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            mapper.writeValue(
+                    temporary.toFile(), new SavedTopics(System.currentTimeMillis(), savedTopics));
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Failed to save the topics to {}", path, e);
+        }
+    }
+
+    private static PartitionInfo toPartitionInfo(String topic, SavedPartition partition) {
+        var leader =
+                partition.getLeaderId() < 0
+                        ? null
+                        : new Node(
+                                partition.getLeaderId(),
+                                partition.getLeaderHost(),
+                                partition.getLeaderPort());
+        return new PartitionInfo(topic, partition.getPartition(), leader, new Node[0], new Node[0]);
+    }
+
+    private static SavedPartition toSavedPartition(PartitionInfo partition) {
+        var leader = partition.leader();
+        return leader == null || leader.isEmpty()
+                ? new SavedPartition(partition.partition(), -1, null, 0)
+                : new SavedPartition(
+                        partition.partition(), leader.id(), leader.host(), leader.port());
+    }
+}
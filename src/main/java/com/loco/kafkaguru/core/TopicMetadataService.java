@@ -0,0 +1,202 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.core.listeners.KafkaMetadataListener;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.DescribeTopicsOptions;
+import org.apache.kafka.clients.admin.ListTopicsOptions;
+import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+// Caches the topic and partition metadata of a cluster and keeps it fresh in
+// the background. Listeners receive only the differences between refreshes. What was
+// saved by the last run is offered until the cluster has answered, and the first
+// refresh then delivers the differences from it.
+@Log4j2
+public class TopicMetadataService {
+    private final String clusterName;
+    private final CoreSettings settings;
+    private final TaskScheduler scheduler;
+    // null if the topics are not saved
+    private final TopicMetadataFile file;
+    private final List<KafkaMetadataListener> listeners = new CopyOnWriteArrayList<>();
+    private final Object refreshLock = new Object();
+    private volatile AdminClient adminClient;
+    private Future<?> refresher;
+    // key = topic
+    private volatile Map<String, List<PartitionInfo>> topics;
+    private volatile long refreshedAt = 0;
+
+    public TopicMetadataService(
+            String clusterName, @NonNull CoreSettings settings, @NonNull TaskScheduler scheduler) {
+        this(clusterName, settings, scheduler, null);
+    }
+
+    TopicMetadataService(
+            String clusterName,
+            @NonNull CoreSettings settings,
+            @NonNull TaskScheduler scheduler,
+            TopicMetadataFile file) {
+        this.clusterName = clusterName;
+        this.settings = settings;
+        this.scheduler = scheduler;
+        this.file = file;
+        if (file != null) {
+            // expired from the start, so the first use refreshes it
+            topics = file.load();
+        }
+    }
+
+    public synchronized void connect(@NonNull AdminClient adminClient) {
+        stop();
+        this.adminClient = adminClient;
+        refreshedAt = 0;
+
+        var ttl = settings.getMetadataTtlMs();
+        refresher =
+                scheduler.scheduleWithFixedDelay(
+                        "refresh-metadata", this::refreshInBackground, ttl, ttl);
+    }
+
+    public void addListener(@NonNull KafkaMetadataListener listener) {
+        if (listeners.contains(listener)) {
+            return;
+        }
+        listeners.add(listener);
+
+        var snapshot = getCachedTopics();
+        if (snapshot != null) {
+            listener.metadataChanged(TopicMetadataDelta.of(snapshot));
+        }
+    }
+
+    public void removeListener(KafkaMetadataListener listener) {
+        listeners.remove(listener);
+    }
+
+    // returns null if the metadata has not been loaded yet
+    public Map<String, List<PartitionInfo>> getCachedTopics() {
+        return topics;
+    }
+
+    // false while the topics are only those saved by the last run, or none at all
+    public boolean isRefreshed() {
+        return refreshedAt > 0;
+    }
+
+    public Map<String, List<PartitionInfo>> getTopics() throws KafkaException {
+        var cachedTopics = topics;
+        if (cachedTopics != null && !isExpired()) {
+            return cachedTopics;
+        }
+        return refresh();
+    }
+
+    public List<PartitionInfo> getPartitions(String topic) throws KafkaException {
+        return getTopics().get(topic);
+    }
+
+    public Map<String, List<PartitionInfo>> refresh() throws KafkaException {
+        TopicMetadataDelta delta;
+        Map<String, List<PartitionInfo>> newTopics;
+        synchronized (refreshLock) {
+            newTopics = describeTopics();
+            delta =
+                    topics == null
+                            ? TopicMetadataDelta.of(newTopics)
+                            : TopicMetadataDelta.between(topics, newTopics);
+            topics = newTopics;
+            refreshedAt = System.currentTimeMillis();
+        }
+        if (!delta.isEmpty()) {
+            log.info("Topic metadata of {} changed: {}", clusterName, delta);
+            listeners.forEach(listener -> listener.metadataChanged(delta));
+            if (file != null) {
+                file.save(newTopics);
+            }
+        }
+        return newTopics;
+    }
+
+    private boolean isExpired() {
+        return System.currentTimeMillis() - refreshedAt >= settings.getMetadataTtlMs();
+    }
+
+    private void refreshInBackground() {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (KafkaException e) {
+            log.warn("Background refresh of topics failed for {}", clusterName, e);
+        }
+    }
+
+    private Map<String, List<PartitionInfo>> describeTopics() throws KafkaException {
+        var adminClient = this.adminClient;
+        if (adminClient == null) {
+            throw new IllegalStateException("Not connected to " + clusterName);
+        }
+        var timeout = (int) settings.getMetadataRequestTimeoutMs();
+        try {
+            var names =
+                    adminClient
+                            .listTopics(
+                                    new ListTopicsOptions().listInternal(true).timeoutMs(timeout))
+                            .names()
+                            .get();
+            var descriptions =
+                    adminClient
+                            .describeTopics(names, new DescribeTopicsOptions().timeoutMs(timeout))
+                            .all()
+                            .get();
+
+            var newTopics = new TreeMap<String, List<PartitionInfo>>();
+            descriptions.values().forEach(d -> newTopics.put(d.name(), toPartitionInfos(d)));
+            return newTopics;
+        } catch (ExecutionException e) {
+            throw new KafkaException("Failed to obtain topics from " + clusterName, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KafkaException("Interrupted while obtaining topics", e);
+        }
+    }
+
+    private static List<PartitionInfo> toPartitionInfos(TopicDescription description) {
+        return description.partitions().stream()
+                .map(
+                        p ->
+                                new PartitionInfo(
+                                        description.name(),
+                                        p.partition(),
+                                        p.leader(),
+                                        p.replicas().toArray(new Node[0]),
+                                        p.isr().toArray(new Node[0])))
+                .sorted(Comparator.comparingInt(PartitionInfo::partition))
+                .collect(Collectors.toList());
+    }
+
+    private void stop() {
+        if (refresher != null) {
+            refresher.cancel(true);
+            refresher = null;
+        }
+        if (adminClient != null) {
+            adminClient.close(Duration.ofSeconds(1));
+            adminClient = null;
+        }
+    }
+
+    public synchronized void close() {
+        stop();
+    }
+}
@@ -0,0 +1,7 @@
+package com.loco.kafkaguru.core.listeners;
+
+import com.loco.kafkaguru.core.TopicMetadataDelta;
+
+public interface KafkaMetadataListener {
+    void metadataChanged(TopicMetadataDelta delta);
+}
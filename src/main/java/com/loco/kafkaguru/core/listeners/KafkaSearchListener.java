@@ -0,0 +1,17 @@
+package com.loco.kafkaguru.core.listeners;
+
+import com.loco.kafkaguru.core.SearchJob;
+import com.loco.kafkaguru.core.SearchProgress;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.util.List;
+
+public interface KafkaSearchListener {
+    // matches are reported as found, not in any particular order
+    void matchesFound(SearchJob job, List<ConsumerRecord<String, byte[]>> records);
+
+    void progressUpdated(SearchJob job, SearchProgress progress);
+
+    // error is null if the search has not failed; not called if it was cancelled
+    void searchFinished(SearchJob job, SearchProgress progress, Exception error);
+}
@@ -0,0 +1,12 @@
+package com.loco.kafkaguru.core.listeners;
+
+import com.loco.kafkaguru.core.TailSession;
+
+public interface KafkaTailListener {
+    // Called when new records can be taken with session.drain(). Not called again until
+    // the session has been drained.
+    void recordsAvailable(TailSession session);
+
+    // error is null if the session was cancelled
+    void tailStopped(TailSession session, Exception error);
+}
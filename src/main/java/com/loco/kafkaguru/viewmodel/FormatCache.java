@@ -0,0 +1,68 @@
+package com.loco.kafkaguru.viewmodel;
+
+import com.loco.kafkaguru.MessageFormatter;
+
+import java.util.LinkedHashMap;
+
+// The formatted bodies and summaries of the messages looked at last, bounded by their
+// total length. A message is formatted only once it is shown, and not again while it
+// stays in here.
+class FormatCache {
+    private static final long MAX_CHARS = 32 * 1024 * 1024;
+
+    static final FormatCache shared = new FormatCache(MAX_CHARS);
+
+    static class Entry {
+        final MessageFormatter formatter;
+        // null until the body is asked for, if the formatter can summarize without it
+        final String body;
+        final String summary;
+
+        Entry(MessageFormatter formatter, String body, String summary) {
+            this.formatter = formatter;
+            this.body = body;
+            this.summary = summary;
+        }
+
+        long getChars() {
+            return (body == null ? 0 : body.length()) + summary.length();
+        }
+    }
+
+    private final long maxChars;
+    private final LinkedHashMap<MessageModel, Entry> entries =
+            new LinkedHashMap<>(1024, 0.75f, true);
+    private long chars = 0;
+
+    FormatCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    // returns null unless the message has been formatted with this formatter
+    synchronized Entry get(MessageModel message, MessageFormatter formatter) {
+        var entry = entries.get(message);
+        return entry == null || entry.formatter != formatter ? null : entry;
+    }
+
+    // whether the message has been formatted with any formatter, without touching it
+    synchronized boolean contains(MessageModel message) {
+        return entries.containsKey(message);
+    }
+
+    synchronized void put(MessageModel message, Entry entry) {
+        var old = entries.put(message, entry);
+        chars += entry.getChars() - (old == null ? 0 : old.getChars());
+        var iterator = entries.values().iterator();
+        while (chars > maxChars && iterator.hasNext()) {
+            chars -= iterator.next().getChars();
+            iterator.remove();
+        }
+    }
+
+    synchronized void remove(MessageModel message) {
+        var old = entries.remove(message);
+        if (old != null) {
+            chars -= old.getChars();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.loco.kafkaguru.viewmodel;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+// The fields of a batch of messages, kept column by column in arrays rather than in
+// objects of their own. A MessageModel is a view of one of its rows. Topics and keys
+// are interned, as a batch tends to repeat them.
+class MessageColumns {
+    final String[] topics;
+    final int[] partitions;
+    final long[] offsets;
+    final long[] timestamps;
+    final String[] keys;
+    // null where the record has no value
+    final PayloadArena.Handle[] values;
+
+    MessageColumns(int size) {
+        topics = new String[size];
+        partitions = new int[size];
+        offsets = new long[size];
+        timestamps = new long[size];
+        keys = new String[size];
+        values = new PayloadArena.Handle[size];
+    }
+
+    int size() {
+        return offsets.length;
+    }
+
+    // rows may be set from several threads at once, as long as they are different ones
+    void set(int row, ConsumerRecord<String, byte[]> record) {
+        topics[row] = record.topic().intern();
+        partitions[row] = record.partition();
+        offsets[row] = record.offset();
+        timestamps[row] = record.timestamp();
+        keys[row] = record.key() == null ? null : record.key().intern();
+        values[row] = record.value() == null ? null : PayloadArena.shared.store(record.value());
+    }
+}
@@ -1,117 +1,228 @@
 package com.loco.kafkaguru.viewmodel;
 
 import com.loco.kafkaguru.MessageFormatter;
+import com.loco.kafkaguru.SummaryFormatter;
+import com.loco.kafkaguru.core.FormattedContentCache;
 import com.loco.kafkaguru.core.PluginLoader;
-import javafx.beans.property.*;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 
-import java.text.SimpleDateFormat;
-import java.time.Instant;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONObject;
 
+// A message shown in the table, as a view of a row of MessageColumns. Its value is kept
+// off the heap in PayloadArena, and it is formatted only when its body or summary is
+// first asked for, the result being kept in FormatCache. The value is released once the
+// message is no longer held by its node.
 public class MessageModel {
     private static final int MAX_MESSAGE_SUMMARY_LEN = 200;
 
-    private IntegerProperty index;
-    private IntegerProperty partition;
-    private LongProperty offset;
-    private StringProperty key;
-    private StringProperty messageSummary;
-    private StringProperty messageBody;
+    private final MessageColumns columns;
+    private final int row;
+    private int index;
+    private volatile MessageFormatter formatter;
 
-    private SimpleObjectProperty<Date> timestamp;
+    MessageModel(MessageColumns columns, int row, int index, MessageFormatter formatter) {
+        this.columns = columns;
+        this.row = row;
+        this.index = index;
+        this.formatter = formatter;
+    }
+
+    // the messages of the records, numbered from startRow + 1
+    public static List<MessageModel> create(
+            int startRow,
+            List<ConsumerRecord<String, byte[]>> records,
+            MessageFormatter formatter) {
+        var columns = new MessageColumns(records.size());
+        var messages = new ArrayList<MessageModel>(records.size());
+        for (int i = 0; i < records.size(); ++i) {
+            columns.set(i, records.get(i));
+            messages.add(new MessageModel(columns, i, startRow + i + 1, formatter));
+        }
+        return messages;
+    }
 
-    String timestampPattern = "E, dd MMM yyyy HH:mm:ss";
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat(timestampPattern);
-    private MessageFormatter formatter;
+    // releases the values of the old messages which are not among the new ones
+    public static void releaseReplaced(
+            List<MessageModel> oldMessages, List<MessageModel> newMessages) {
+        if (oldMessages == null || oldMessages == newMessages) {
+            return;
+        }
+        var kept = Collections.newSetFromMap(new IdentityHashMap<MessageModel, Boolean>());
+        if (newMessages != null) {
+            kept.addAll(newMessages);
+        }
+        for (var message : oldMessages) {
+            if (!kept.contains(message)) {
+                message.release();
+            }
+        }
+    }
 
-    private ConsumerRecord<String, byte[]> record;
+    // formats the messages not formatted yet, away from the UI thread
+    public static void preformat(List<MessageModel> messages) {
+        messages.forEach(message -> message.getFormatted(false));
+    }
 
-    public MessageModel(
-            int index, ConsumerRecord<String, byte[]> record, MessageFormatter formatter) {
-        this.record = record;
-        this.formatter = formatter;
-        this.index = new SimpleIntegerProperty(index);
-        partition = new SimpleIntegerProperty(record.partition());
-        offset = new SimpleLongProperty(record.offset());
-        key = new SimpleStringProperty(record.key());
-        var formatted = format(record.value());
-        messageBody = new SimpleStringProperty(formatted);
-        messageSummary = new SimpleStringProperty(summarize(formatted));
-
-        timestamp = new SimpleObjectProperty<>(Date.from(Instant.ofEpochMilli(record.timestamp())));
-    }
-
-    private String summarize(String text) {
-        var summary =
-                text == null
-                        ? ""
-                        : text.length() > MAX_MESSAGE_SUMMARY_LEN
-                                ? text.substring(0, MAX_MESSAGE_SUMMARY_LEN)
-                                : text;
-
-        while (summary.contains("\n") || summary.contains("\r")) {
-            summary = summary.replace("\n", " ").replace("\r", " ");
+    // the body is formatted only if asked for, or if the formatter cannot summarize
+    private FormatCache.Entry getFormatted(boolean withBody) {
+        var formatter = this.formatter;
+        var entry = FormatCache.shared.get(this, formatter);
+        if (entry != null && (entry.body != null || !withBody)) {
+            return entry;
+        }
+        var data = getValue();
+        if (data == null && columns.values[row] != null) {
+            // released, not worth keeping
+            return new FormatCache.Entry(formatter, "", "");
         }
-        summary = summary.replace("  ", " ");
-        summary = summary.replace("  ", " ");
+        String body = null;
+        String summary;
+        if (formatter instanceof SummaryFormatter) {
+            if (withBody) {
+                body = format(formatter, data);
+            }
+            summary = entry != null ? entry.summary : summarize((SummaryFormatter) formatter, data);
+        } else {
+            body = format(formatter, data);
+            summary = summarize(body);
+        }
+        entry = new FormatCache.Entry(formatter, body, summary);
+        FormatCache.shared.put(this, entry);
+        return entry;
+    }
 
-        return summary;
+    private static String summarize(SummaryFormatter formatter, byte[] data) {
+        if (data == null) {
+            return "";
+        }
+        // repeated payloads are summarized once, see FormattedContentCache
+        return FormattedContentCache.shared.get(
+                formatter.name(),
+                FormattedContentCache.Kind.SUMMARY,
+                data,
+                () -> {
+                    try {
+                        return formatter.summarize(data, MAX_MESSAGE_SUMMARY_LEN);
+                    } catch (Exception e) {
+                        return summarize(new String(data));
+                    }
+                });
     }
 
-    private String format(byte[] data) {
-        if (data == null || formatter == null) {
-            return new String(data);
+    // the start of the text on a single line, with runs of white space made one space
+    private static String summarize(String text) {
+        var summary = new StringBuilder(Math.min(text.length(), MAX_MESSAGE_SUMMARY_LEN));
+        var length = Math.min(text.length(), MAX_MESSAGE_SUMMARY_LEN);
+        var lastSpace = false;
+        for (int i = 0; i < length; ++i) {
+            var c = text.charAt(i);
+            var space = c == ' ' || c == '\n' || c == '\r' || c == '\t';
+            if (!space) {
+                summary.append(c);
+            } else if (!lastSpace) {
+                summary.append(' ');
+            }
+            lastSpace = space;
         }
+        return summary.toString();
+    }
 
-        try {
-            var formatted = formatter.format(data);
-            return formatted;
-        } catch (Exception e) {
+    // the body shown for the value, also searched for the filter fields
+    public static String format(MessageFormatter formatter, byte[] data) {
+        if (data == null) {
+            return "";
+        }
+        if (formatter == null) {
             return new String(data);
         }
+
+        // repeated payloads are formatted once, see FormattedContentCache
+        return FormattedContentCache.shared.get(
+                formatter.name(),
+                FormattedContentCache.Kind.BODY,
+                data,
+                () -> {
+                    try {
+                        var formatted = formatter.format(data);
+                        return formatted == null ? new String(data) : formatted;
+                    } catch (Exception e) {
+                        return new String(data);
+                    }
+                });
     }
 
     public int getIndex() {
-        return index.get();
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
     }
 
     public int getPartition() {
-        return partition.get();
+        return columns.partitions[row];
     }
 
     public long getOffset() {
-        return offset.get();
+        return columns.offsets[row];
     }
 
     public String getKey() {
-        return key.get();
+        return columns.keys[row];
     }
 
     public String getMessageSummary() {
-        return messageSummary.get();
+        return getFormatted(false).summary;
     }
 
     public String getTimestamp() {
-        return simpleDateFormat.format(timestamp.get());
+        return TimestampFormat.format(getTimestampMillis());
     }
 
     public String getMessageBody() {
-        return messageBody.get();
+        return getFormatted(true).body;
+    }
+
+    public String getTopic() {
+        return columns.topics[row];
+    }
+
+    public long getTimestampMillis() {
+        return columns.timestamps[row];
+    }
+
+    // a copy of the value, null if there is none or it has been released
+    public byte[] getValue() {
+        var value = columns.values[row];
+        return value == null ? null : PayloadArena.shared.read(value);
+    }
+
+    public void release() {
+        FormatCache.shared.remove(this);
+        var value = columns.values[row];
+        if (value != null) {
+            PayloadArena.shared.release(value);
+        }
     }
 
-    public ConsumerRecord<String, byte[]> getRecord() {
-        return record;
+    public MessageFormatter getFormatter() {
+        return formatter;
     }
 
+    // the message is formatted again when next shown
     public void setFormatter(MessageFormatter formatter) {
         this.formatter = formatter;
-        var formatted = format(record.value());
-        messageBody = new SimpleStringProperty(formatted);
-        messageSummary = new SimpleStringProperty(summarize(formatted));
+    }
+
+    // whether the message has been formatted and is still in FormatCache
+    boolean isFormatted() {
+        return FormatCache.shared.contains(this);
     }
 }
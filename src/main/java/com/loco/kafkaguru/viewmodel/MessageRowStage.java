@@ -0,0 +1,129 @@
+package com.loco.kafkaguru.viewmodel;
+
+import com.loco.kafkaguru.MessageFormatter;
+import javafx.application.Platform;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+// Turns fetched records into table rows on a fork-join pool, away from the UI thread.
+// A batch is split into a chunk per core, each storing the values of its records and
+// formatting the first rows of the batch, which are the ones shown first. The rows of
+// a batch reach the UI thread only once all its chunks are done, and the batches in the
+// order they were submitted.
+@Log4j2
+public class MessageRowStage {
+    // a smaller batch is not worth splitting
+    private static final int MIN_CHUNK_RECORDS = 256;
+
+    private final ForkJoinPool pool;
+    // completes once the rows of the last batch submitted have been handed over
+    private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+    public MessageRowStage(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Rows are numbered from 1 within the batch; rowsReady, run on the UI thread, is
+    // expected to number them again as it adds them, and to give them the formatter of
+    // their topic if it has changed since. The first formatRows rows are formatted before
+    // they are handed over. If the rows cannot be created, out of direct memory for
+    // instance, failed is run on the UI thread instead, in the same order.
+    public synchronized void submit(
+            List<ConsumerRecord<String, byte[]>> records,
+            MessageFormatter formatter,
+            int formatRows,
+            Consumer<List<MessageModel>> rowsReady,
+            Consumer<Throwable> failed) {
+        var rows =
+                CompletableFuture.supplyAsync(
+                        () -> createRows(records, formatter, formatRows), pool);
+        last =
+                last.thenCombine(rows, (previous, messages) -> messages)
+                        .thenAccept(messages -> Platform.runLater(() -> rowsReady.accept(messages)))
+                        .exceptionally(
+                                e -> {
+                                    var cause = e instanceof CompletionException ? e.getCause() : e;
+                                    log.error("Failed to create the rows of a batch", cause);
+                                    Platform.runLater(() -> failed.accept(cause));
+                                    return null;
+                                });
+    }
+
+    private List<MessageModel> createRows(
+            List<ConsumerRecord<String, byte[]>> records,
+            MessageFormatter formatter,
+            int formatRows) {
+        var chunkSize =
+                Math.max(
+                        MIN_CHUNK_RECORDS,
+                        (records.size() + pool.getParallelism() - 1) / pool.getParallelism());
+        // the chunks fill different rows of the same columns
+        var columns = new MessageColumns(records.size());
+        var chunks = new ArrayList<ChunkTask>();
+        for (int start = 0; start < records.size(); start += chunkSize) {
+            chunks.add(
+                    new ChunkTask(
+                            columns,
+                            records,
+                            start,
+                            Math.min(start + chunkSize, records.size()),
+                            formatter,
+                            formatRows));
+        }
+        ForkJoinTask.invokeAll(chunks);
+
+        var messages = new ArrayList<MessageModel>(records.size());
+        for (var chunk : chunks) {
+            messages.addAll(chunk.join());
+        }
+        return messages;
+    }
+
+    private static class ChunkTask extends RecursiveTask<List<MessageModel>> {
+        private static final long serialVersionUID = 1L;
+
+        private final MessageColumns columns;
+        private final List<ConsumerRecord<String, byte[]>> records;
+        private final int start;
+        private final int end;
+        private final MessageFormatter formatter;
+        private final int formatRows;
+
+        private ChunkTask(
+                MessageColumns columns,
+                List<ConsumerRecord<String, byte[]>> records,
+                int start,
+                int end,
+                MessageFormatter formatter,
+                int formatRows) {
+            this.columns = columns;
+            this.records = records;
+            this.start = start;
+            this.end = end;
+            this.formatter = formatter;
+            this.formatRows = formatRows;
+        }
+
+        @Override
+        protected List<MessageModel> compute() {
+            var messages = new ArrayList<MessageModel>(end - start);
+            for (int i = start; i < end; ++i) {
+                columns.set(i, records.get(i));
+                messages.add(new MessageModel(columns, i, i + 1, formatter));
+            }
+            if (start < formatRows) {
+                MessageModel.preformat(messages.subList(0, Math.min(formatRows, end) - start));
+            }
+            return messages;
+        }
+    }
+}
@@ -44,6 +44,15 @@ public class PartitionNode implements AbstractNode {
         return toString().hashCode();
     }
 
+    @Override
+    public void setMessages(List<MessageModel> messages) {
+        // the only partition of a topic may share the messages of the topic
+        if (this.messages != parent.getMessages()) {
+            MessageModel.releaseReplaced(this.messages, messages);
+        }
+        this.messages = messages;
+    }
+
     @Override
     public void addMessages(List<MessageModel> messages) {
         this.messages.addAll(messages);
@@ -59,14 +68,8 @@ public class PartitionNode implements AbstractNode {
         log.info("existing formatter " + (this.formatter == null ? "null" : this.formatter.name()));
         log.info("Setting formatter " + formatter.name());
         if (this.formatter != formatter) {
+            // the messages are moved over by the topic, see Reformatter
             this.formatter = formatter;
-            reformatMessages();
-        }
-    }
-
-    private void reformatMessages() {
-        if (messages != null) {
-            messages.forEach(msg -> msg.setFormatter(formatter));
         }
     }
 
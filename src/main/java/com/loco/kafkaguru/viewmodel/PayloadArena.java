@@ -0,0 +1,137 @@
+package com.loco.kafkaguru.viewmodel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Keeps the values of the loaded messages off the heap, in direct buffers allocated as
+// large slabs and filled one after the other. A slab is freed as a whole once every
+// value in it has been released; a few freed slabs are kept for reuse, since
+// allocating direct memory is slow.
+public class PayloadArena {
+    private static final int SLAB_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_SPARE_SLABS = 4;
+
+    public static final PayloadArena shared = new PayloadArena(SLAB_BYTES, MAX_SPARE_SLABS);
+
+    private static class Slab {
+        private final ByteBuffer buffer;
+        private int used = 0;
+        // values stored and not released yet
+        private int liveCount = 0;
+
+        private Slab(int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    // Where a value is kept. It stays readable until it is released.
+    public static class Handle {
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+        private boolean released = false;
+
+        private Handle(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final int slabBytes;
+    private final int maxSpareSlabs;
+    private final Deque<Slab> spareSlabs = new ArrayDeque<>();
+    private Slab currentSlab;
+    private int slabCount = 0;
+    private long liveBytes = 0;
+
+    public PayloadArena(int slabBytes, int maxSpareSlabs) {
+        this.slabBytes = slabBytes;
+        this.maxSpareSlabs = maxSpareSlabs;
+    }
+
+    public synchronized Handle store(byte[] value) {
+        Slab slab;
+        if (value.length > slabBytes / 4) {
+            // a large value gets a slab of its own, not to waste the rest of a shared one
+            slab = new Slab(value.length);
+            ++slabCount;
+        } else {
+            if (currentSlab == null || currentSlab.used + value.length > slabBytes) {
+                retire(currentSlab);
+                currentSlab = newSlab();
+            }
+            slab = currentSlab;
+        }
+        var handle = new Handle(slab, slab.used, value.length);
+        slab.buffer.duplicate().position(slab.used).put(value);
+        slab.used += value.length;
+        ++slab.liveCount;
+        liveBytes += value.length;
+        return handle;
+    }
+
+    // returns null once the handle has been released
+    public byte[] read(Handle handle) {
+        var value = new byte[handle.length];
+        // copied under the lock, as a release may otherwise free the slab and a store
+        // fill it with other values meanwhile
+        synchronized (this) {
+            if (handle.released) {
+                return null;
+            }
+            handle.slab.buffer.duplicate().position(handle.offset).get(value);
+        }
+        return value;
+    }
+
+    public synchronized void release(Handle handle) {
+        if (handle.released) {
+            return;
+        }
+        handle.released = true;
+        liveBytes -= handle.length;
+        var slab = handle.slab;
+        if (--slab.liveCount == 0 && slab != currentSlab) {
+            free(slab);
+        }
+    }
+
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    private Slab newSlab() {
+        var slab = spareSlabs.pollFirst();
+        if (slab == null) {
+            slab = new Slab(slabBytes);
+        }
+        ++slabCount;
+        return slab;
+    }
+
+    // a slab no longer filled is freed as soon as it holds nothing
+    private void retire(Slab slab) {
+        if (slab != null && slab.liveCount == 0) {
+            free(slab);
+        }
+    }
+
+    private void free(Slab slab) {
+        --slabCount;
+        if (slab.buffer.capacity() == slabBytes && spareSlabs.size() < maxSpareSlabs) {
+            slab.used = 0;
+            spareSlabs.addFirst(slab);
+        }
+        // otherwise its memory goes back when the buffer is collected
+    }
+}
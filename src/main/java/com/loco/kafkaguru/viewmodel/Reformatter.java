@@ -0,0 +1,121 @@
+package com.loco.kafkaguru.viewmodel;
+
+import com.loco.kafkaguru.MessageFormatter;
+import javafx.application.Platform;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Moves the loaded messages of a topic to a new formatter away from the UI thread. The
+// pass goes through the messages a slice at a time, so that the rows shown, handed over
+// with reformatNow(), are done between two slices rather than after all the others. A
+// message is formatted again only if it had been formatted before; the others are
+// formatted once shown. A new formatter for the topic cancels the pass still running.
+@Log4j2
+public class Reformatter {
+    private static final int SLICE_ROWS = 1_000;
+
+    public static final Reformatter shared = new Reformatter();
+
+    private static class Pass {
+        private final List<List<MessageModel>> messageLists;
+        private final MessageFormatter formatter;
+        private volatile boolean cancelled = false;
+        private int list = 0;
+        private int row = 0;
+
+        private Pass(List<List<MessageModel>> messageLists, MessageFormatter formatter) {
+            this.messageLists = messageLists;
+            this.formatter = formatter;
+        }
+    }
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(
+                    runnable -> {
+                        var thread = new Thread(runnable, "kafkaguru-reformat");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    // the pass still running for each topic
+    private final Map<TopicNode, Pass> passes = new IdentityHashMap<>();
+
+    // Called on the UI thread, which owns the lists of messages; they are copied here.
+    // The topic and its partitions may share a list, which is then gone through once.
+    public synchronized void reformat(TopicNode topicNode, MessageFormatter formatter) {
+        var lists = Collections.newSetFromMap(new IdentityHashMap<List<MessageModel>, Boolean>());
+        if (topicNode.getMessages() != null) {
+            lists.add(topicNode.getMessages());
+        }
+        for (var partitionNode : topicNode.getPartitions()) {
+            if (partitionNode.getMessages() != null) {
+                lists.add(partitionNode.getMessages());
+            }
+        }
+        var messageLists = new ArrayList<List<MessageModel>>();
+        for (var messages : lists) {
+            messageLists.add(new ArrayList<>(messages));
+        }
+
+        var pass = new Pass(messageLists, formatter);
+        var previous = passes.put(topicNode, pass);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        executor.execute(() -> runSlice(topicNode, pass));
+    }
+
+    // Formats the rows shown with the formatter ahead of the rest of the pass, then runs
+    // done on the UI thread.
+    public void reformatNow(
+            List<MessageModel> messages, MessageFormatter formatter, Runnable done) {
+        var rows = new ArrayList<>(messages);
+        executor.execute(
+                () -> {
+                    rows.forEach(message -> message.setFormatter(formatter));
+                    MessageModel.preformat(rows);
+                    Platform.runLater(done);
+                });
+    }
+
+    private void runSlice(TopicNode topicNode, Pass pass) {
+        var count = 0;
+        while (!pass.cancelled && pass.list < pass.messageLists.size() && count < SLICE_ROWS) {
+            var messages = pass.messageLists.get(pass.list);
+            if (pass.row >= messages.size()) {
+                ++pass.list;
+                pass.row = 0;
+                continue;
+            }
+            var message = messages.get(pass.row++);
+            ++count;
+            // already done, as one of the rows shown or through a shared list
+            if (message.getFormatter() == pass.formatter) {
+                continue;
+            }
+            var formatted = message.isFormatted();
+            message.setFormatter(pass.formatter);
+            if (formatted) {
+                MessageModel.preformat(List.of(message));
+            }
+        }
+
+        if (!pass.cancelled && pass.list < pass.messageLists.size()) {
+            // behind whatever was handed over meanwhile
+            executor.execute(() -> runSlice(topicNode, pass));
+            return;
+        }
+        synchronized (this) {
+            passes.remove(topicNode, pass);
+        }
+        if (pass.cancelled) {
+            log.info("Cancelled the reformat of {}", topicNode.getTopic());
+        }
+    }
+}
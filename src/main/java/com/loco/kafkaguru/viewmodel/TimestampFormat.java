@@ -0,0 +1,38 @@
+package com.loco.kafkaguru.viewmodel;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Formats the timestamps of the messages for the table. The formatter is shared, being
+// thread-safe, and the texts of the seconds formatted last are kept, since the messages
+// of a batch tend to share their seconds and a row is rendered many times.
+public class TimestampFormat {
+    private static final DateTimeFormatter formatter =
+            DateTimeFormatter.ofPattern("E, dd MMM yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int CACHE_SIZE = 4096;
+
+    private static class Entry {
+        private final long second;
+        private final String text;
+
+        private Entry(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    // indexed by the second; an entry is immutable, so it can be read without a lock
+    private static final Entry[] cache = new Entry[CACHE_SIZE];
+
+    public static String format(long timestampMillis) {
+        var second = Math.floorDiv(timestampMillis, 1000);
+        var slot = (int) (second & (CACHE_SIZE - 1));
+        var entry = cache[slot];
+        if (entry == null || entry.second != second) {
+            entry = new Entry(second, formatter.format(Instant.ofEpochSecond(second)));
+            cache[slot] = entry;
+        }
+        return entry.text;
+    }
+}
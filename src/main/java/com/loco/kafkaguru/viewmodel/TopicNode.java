@@ -7,6 +7,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
@@ -28,22 +29,47 @@ public class TopicNode implements AbstractNode {
         this.partitions =
                 partitions.stream()
                         .map(p -> new PartitionNode(this, p))
-                        .collect(Collectors.toList());
+                        .collect(Collectors.toCollection(ArrayList::new));
     }
 
-    public void setMessages(List<MessageModel> messages) {
-        this.messages = messages;
-        if (messages != null) {
-            if (partitions.size() == 1) {
-                partitions.get(0).setMessages(messages);
+    // adds nodes for new partitions and returns them; existing nodes keep their messages
+    public List<PartitionNode> updatePartitions(List<PartitionInfo> partitionInfos) {
+        var existing =
+                partitions.stream()
+                        .collect(Collectors.toMap(p -> p.getPartition().partition(), p -> p));
+        var added = new ArrayList<PartitionNode>();
+        for (var partitionInfo : partitionInfos) {
+            var partitionNode = existing.get(partitionInfo.partition());
+            if (partitionNode == null) {
+                partitionNode = new PartitionNode(this, partitionInfo);
+                if (formatter != null) {
+                    partitionNode.setFormatter(formatter);
+                }
+                partitions.add(partitionNode);
+                added.add(partitionNode);
+            } else {
+                partitionNode.setPartition(partitionInfo);
             }
-            // partitions.forEach(p -> {
-            // var subMessages = messages.stream().filter(m -> m.getPartition() ==
-            // p.getPartition().partition())
-            // .collect(Collectors.toList());
-            // p.setMessages(subMessages);
-            // });
         }
+        return added;
+    }
+
+    // null drops the messages, which are released
+    public void setMessages(List<MessageModel> messages) {
+        // the only partition shares the messages, and drops them with the topic; it sees
+        // the messages of the topic before they are replaced, so as not to release them
+        if (partitions.size() == 1
+                && (messages != null || partitions.get(0).getMessages() == this.messages)) {
+            partitions.get(0).setMessages(messages);
+        }
+        MessageModel.releaseReplaced(this.messages, messages);
+        this.messages = messages;
+        // partitions.forEach(p -> {
+        // var subMessages = messages.stream().filter(m -> m.getPartition() ==
+        // p.getPartition().partition())
+        // .collect(Collectors.toList());
+        // p.setMessages(subMessages);
+        // });
     }
 
     @Override
@@ -122,13 +148,8 @@ public class TopicNode implements AbstractNode {
         if (this.formatter != formatter) {
             this.formatter = formatter;
             partitions.forEach(p -> p.setFormatter(formatter));
-            reformatMessages();
-        }
-    }
-
-    private void reformatMessages() {
-        if (messages != null) {
-            messages.forEach(msg -> msg.setFormatter(formatter));
+            // the messages, shared with the partitions, are moved over in the background
+            Reformatter.shared.reformat(this, formatter);
         }
     }
 
@@ -0,0 +1,123 @@
+package com.loco.kafkaguru.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachePolicyTest {
+    private static final long MAX_BYTES = 10_000;
+    private static final long WEIGHT = 100;
+
+    private final CachePolicy<String> policy = new CachePolicy<>(MAX_BYTES, 256);
+    // what the cache using the policy would hold
+    private final Map<String, Long> held = new HashMap<>();
+
+    // the way the caches use the policy: record the access, add on a miss, then evict
+    private void access(String key, long weight) {
+        policy.recordAccess(key);
+        if (held.containsKey(key)) {
+            policy.recordHit(weight);
+            return;
+        }
+        policy.recordMiss();
+        held.put(key, weight);
+        policy.setWeight(key, weight);
+        for (var evicted : policy.evict(key)) {
+            assertTrue(evicted + " evicted twice", held.remove(evicted) != null);
+        }
+    }
+
+    private void assertConsistent() {
+        var sum = held.values().stream().mapToLong(Long::longValue).sum();
+        assertEquals(sum, policy.getTotalBytes());
+        assertTrue(policy.getTotalBytes() <= MAX_BYTES);
+        var stats = policy.getStats();
+        assertEquals(held.size(), stats.getEntryCount());
+        assertEquals(sum, stats.getTotalBytes());
+        for (var key : held.keySet()) {
+            assertTrue(policy.contains(key));
+        }
+    }
+
+    @Test
+    public void scanDoesNotFlushEntriesInUse() {
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 50; ++i) {
+                access("hot-" + i, WEIGHT);
+            }
+        }
+        for (int i = 0; i < 10_000; ++i) {
+            access("scan-" + i, WEIGHT);
+        }
+
+        // the last one used was still in the window, so it went to probation like the
+        // scan; the others were protected
+        for (int i = 0; i < 49; ++i) {
+            assertTrue("hot-" + i + " was flushed", policy.contains("hot-" + i));
+        }
+        assertTrue(policy.getStats().getRejectedCount() > 0);
+        assertConsistent();
+    }
+
+    @Test
+    public void newWorkingSetReplacesOldOne() {
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 80; ++i) {
+                access("old-" + i, WEIGHT);
+            }
+        }
+        // the counts of the old set are halved away as the new set is used
+        for (int round = 0; round < 50; ++round) {
+            for (int i = 0; i < 80; ++i) {
+                access("new-" + i, WEIGHT);
+            }
+        }
+
+        var newHeld = 0;
+        for (int i = 0; i < 80; ++i) {
+            if (policy.contains("new-" + i)) {
+                ++newHeld;
+            }
+        }
+        assertTrue("only " + newHeld + " of the new set held", newHeld >= 70);
+        assertConsistent();
+    }
+
+    @Test
+    public void bytesStayConsistentAfterEvictAndRemove() {
+        for (int i = 0; i < 500; ++i) {
+            access("key-" + (i % 150), WEIGHT + i % 7 * 10);
+            if (i % 3 == 0) {
+                access("key-" + (i % 40), WEIGHT);
+            }
+        }
+        assertConsistent();
+
+        // one used often, one used once, and one which is not held
+        for (var key : new String[] {"key-0", "key-149", "key-nothing"}) {
+            policy.remove(key);
+            held.remove(key);
+        }
+        assertConsistent();
+
+        var key = held.keySet().iterator().next();
+        policy.setWeight(key, 3_000);
+        held.put(key, 3_000L);
+        for (var evicted : policy.evict(key)) {
+            held.remove(evicted);
+        }
+        assertTrue(policy.contains(key));
+        assertConsistent();
+
+        policy.clear();
+        held.clear();
+        assertFalse(policy.contains(key));
+        assertConsistent();
+        assertEquals(0, policy.getTotalBytes());
+    }
+}
@@ -0,0 +1,158 @@
+package com.loco.kafkaguru.core;
+
+import com.loco.kafkaguru.core.JsonTokenizer.Token;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonTokenizerTest {
+    private static JsonTokenizer tokenizer(String json) {
+        return new JsonTokenizer(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Token> tokens(String json) {
+        var tokenizer = tokenizer(json);
+        var tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = tokenizer.next();
+            tokens.add(token);
+        } while (token != Token.END && token != Token.INVALID);
+        return tokens;
+    }
+
+    @Test
+    public void tokenizesDocument() {
+        assertEquals(
+                List.of(
+                        Token.OBJECT_START,
+                        Token.STRING,
+                        Token.COLON,
+                        Token.ARRAY_START,
+                        Token.NUMBER,
+                        Token.COMMA,
+                        Token.TRUE,
+                        Token.COMMA,
+                        Token.FALSE,
+                        Token.COMMA,
+                        Token.NULL,
+                        Token.ARRAY_END,
+                        Token.OBJECT_END,
+                        Token.END),
+                tokens(" {\"a\" : [1, true,false ,\n null]}\t"));
+    }
+
+    @Test
+    public void stringRangeExcludesQuotes() {
+        var tokenizer = tokenizer("\"abc\"");
+        assertEquals(Token.STRING, tokenizer.next());
+        assertEquals(1, tokenizer.getStart());
+        assertEquals(4, tokenizer.getEnd());
+        assertFalse(tokenizer.isEscaped());
+        assertEquals("abc", tokenizer.getString());
+    }
+
+    @Test
+    public void decodesEscapes() {
+        var tokenizer = tokenizer("\"a\\\"b\\\\c\\n\\t\\u00e9\\/\"");
+        assertEquals(Token.STRING, tokenizer.next());
+        assertTrue(tokenizer.isEscaped());
+        assertEquals("a\"b\\c\n\té/", tokenizer.getString());
+        assertEquals(Token.END, tokenizer.next());
+    }
+
+    @Test
+    public void comparesEscapedStrings() {
+        var tokenizer = tokenizer("\"caf\\u00e9\"");
+        tokenizer.next();
+        assertTrue(tokenizer.stringEquals("café".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(tokenizer.stringEquals("cafe".getBytes(StandardCharsets.UTF_8)));
+
+        tokenizer = tokenizer("\"café\"");
+        tokenizer.next();
+        assertTrue(tokenizer.stringEquals("café".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void parsesNumbers() {
+        var tokenizer = tokenizer("[-42, 3.5, 1e3, 12345678901234567890]");
+        tokenizer.next();
+        tokenizer.next();
+        assertEquals(-42, tokenizer.getNumber(), 0);
+        tokenizer.next();
+        tokenizer.next();
+        assertEquals(3.5, tokenizer.getNumber(), 0);
+        tokenizer.next();
+        tokenizer.next();
+        assertEquals(1000, tokenizer.getNumber(), 0);
+        tokenizer.next();
+        tokenizer.next();
+        assertEquals(12345678901234567890.0, tokenizer.getNumber(), 0);
+    }
+
+    @Test
+    public void malformedNumberIsNaN() {
+        var tokenizer = tokenizer("1-2");
+        assertEquals(Token.NUMBER, tokenizer.next());
+        assertTrue(Double.isNaN(tokenizer.getNumber()));
+    }
+
+    @Test
+    public void truncatedDocumentEnds() {
+        assertEquals(
+                List.of(Token.OBJECT_START, Token.STRING, Token.COLON, Token.END),
+                tokens("{\"a\":"));
+    }
+
+    @Test
+    public void unclosedStringIsInvalid() {
+        var tokenizer = tokenizer("{\"a\": \"trunc");
+        tokenizer.next();
+        tokenizer.next();
+        tokenizer.next();
+        assertEquals(Token.INVALID, tokenizer.next());
+        assertEquals(tokenizer.getData().length, tokenizer.getEnd());
+        assertEquals("trunc", tokenizer.getString());
+    }
+
+    @Test
+    public void truncatedLiteralIsInvalid() {
+        assertEquals(List.of(Token.ARRAY_START, Token.INVALID), tokens("[tr"));
+        assertEquals(List.of(Token.INVALID), tokens("nope"));
+    }
+
+    @Test
+    public void skipsValues() {
+        var tokenizer = tokenizer("[{\"a\": [1, {\"b\": 2}]}, 3]");
+        tokenizer.next();
+        tokenizer.next();
+        assertTrue(tokenizer.skipValue());
+        assertEquals(Token.COMMA, tokenizer.next());
+        tokenizer.next();
+        assertTrue(tokenizer.skipValue());
+        assertEquals(3, tokenizer.getNumber(), 0);
+    }
+
+    @Test
+    public void skipValueFailsOnTruncatedInput() {
+        var tokenizer = tokenizer("{\"a\": [1, 2");
+        tokenizer.next();
+        assertFalse(tokenizer.skipValue());
+    }
+
+    @Test
+    public void readsOnlyItsRange() {
+        var data = "xx[1]yy".getBytes(StandardCharsets.UTF_8);
+        var tokenizer = new JsonTokenizer(data, 2, 3);
+        assertEquals(Token.ARRAY_START, tokenizer.next());
+        assertEquals(Token.NUMBER, tokenizer.next());
+        assertEquals(Token.ARRAY_END, tokenizer.next());
+        assertEquals(Token.END, tokenizer.next());
+    }
+}
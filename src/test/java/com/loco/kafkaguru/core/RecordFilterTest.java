@@ -0,0 +1,208 @@
+package com.loco.kafkaguru.core;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordFilterTest {
+    private static ConsumerRecord<String, byte[]> record(String key, String value) {
+        return record(0, 0, 0, key, value, new RecordHeaders());
+    }
+
+    private static ConsumerRecord<String, byte[]> record(
+            int partition,
+            long offset,
+            long timestamp,
+            String key,
+            String value,
+            RecordHeaders headers) {
+        var bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        return new ConsumerRecord<>(
+                "topic",
+                partition,
+                offset,
+                timestamp,
+                TimestampType.CREATE_TIME,
+                null,
+                -1,
+                -1,
+                key,
+                bytes,
+                headers);
+    }
+
+    private static ConsumerRecord<String, byte[]> json(String value) {
+        return record(null, value);
+    }
+
+    private static boolean matches(String query, ConsumerRecord<String, byte[]> record) {
+        return RecordFilter.compile(query).test(record);
+    }
+
+    private static void assertInvalid(String query) {
+        try {
+            RecordFilter.compile(query);
+            fail("compiled '" + query + "'");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("of the query"));
+        }
+    }
+
+    @Test
+    public void blankQueryIsNoFilter() {
+        assertNull(RecordFilter.compile(null));
+        assertNull(RecordFilter.compile(""));
+        assertNull(RecordFilter.compile("  \t"));
+    }
+
+    @Test
+    public void invalidQueriesAreRejected() {
+        assertInvalid("key");
+        assertInvalid("key =");
+        assertInvalid("key = order");
+        assertInvalid("key = \"a");
+        assertInvalid("size = 3");
+        assertInvalid("(key = \"a\"");
+        assertInvalid("key = \"a\" extra");
+        assertInvalid("offset = \"a\"");
+        assertInvalid("offset contains \"1\"");
+        assertInvalid("body > \"a\"");
+        assertInvalid("json.a < true");
+        assertInvalid("json.a contains 1");
+        assertInvalid("json.a[x] = 1");
+        assertInvalid("json..a = 1");
+        assertInvalid("timestamp > \"yesterday-ish\"");
+    }
+
+    @Test
+    public void comparesKey() {
+        var record = record("order-1", "{}");
+        assertTrue(matches("key = \"order-1\"", record));
+        assertTrue(matches("key = 'order-1'", record));
+        assertFalse(matches("key = \"order-2\"", record));
+        assertTrue(matches("key contains \"ORDER\"", record));
+        assertTrue(matches("key < \"order-2\"", record));
+        assertTrue(matches("key exists", record));
+        assertFalse(matches("key exists", record(null, "{}")));
+    }
+
+    @Test
+    public void comparesNumbers() {
+        var record = record(3, 1000, 1588327200000L, null, "{}", new RecordHeaders());
+        assertTrue(matches("partition = 3", record));
+        assertTrue(matches("offset >= 1000 and offset < 1001", record));
+        assertFalse(matches("offset > 1000", record));
+        assertTrue(matches("timestamp = 1588327200000", record));
+        assertTrue(matches("timestamp <= 1588327200001", record));
+    }
+
+    @Test
+    public void comparesBody() {
+        var record = record(null, "Connection ERROR at node 3");
+        assertTrue(matches("body contains \"error\"", record));
+        assertTrue(matches("body contains \"\"", record));
+        assertFalse(matches("body contains \"warning\"", record));
+        assertTrue(matches("body = \"Connection ERROR at node 3\"", record));
+        assertFalse(matches("body exists", record(null, null)));
+        assertFalse(matches("body contains \"error\"", record(null, null)));
+    }
+
+    @Test
+    public void comparesHeaders() {
+        var headers = new RecordHeaders();
+        headers.add("type", "ping".getBytes(StandardCharsets.UTF_8));
+        var record = record(0, 0, 0, null, "{}", headers);
+        assertTrue(matches("header.type = \"ping\"", record));
+        assertTrue(matches("header.type contains \"IN\"", record));
+        assertTrue(matches("header.type exists", record));
+        assertFalse(matches("header.other exists", record));
+        assertFalse(matches("header.type != \"ping\"", record));
+        assertTrue(matches("header.type != \"pong\"", record));
+        // a header which is not there is not equal to anything
+        assertTrue(matches("header.other != \"ping\"", record));
+    }
+
+    @Test
+    public void comparesJsonPaths() {
+        var record =
+                json(
+                        "{\"id\": 7, \"skip\": {\"x\": [1, {\"y\": 2}]},"
+                                + " \"items\": [{\"price\": 9.5}, {\"price\": 12, \"tags\": [\"a\", \"b\"]}],"
+                                + " \"name\": \"Widget\", \"on\": true, \"gone\": null}");
+        assertTrue(matches("json.id = 7", record));
+        assertTrue(matches("json.items[0].price < 10", record));
+        assertTrue(matches("json.items[1].price > 10.5", record));
+        assertTrue(matches("json.items[1].tags[1] = \"b\"", record));
+        assertFalse(matches("json.items[2].price exists", record));
+        assertFalse(matches("json.items.price exists", record));
+        assertTrue(matches("json.items[1] exists", record));
+        assertTrue(matches("json.name contains \"widg\"", record));
+        assertTrue(matches("json.name >= \"W\"", record));
+        assertTrue(matches("json.on = true", record));
+        assertFalse(matches("json.on = false", record));
+        assertTrue(matches("json.gone = null", record));
+        assertFalse(matches("json.id = \"7\"", record));
+    }
+
+    @Test
+    public void comparesTopLevelArrays() {
+        var record = json("[[1, 2], [3, 4]]");
+        assertTrue(matches("json.[1][0] = 3", record));
+        assertFalse(matches("json.a exists", record));
+    }
+
+    @Test
+    public void comparesEscapedJsonStrings() {
+        var record = json("{\"na\\u006de\": \"say \\\"Hi\\\"\"}");
+        assertTrue(matches("json.name = 'say \"Hi\"'", record));
+        assertTrue(matches("json.name contains '\"hi'", record));
+    }
+
+    @Test
+    public void truncatedJsonDoesNotMatch() {
+        var record = json("{\"a\": {\"b\": 1}, \"c\": [1, 2");
+        assertTrue(matches("json.a.b = 1", record));
+        assertFalse(matches("json.c[5] exists", record));
+        assertFalse(matches("json.d exists", record));
+        assertFalse(matches("json.a exists", json("not json")));
+    }
+
+    @Test
+    public void notEqualIsNegatedEqual() {
+        var number = json("{\"a\": 1}");
+        var text = json("{\"a\": \"x\"}");
+        var missing = json("{\"b\": 1}");
+        var empty = record(null, null);
+        for (var r : List.of(number, text, missing, empty)) {
+            assertTrue(matches("json.a != 1", r) == matches("not json.a = 1", r));
+            assertTrue(matches("json.a != \"x\"", r) == matches("not json.a = \"x\"", r));
+            assertTrue(matches("key != \"k\"", r) == matches("not key = \"k\"", r));
+            assertTrue(matches("body != \"x\"", r) == matches("not body = \"x\"", r));
+        }
+        assertFalse(matches("json.a != 1", number));
+        assertTrue(matches("json.a != 1", text));
+        assertTrue(matches("json.a != 1", missing));
+        assertTrue(matches("json.a != 1", empty));
+    }
+
+    @Test
+    public void combinesWithPrecedence() {
+        var record = record(3, 5, 0, "k", "{}", new RecordHeaders());
+        // not binds tighter than and, and tighter than or
+        assertTrue(matches("partition = 1 or partition = 3 and offset = 5", record));
+        assertFalse(matches("(partition = 1 or partition = 3) and offset = 6", record));
+        assertTrue(matches("not partition = 1 and offset = 5", record));
+        assertFalse(matches("not (partition = 3 and offset = 5)", record));
+        assertTrue(matches("not not partition = 3", record));
+        assertTrue(matches("PARTITION = 3 AND Key = \"k\"", record));
+    }
+}
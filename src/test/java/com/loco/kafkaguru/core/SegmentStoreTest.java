@@ -0,0 +1,269 @@
+package com.loco.kafkaguru.core;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentStoreTest {
+    private static final String SOURCE = "localhost:9092";
+    private static final long MAX_BYTES = 64 * 1024 * 1024;
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+
+    private final TopicPartition tp = new TopicPartition("orders", 2);
+    private Path directory;
+    private SegmentStore store;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("segment-store");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        try (var paths = Files.walk(directory)) {
+            for (var path :
+                    paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private SegmentStore open(String source) throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        store = new SegmentStore(directory, source, MAX_BYTES, SEGMENT_BYTES);
+        return store;
+    }
+
+    private static List<ConsumerRecord<String, byte[]>> records(long start, long end) {
+        var records = new ArrayList<ConsumerRecord<String, byte[]>>();
+        for (var offset = start; offset < end; ++offset) {
+            var headers = new RecordHeaders();
+            if (offset % 2 == 0) {
+                headers.add("type", ("t" + offset).getBytes(StandardCharsets.UTF_8));
+                headers.add("empty", null);
+            }
+            records.add(
+                    new ConsumerRecord<>(
+                            "orders",
+                            2,
+                            offset,
+                            1_600_000_000_000L + offset,
+                            TimestampType.LOG_APPEND_TIME,
+                            null,
+                            offset % 3 == 0 ? -1 : 5,
+                            offset % 5 == 0 ? -1 : 9,
+                            offset % 3 == 0 ? null : "key-" + offset,
+                            offset % 5 == 0 ? null : ("{\"n\": " + offset + "}").getBytes(),
+                            headers));
+        }
+        return records;
+    }
+
+    // the writes are done once the store is closed
+    private void write(long start, long end) throws IOException {
+        open(SOURCE).write(tp, start, end, records(start, end));
+        store.close();
+        store = null;
+    }
+
+    private Path segmentFile() throws IOException {
+        try (var paths = Files.list(directory.resolve("orders-2"))) {
+            return paths.findFirst().orElseThrow();
+        }
+    }
+
+    private static void assertSameRecords(
+            List<ConsumerRecord<String, byte[]>> expected,
+            List<ConsumerRecord<String, byte[]>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            var e = expected.get(i);
+            var a = actual.get(i);
+            assertEquals(e.topic(), a.topic());
+            assertEquals(e.partition(), a.partition());
+            assertEquals(e.offset(), a.offset());
+            assertEquals(e.timestamp(), a.timestamp());
+            assertEquals(e.timestampType(), a.timestampType());
+            assertEquals(e.serializedKeySize(), a.serializedKeySize());
+            assertEquals(e.serializedValueSize(), a.serializedValueSize());
+            assertEquals(e.key(), a.key());
+            assertArrayEquals(e.value(), a.value());
+            assertArrayEquals(e.headers().toArray(), a.headers().toArray());
+        }
+    }
+
+    // the pieces from start up to end are held, with the records written there
+    private static void assertHeld(long start, long end, List<MessageCache.Piece> pieces) {
+        var records = new ArrayList<ConsumerRecord<String, byte[]>>();
+        for (var piece : pieces) {
+            if (piece.getEndOffset() > start && piece.getStartOffset() < end) {
+                assertTrue(piece.getStartOffset() + " is not held", piece.isHeld());
+                piece.getRecords().stream()
+                        .filter(r -> r.offset() >= start && r.offset() < end)
+                        .forEach(records::add);
+            }
+        }
+        assertSameRecords(records(start, end), records);
+    }
+
+    // the pieces from start up to end are not held
+    private static void assertNotHeld(long start, long end, List<MessageCache.Piece> pieces) {
+        assertEquals(end, pieces.get(pieces.size() - 1).getEndOffset());
+        for (var piece : pieces) {
+            if (piece.getEndOffset() > start && piece.getStartOffset() < end) {
+                assertFalse(piece.isHeld());
+            }
+        }
+    }
+
+    @Test
+    public void readsBackWhatWasWrittenAfterReopening() throws IOException {
+        write(0, 40);
+        write(40, 100);
+
+        // the blocks continue each other in one segment
+        var pieces = open(SOURCE).split(tp, 0, 100);
+        assertEquals(1, pieces.size());
+        assertHeld(0, 100, pieces);
+
+        pieces = store.split(tp, 30, 130);
+        assertHeld(30, 100, pieces);
+        assertNotHeld(100, 130, pieces);
+        assertTrue(store.holdsAny(tp, 99, 200));
+        assertFalse(store.holdsAny(tp, 100, 200));
+        assertFalse(store.holdsAny(new TopicPartition("orders", 3), 0, 100));
+    }
+
+    @Test
+    public void keepsWhatIsHeldWhenWritingAgain() throws IOException {
+        write(20, 40);
+        write(0, 60);
+
+        var pieces = open(SOURCE).split(tp, 0, 60);
+        assertEquals(2, pieces.size());
+        assertHeld(0, 60, pieces);
+    }
+
+    @Test
+    public void truncatesBlockCutShort() throws IOException {
+        write(0, 10);
+        var firstBlock = Files.size(segmentFile());
+        write(10, 20);
+        var secondBlock = Files.size(segmentFile()) - firstBlock;
+        write(20, 30);
+
+        try (var channel = Files.newByteChannel(segmentFile(), StandardOpenOption.WRITE)) {
+            channel.truncate(firstBlock + secondBlock / 2);
+        }
+
+        var pieces = open(SOURCE).split(tp, 0, 30);
+        assertHeld(0, 10, pieces);
+        assertNotHeld(10, 30, pieces);
+        assertEquals(firstBlock, Files.size(segmentFile()));
+    }
+
+    @Test
+    public void dropsCorruptBlockAndTheOnesAfter() throws IOException {
+        write(0, 10);
+        var firstBlock = Files.size(segmentFile());
+        write(10, 20);
+        write(20, 30);
+
+        var bytes = Files.readAllBytes(segmentFile());
+        // a byte of the records of the second block, past its header
+        bytes[(int) firstBlock + 40] ^= 0x10;
+        Files.write(segmentFile(), bytes);
+
+        var pieces = open(SOURCE).split(tp, 0, 30);
+        assertHeld(0, 10, pieces);
+        assertNotHeld(10, 30, pieces);
+        assertEquals(firstBlock, Files.size(segmentFile()));
+    }
+
+    @Test
+    public void deletesSegmentWithoutGoodBlock() throws IOException {
+        write(0, 10);
+        var bytes = Files.readAllBytes(segmentFile());
+        bytes[4] ^= 0x01;
+        Files.write(segmentFile(), bytes);
+
+        assertNotHeld(0, 10, open(SOURCE).split(tp, 0, 10));
+        try (var paths = Files.list(directory.resolve("orders-2"))) {
+            assertEquals(0, paths.count());
+        }
+    }
+
+    @Test
+    public void forgetsRecreatedPartition() throws IOException {
+        write(0, 50);
+
+        open(SOURCE).checkEndOffset(tp, 50);
+        assertHeld(0, 50, store.split(tp, 0, 50));
+
+        store.checkEndOffset(tp, 10);
+        assertNotHeld(0, 50, store.split(tp, 0, 50));
+        assertNotHeld(0, 50, open(SOURCE).split(tp, 0, 50));
+    }
+
+    @Test
+    public void startsEmptyWhenSourceChanges() throws IOException {
+        write(0, 10);
+
+        assertNotHeld(0, 10, open("otherhost:9092").split(tp, 0, 10));
+        assertEquals(0, store.getTotalBytes());
+    }
+
+    @Test
+    public void keepsSegmentsWhenInterrupted() throws IOException {
+        write(0, 10);
+
+        open(SOURCE);
+        Thread.currentThread().interrupt();
+        try {
+            assertNotHeld(0, 10, store.split(tp, 0, 10));
+        } finally {
+            Thread.interrupted();
+        }
+        assertHeld(0, 10, store.split(tp, 0, 10));
+        assertHeld(0, 10, open(SOURCE).split(tp, 0, 10));
+    }
+
+    @Test
+    public void evictsOldSegmentsBeyondMaxBytes() throws IOException {
+        for (long start = 0; start < 1_000; start += 50) {
+            var small = new SegmentStore(directory, SOURCE, 20_000, 4_000);
+            small.write(tp, start, start + 50, records(start, start + 50));
+            small.close();
+            assertTrue(small.getTotalBytes() <= 20_000);
+        }
+
+        var pieces = open(SOURCE).split(tp, 0, 1_000);
+        assertNull(pieces.get(0).getRecords());
+        assertHeld(950, 1_000, pieces);
+    }
+}
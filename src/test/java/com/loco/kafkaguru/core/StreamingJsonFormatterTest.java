@@ -0,0 +1,102 @@
+package com.loco.kafkaguru.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingJsonFormatterTest {
+    private final StreamingJsonFormatter formatter = new StreamingJsonFormatter();
+
+    private String format(String json) {
+        return formatter.format(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String summarize(String json, int maxLength) {
+        return formatter.summarize(json.getBytes(StandardCharsets.UTF_8), maxLength);
+    }
+
+    @Test
+    public void indentsObjects() {
+        var json = "{\"a\": 1, \"b\": [true, null, \"x\"], \"c\": {}}";
+        assertEquals(
+                "{\n"
+                        + "    \"a\": 1,\n"
+                        + "    \"b\": [\n"
+                        + "        true,\n"
+                        + "        null,\n"
+                        + "        \"x\"\n"
+                        + "    ],\n"
+                        + "    \"c\": {}\n"
+                        + "}",
+                format(json));
+        assertEquals("{\"a\": 1, \"b\": [true, null, \"x\"], \"c\": {}}", summarize(json, 100));
+    }
+
+    @Test
+    public void formatsArrays() {
+        var json = "[1,[2,3],[]]";
+        assertEquals(
+                "[\n"
+                        + "    1,\n"
+                        + "    [\n"
+                        + "        2,\n"
+                        + "        3\n"
+                        + "    ],\n"
+                        + "    []\n"
+                        + "]",
+                format(json));
+        assertEquals("[1, [2, 3], []]", summarize(json, 100));
+    }
+
+    @Test
+    public void formatsScalars() {
+        assertEquals("42", format(" 42 "));
+        assertEquals("\"text\"", format("\"text\""));
+        assertEquals("true", summarize("true", 100));
+        assertEquals("{\n    \"s\": \"q\\\"x\"\n}", format("{\"s\": \"q\\\"x\"}"));
+    }
+
+    @Test
+    public void formatsConcatenatedValues() {
+        var json = "{\"a\":1} {\"b\":2}";
+        assertEquals("{\n    \"a\": 1\n}\n{\n    \"b\": 2\n}", format(json));
+        assertEquals("{\"a\": 1} {\"b\": 2}", summarize(json, 100));
+        assertEquals("1\n2", format("1 2"));
+    }
+
+    @Test
+    public void showsTruncatedDocuments() {
+        assertEquals("{\n    \"a\": \"trunc", format("{\"a\": \"trunc"));
+        assertEquals("{\"a\": \"trunc", summarize("{\"a\": \"trunc", 100));
+        assertEquals("{\n    \"a\": [\n        1,\n        2", format("{\"a\": [1, 2"));
+        assertEquals("{\"a\": [1, 2", summarize("{\"a\": [1, 2", 100));
+    }
+
+    @Test
+    public void capsSummary() {
+        assertEquals("{\"a\": 1, \"", summarize("{\"a\": 1, \"b\": [true, null]}", 10));
+        assertEquals("{\"a\": \"tru", summarize("{\"a\": \"trunc", 10));
+
+        var json = new StringBuilder("[");
+        for (int i = 0; i < 10_000; ++i) {
+            json.append(i == 0 ? "" : ",").append("{\"field\": \"value ").append(i).append("\"}");
+        }
+        json.append(']');
+        var summary = summarize(json.toString(), 200);
+        assertEquals(200, summary.length());
+        assertTrue(summary.startsWith("[{\"field\": \"value 0\"}, {\"field\": \"value 1\"}"));
+    }
+
+    @Test
+    public void leavesOtherTextAsItIs() {
+        assertEquals("not json", format("not json"));
+        assertEquals("{\"a\":1}}", format("{\"a\":1}}"));
+        assertEquals("", format(""));
+        assertEquals("hello  \n\t world", format("hello  \n\t world"));
+        assertEquals("hello world", summarize("hello  \n\t world", 100));
+        assertEquals("hello worl", summarize("hello  \n\t world", 10));
+    }
+}